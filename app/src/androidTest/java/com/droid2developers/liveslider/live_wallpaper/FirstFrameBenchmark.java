@@ -0,0 +1,168 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.droid2developers.liveslider.utils.Constant;
+import com.droid2developers.liveslider.utils.GLStateCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time from loading a playlist wallpaper to its first finished frame, by each way
+ * the renderer can get it on screen: decoding into a software bitmap for texImage2D,
+ * decoding into a hardware bitmap drawn into an external texture, and mapping the
+ * pixel cache. The wallpaper is a copy of the default one in the cache dir, like
+ * the files the playlist worker writes. Results go to logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FirstFrameBenchmark {
+    private static final String TAG = FirstFrameBenchmark.class.getSimpleName();
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2400;
+    private static final int RUNS = 5;
+
+    private static final int UPLOAD = 0;
+    private static final int HARDWARE_BITMAP = 1;
+    private static final int PIXEL_CACHE = 2;
+    private static final String[] PATH_NAMES = {"upload", "hardware bitmap", "pixel cache"};
+
+    private final float[] mvpMatrix = new float[16];
+    private EGLDisplay display;
+    private EGLContext context;
+    private EGLSurface surface;
+    private Context appContext;
+    private String wallpaperPath;
+
+    @Before
+    public void setUp() throws Exception {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        assertTrue(EGL14.eglInitialize(display, version, 0, version, 1));
+        int[] configAttribs = {
+                EGL14.EGL_RED_SIZE, 8, EGL14.EGL_GREEN_SIZE, 8, EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT, EGL14.EGL_NONE};
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        assertTrue(EGL14.eglChooseConfig(display, configAttribs, 0, configs, 0, 1, count, 0));
+        assertTrue(count[0] > 0);
+        context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        surface = EGL14.eglCreatePbufferSurface(display, configs[0],
+                new int[]{EGL14.EGL_WIDTH, WIDTH, EGL14.EGL_HEIGHT, HEIGHT, EGL14.EGL_NONE}, 0);
+        assertTrue(EGL14.eglMakeCurrent(display, surface, surface, context));
+        GLStateCache.get().reset();
+        Wallpaper.initGl();
+        Matrix.setIdentityM(mvpMatrix, 0);
+
+        appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File file = new File(appContext.getCacheDir(), "benchmark_" + Constant.DEFAULT_WALLPAPER_NAME);
+        try (InputStream in = appContext.getAssets().open(Constant.DEFAULT_WALLPAPER_NAME);
+             OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        wallpaperPath = file.getPath();
+    }
+
+    @After
+    public void tearDown() {
+        TextureCache.delete(wallpaperPath);
+        new File(wallpaperPath).delete();
+        EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(display, surface);
+        EGL14.eglDestroyContext(display, context);
+    }
+
+    @Test
+    public void timeToFirstFrame() throws Exception {
+        WallpaperDecoder.Decoded decoded = WallpaperDecoder.decode(appContext, wallpaperPath,
+                WIDTH, HEIGHT);
+        assertNotNull(decoded);
+        assertTrue(PixelCacheStore.write(wallpaperPath, WIDTH, HEIGHT, decoded.bitmap,
+                decoded.aspectRatio));
+        decoded.recycle();
+        // Devices without external textures upload every wallpaper
+        int paths = Wallpaper.isExternalSupported() ? PATH_NAMES.length : 1;
+
+        // Warm up every path, then measure them alternately
+        long[] nanos = new long[PATH_NAMES.length];
+        for (int path = 0; path < paths; path++) {
+            firstFrameNanos(path);
+        }
+        for (int i = 0; i < RUNS; i++) {
+            for (int path = 0; path < paths; path++) {
+                nanos[path] += firstFrameNanos(path);
+            }
+        }
+        StringBuilder results = new StringBuilder();
+        for (int path = 0; path < paths; path++) {
+            results.append(String.format(Locale.US, ", %s %.1fms", PATH_NAMES[path],
+                    nanos[path] / 1e6 / RUNS));
+        }
+        Log.i(TAG, "Time to first frame over " + RUNS + " runs" + results);
+    }
+
+    private long firstFrameNanos(int path) throws Exception {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final Wallpaper wallpaper;
+        if (path == PIXEL_CACHE) {
+            WallpaperDecoder.Decoded decoded = PixelCacheStore.read(wallpaperPath, WIDTH, HEIGHT);
+            assertNotNull(decoded);
+            wallpaper = new Wallpaper(decoded.texture);
+        } else if (path == HARDWARE_BITMAP) {
+            WallpaperDecoder.Decoded decoded = WallpaperDecoder.decode(appContext, wallpaperPath,
+                    WIDTH, HEIGHT, Wallpaper.getMaxTextureSize());
+            assertNotNull(decoded);
+            assertTrue(decoded.isHardware());
+            CountDownLatch drawn = new CountDownLatch(1);
+            HardwareBitmapTexture texture = HardwareBitmapTexture.create(decoded.bitmap,
+                    drawn::countDown);
+            assertNotNull(texture);
+            assertTrue(drawn.await(5, TimeUnit.SECONDS));
+            assertTrue(texture.poll());
+            wallpaper = new Wallpaper(texture);
+        } else {
+            WallpaperDecoder.Decoded decoded = WallpaperDecoder.decode(appContext, wallpaperPath,
+                    WIDTH, HEIGHT);
+            assertNotNull(decoded);
+            wallpaper = new Wallpaper(decoded.bitmap);
+        }
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        wallpaper.draw(mvpMatrix, 1f);
+        GLES20.glFinish();
+        final long nanos = SystemClock.elapsedRealtimeNanos() - start;
+        wallpaper.destroy();
+        return nanos;
+    }
+}
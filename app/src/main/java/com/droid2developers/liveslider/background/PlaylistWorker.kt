@@ -17,6 +17,7 @@ import com.bumptech.glide.request.transition.Transition
 import com.droid2developers.liveslider.database.models.LocalWallpaper
 import com.droid2developers.liveslider.database.repository.PlaylistRepository
 import com.droid2developers.liveslider.database.repository.WallpaperRepository
+import com.droid2developers.liveslider.live_wallpaper.TextureCache
 import com.droid2developers.liveslider.utils.Constant.WORKER_KEY_PLAYLIST_ID
 import com.droid2developers.liveslider.utils.DeviceMetrics
 import com.droid2developers.liveslider.utils.FileUtil
@@ -138,6 +139,11 @@ class PlaylistWorker(appContext: Context, params: WorkerParameters) :
                 })
         }
 
+        // Decoded and compressed copies for the portrait screen, other surface sizes get decoded copies on first load
+        withContext(Dispatchers.Default) {
+            TextureCache.write(applicationContext, localPath, min(height, width), max(height, width))
+        }
+
         return localPath
     }
 
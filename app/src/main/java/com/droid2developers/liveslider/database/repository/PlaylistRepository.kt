@@ -8,6 +8,7 @@ import androidx.lifecycle.LiveData
 import com.droid2developers.liveslider.database.LiveWallpaperDatabase
 import com.droid2developers.liveslider.database.dao.PlaylistDao
 import com.droid2developers.liveslider.database.models.Playlist
+import com.droid2developers.liveslider.live_wallpaper.TextureCache
 import java.io.File
 import java.io.IOException
 
@@ -96,6 +97,7 @@ class PlaylistRepository(private val mContext: Context) {
     private fun deleteLocalFile(wallpaperPath: String): Boolean {
         var isDeleted: Boolean
         val file = File(wallpaperPath)
+        TextureCache.delete(wallpaperPath)
         isDeleted = file.delete()
         Log.d(TAG, "deleteLocalFile: 1st Attempt = $isDeleted")
         if (file.exists() && !isDeleted) {
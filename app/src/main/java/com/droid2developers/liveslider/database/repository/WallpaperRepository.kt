@@ -9,6 +9,7 @@ import androidx.lifecycle.LiveData
 import com.droid2developers.liveslider.database.LiveWallpaperDatabase
 import com.droid2developers.liveslider.database.dao.WallpaperDao
 import com.droid2developers.liveslider.database.models.LocalWallpaper
+import com.droid2developers.liveslider.live_wallpaper.TextureCache
 import java.io.File
 import java.io.IOException
 
@@ -107,6 +108,7 @@ class WallpaperRepository(mContext: Context) {
     private fun deleteLocalFile(wallpaperPath: String): Boolean {
         var isDeleted: Boolean
         val file = File(wallpaperPath)
+        TextureCache.delete(wallpaperPath)
         isDeleted = file.delete()
         Log.d(TAG, "deleteLocalFile: 1st Attempt = $isDeleted")
         if (file.exists() && !isDeleted) {
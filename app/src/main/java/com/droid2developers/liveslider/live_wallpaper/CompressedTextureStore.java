@@ -0,0 +1,135 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.droid2developers.liveslider.utils.Etc2Encoder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * ETC2 compressed copies of playlist wallpapers, cropped for one screen size and
+ * stored as PKM files next to the source image. They are written at import time,
+ * so the renderer can upload a quarter of the bytes without decoding anything.
+ * The screen size is part of the file name, a different size simply misses.
+ */
+class CompressedTextureStore {
+    private static final String TAG = CompressedTextureStore.class.getSimpleName();
+    private static final String EXTENSION = ".pkm";
+
+    // PKM header: magic, version, data type, padded size, original size
+    private static final int HEADER_SIZE = 16;
+    private static final byte[] MAGIC = {'P', 'K', 'M', ' ', '2', '0'};
+    private static final short TYPE_ETC2_RGB = 1;
+
+    private CompressedTextureStore() {
+    }
+
+    static File getFile(String wallpaperPath, int screenWidth, int screenHeight) {
+        return new File(wallpaperPath + "." + screenWidth + "x" + screenHeight + EXTENSION);
+    }
+
+    /**
+     * Store a wallpaper already cropped for the given screen size ETC2 compressed.
+     * Slow, call from a background thread. The bitmap is left untouched.
+     * @return true if the file was written
+     */
+    static boolean write(String wallpaperPath, int screenWidth, int screenHeight, Bitmap bitmap) {
+        File file = getFile(wallpaperPath, screenWidth, screenHeight);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+            long start = SystemClock.elapsedRealtime();
+            byte[] blocks = Etc2Encoder.encode(pixels, width, height);
+            Log.d(TAG, "Encoded " + width + "x" + height + " in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms, "
+                    + blocks.length / 1024 + "KB instead of " + pixels.length * 4 / 1024 + "KB");
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.put(MAGIC)
+                    .putShort(TYPE_ETC2_RGB)
+                    .putShort((short) roundUpToBlock(width))
+                    .putShort((short) roundUpToBlock(height))
+                    .putShort((short) width)
+                    .putShort((short) height);
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(header.array());
+                out.write(blocks);
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error compressing wallpaper: " + wallpaperPath, e);
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Map the compressed wallpaper for the given screen size
+     * @return the texture, or null if there is none or it is unreadable
+     */
+    static TextureData read(String wallpaperPath, int screenWidth, int screenHeight) {
+        File file = getFile(wallpaperPath, screenWidth, screenHeight);
+        if (!file.isFile() || file.lastModified() < new File(wallpaperPath).lastModified()) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.BIG_ENDIAN);
+            if (mapped.remaining() < HEADER_SIZE) throw new IOException("Truncated PKM file");
+            for (byte b : MAGIC) {
+                if (mapped.get() != b) throw new IOException("Not an ETC2 PKM file");
+            }
+            if (mapped.getShort() != TYPE_ETC2_RGB) throw new IOException("Unsupported PKM type");
+            mapped.getShort(); // padded width and height follow from the original size
+            mapped.getShort();
+            int width = mapped.getShort() & 0xffff;
+            int height = mapped.getShort() & 0xffff;
+            if (width == 0 || height == 0
+                    || mapped.remaining() != Etc2Encoder.getEncodedSize(width, height)) {
+                throw new IOException("Truncated PKM file");
+            }
+            // Fault the pages in now rather than during the upload on the GL thread
+            mapped.load();
+            return new TextureData(mapped.slice(), width, height, TextureData.FORMAT_ETC2);
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring compressed wallpaper " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the compressed copies of a wallpaper for every screen size
+     */
+    static void delete(String wallpaperPath) {
+        File source = new File(wallpaperPath);
+        File[] files = source.getAbsoluteFile().getParentFile().listFiles((dir, name) ->
+                name.startsWith(source.getName() + ".") && name.endsWith(EXTENSION));
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+    }
+
+    private static int roundUpToBlock(int size) {
+        return (size + Etc2Encoder.BLOCK_SIZE - 1) / Etc2Encoder.BLOCK_SIZE * Etc2Encoder.BLOCK_SIZE;
+    }
+}
@@ -18,8 +18,7 @@ public class DoubleTapGestureListener extends SimpleOnGestureListener {
     @Override
     public boolean onDoubleTap(MotionEvent e) {
         if (this.parallaxEngine.isAllowClickToChange() && this.parallaxEngine.isSlideShowEnabled()) {
-            parallaxEngine.incrementWallpaper();
-            parallaxEngine.changeWallpaper();
+            parallaxEngine.requestNextWallpaper();
         }
         return true;
     }
@@ -0,0 +1,89 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Vsync driven frame clock for the wallpaper engine. Animation steps run once per
+ * display frame at the panel's refresh rate, and render requests from any thread
+ * are coalesced into at most one frame per vsync.
+ * Must be created on a thread with a Looper, usually the main thread.
+ */
+class FrameClock implements Choreographer.FrameCallback {
+
+    interface Callback {
+        /**
+         * Advance animations to the given frame time
+         * @return true if the frame needs to be rendered
+         */
+        boolean onFrame(long frameTimeNanos);
+    }
+
+    private final Choreographer choreographer;
+    private final Callback callback;
+    private final LiveWallpaperRenderer.Callbacks renderTarget;
+    private final AtomicBoolean frameScheduled = new AtomicBoolean(false);
+    private volatile boolean running;
+    private final AtomicBoolean renderRequested = new AtomicBoolean(false);
+
+    FrameClock(Callback callback, LiveWallpaperRenderer.Callbacks renderTarget) {
+        this.choreographer = Choreographer.getInstance();
+        this.callback = callback;
+        this.renderTarget = renderTarget;
+    }
+
+    /**
+     * Call the callback on every vsync until {@link #stop()}
+     */
+    void start() {
+        running = true;
+        scheduleFrame();
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Render on the next vsync. Safe to call from any thread, repeated calls
+     * before that vsync collapse into one frame.
+     */
+    void requestRender() {
+        renderRequested.set(true);
+        scheduleFrame();
+    }
+
+    void release() {
+        running = false;
+        choreographer.removeFrameCallback(this);
+        frameScheduled.set(false);
+    }
+
+    private void scheduleFrame() {
+        if (frameScheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled.set(false);
+        // After clearing frameScheduled, so a request racing this frame either
+        // lands here or schedules the next one
+        boolean render = renderRequested.getAndSet(false);
+        if (running) {
+            render |= callback.onFrame(frameTimeNanos);
+        }
+        if (render) {
+            renderTarget.requestRender();
+        }
+        if (running) {
+            scheduleFrame();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.PerformanceHintManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Measures the CPU work of every frame on the GL thread. On Android 12 and up it
+ * reports the work and the vsync target to a {@link PerformanceHintManager}
+ * session, so the governor can clock the GL thread for the frame instead of
+ * guessing. The measurements are also kept in a histogram for our own summary.
+ */
+class FrameWorkReporter {
+    private static final String TAG = FrameWorkReporter.class.getSimpleName();
+    private static final long BUCKET_NANOS = 250_000L;
+    private static final int BUCKETS = 200;  // Up to 50 ms, longer frames land in the last one
+
+    private final Context context;
+    private volatile long targetNanos = 1_000_000_000L / 60;
+
+    // GL thread only
+    private PerformanceHintManager.Session hintSession;
+    private boolean hintSessionFailed = false;
+    private boolean released;
+    private long reportedTargetNanos;
+    private long frameStartNanos;
+
+    // Guarded by this
+    private final int[] histogram = new int[BUCKETS];
+    private int frames;
+    private int overBudgetFrames;
+    private long totalWorkNanos;
+    private long maxWorkNanos;
+
+    FrameWorkReporter(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * May be called from any thread, takes effect with the next frame
+     */
+    void setTargetFrameRate(float framesPerSecond) {
+        if (framesPerSecond > 0f) {
+            targetNanos = (long) (1e9f / framesPerSecond);
+        }
+    }
+
+    void beginFrame() {
+        frameStartNanos = System.nanoTime();
+    }
+
+    void endFrame() {
+        long workNanos = System.nanoTime() - frameStartNanos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            reportToHintSession(workNanos);
+        }
+        synchronized (this) {
+            histogram[(int) Math.min(BUCKETS - 1, workNanos / BUCKET_NANOS)]++;
+            frames++;
+            totalWorkNanos += workNanos;
+            maxWorkNanos = Math.max(maxWorkNanos, workNanos);
+            if (workNanos > targetNanos) overBudgetFrames++;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.S)
+    private void reportToHintSession(long workNanos) {
+        long target = targetNanos;
+        PerformanceHintManager.Session session = hintSession;
+        if (session == null) {
+            if (hintSessionFailed || released) return;
+            // The session belongs to the calling thread, so it is opened on the GL thread
+            PerformanceHintManager manager = context.getSystemService(PerformanceHintManager.class);
+            session = manager != null
+                    ? manager.createHintSession(new int[]{Process.myTid()}, target) : null;
+            if (session == null) {
+                hintSessionFailed = true;
+                Log.d(TAG, "Performance hint sessions not supported");
+                return;
+            }
+            hintSession = session;
+            reportedTargetNanos = target;
+        }
+        if (target != reportedTargetNanos) {
+            session.updateTargetWorkDuration(target);
+            reportedTargetNanos = target;
+        }
+        if (workNanos > 0) {
+            session.reportActualWorkDuration(workNanos);
+        }
+    }
+
+    /**
+     * Close the hint session, on the GL thread once it stops drawing.
+     * Later frames aren't reported anymore.
+     */
+    void release() {
+        released = true;
+        PerformanceHintManager.Session session = hintSession;
+        hintSession = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Frame work at the given percentile, from the histogram with its bucket resolution
+     */
+    synchronized long getPercentileNanos(float fraction) {
+        int rank = (int) Math.ceil(fraction * frames);
+        int count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histogram[i];
+            if (count >= rank && count > 0) {
+                return (i + 1) * BUCKET_NANOS;
+            }
+        }
+        return 0L;
+    }
+
+    synchronized String getSummary() {
+        if (frames == 0) return "no frames";
+        return String.format(Locale.US,
+                "%d frames, work mean %.2fms p50 %.2fms p95 %.2fms max %.2fms, %d over the %.2fms target",
+                frames, totalWorkNanos / 1e6 / frames, getPercentileNanos(0.5f) / 1e6,
+                getPercentileNanos(0.95f) / 1e6, maxWorkNanos / 1e6, overBudgetFrames, targetNanos / 1e6);
+    }
+}
@@ -0,0 +1,131 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.SurfaceTexture;
+import android.util.Log;
+import android.view.Surface;
+
+import com.droid2developers.liveslider.utils.GLStateCache;
+import com.droid2developers.liveslider.utils.GLUtil;
+
+/**
+ * Shows a hardware bitmap without its pixels passing through the Java heap or
+ * texImage2D. The GPU draws the bitmap into the buffer queue of a SurfaceTexture,
+ * whose buffer an external texture then samples through an EGLImage.
+ * <p>
+ * Create and poll on a GL thread. The frame is drawn asynchronously, the callback
+ * runs once it can be latched with {@link #poll()}.
+ */
+class HardwareBitmapTexture implements SurfaceTexture.OnFrameAvailableListener {
+    private static final String TAG = HardwareBitmapTexture.class.getSimpleName();
+
+    final int width;
+    final int height;
+    private final int textureHandle;
+    private final SurfaceTexture surfaceTexture;
+    private final float[] textureMatrix = new float[16];
+    private final Runnable onFrameAvailable;
+    private volatile boolean frameAvailable;
+    // Kept until the frame is latched, the GPU may still be drawing from the bitmap
+    private Surface surface;
+    private Bitmap bitmap;
+    private boolean latched;
+
+    private HardwareBitmapTexture(Bitmap bitmap, int textureHandle, Runnable onFrameAvailable) {
+        this.bitmap = bitmap;
+        this.textureHandle = textureHandle;
+        this.onFrameAvailable = onFrameAvailable;
+        width = bitmap.getWidth();
+        height = bitmap.getHeight();
+        surfaceTexture = new SurfaceTexture(textureHandle);
+        surfaceTexture.setDefaultBufferSize(width, height);
+        surfaceTexture.setOnFrameAvailableListener(this);
+        surface = new Surface(surfaceTexture);
+    }
+
+    /**
+     * Start drawing the bitmap, which is owned by the texture from now on
+     * @param onFrameAvailable called on the main thread once {@link #poll()} has a frame
+     * @return the texture, or null if the bitmap couldn't be drawn. The bitmap is
+     * left alone then, for the upload path.
+     */
+    static HardwareBitmapTexture create(Bitmap bitmap, Runnable onFrameAvailable) {
+        if (!Wallpaper.isExternalSupported()) return null;
+        HardwareBitmapTexture texture = null;
+        try {
+            texture = new HardwareBitmapTexture(bitmap, GLUtil.createExternalTexture(),
+                    onFrameAvailable);
+            Canvas canvas = texture.surface.lockHardwareCanvas();
+            canvas.drawBitmap(bitmap, 0, 0, null);
+            texture.surface.unlockCanvasAndPost(canvas);
+            return texture;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Drawing the hardware bitmap failed", e);
+            if (texture != null) {
+                texture.bitmap = null;
+                texture.destroy();
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        frameAvailable = true;
+        onFrameAvailable.run();
+    }
+
+    /**
+     * Latch the drawn frame into the texture, on the GL thread that created it
+     * @return true once the texture shows the bitmap
+     */
+    boolean poll() {
+        if (latched) return true;
+        if (!frameAvailable) return false;
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(textureMatrix);
+        latched = true;
+        surface.release();
+        surface = null;
+        bitmap.recycle();
+        bitmap = null;
+        return true;
+    }
+
+    int getTextureHandle() {
+        return textureHandle;
+    }
+
+    /**
+     * Maps the quad's texture coordinates to the buffer, usually a vertical flip
+     */
+    float[] getTextureMatrix() {
+        return textureMatrix;
+    }
+
+    /**
+     * Delete the texture, on any GL thread of the share group
+     */
+    void destroy() {
+        abandon();
+        GLStateCache.get().deleteTextures(new int[]{textureHandle});
+    }
+
+    /**
+     * Release the bitmap and buffers without GL calls, when the context is already
+     * gone. The texture goes with the context.
+     */
+    void abandon() {
+        if (surface != null) {
+            surface.release();
+            surface = null;
+        }
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        surfaceTexture.setOnFrameAvailableListener(null);
+        surfaceTexture.release();
+    }
+}
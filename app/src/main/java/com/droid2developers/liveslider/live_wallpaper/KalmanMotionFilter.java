@@ -0,0 +1,88 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+/**
+ * Constant velocity Kalman filter, tracks the angle and its rate of change.
+ * Unlike a low pass it doesn't lag behind steady movement, the velocity estimate
+ * carries the angle along between samples.
+ */
+class KalmanMotionFilter implements MotionFilter {
+    // Variance of the sensor angle, about 0.1 degrees of noise
+    private static final float MEASUREMENT_VARIANCE = 3e-6f;
+    // Acceleration noise density for delay 1. Falls with the fourth power of the
+    // delay, which keeps the picture about as steady at rest as the old smoothing.
+    private static final float PROCESS_NOISE = 0.5f;
+    // Gaps longer than this restart the filter rather than smoothing across them
+    private static final float MAX_STEP_SECONDS = 0.5f;
+
+    private float processNoise = PROCESS_NOISE / 10_000;
+    private boolean hasSample;
+    private long lastTimestampNanos;
+    // State and covariance
+    private float angle;
+    private float velocity;
+    private float p00, p01, p10, p11;
+
+    @Override
+    public void setDelay(int delay) {
+        int clamped = Math.max(1, delay);
+        processNoise = PROCESS_NOISE / (clamped * clamped * clamped * clamped);
+    }
+
+    @Override
+    public void reset() {
+        hasSample = false;
+    }
+
+    @Override
+    public void update(long timestampNanos, float sample) {
+        float dt = (timestampNanos - lastTimestampNanos) / 1e9f;
+        if (hasSample && dt <= 0f) {
+            // Out of order or repeated sample
+            return;
+        }
+        if (!hasSample || dt > MAX_STEP_SECONDS) {
+            hasSample = true;
+            lastTimestampNanos = timestampNanos;
+            angle = sample;
+            velocity = 0f;
+            p00 = MEASUREMENT_VARIANCE;
+            p01 = 0f;
+            p10 = 0f;
+            p11 = 1f;
+            return;
+        }
+        lastTimestampNanos = timestampNanos;
+
+        // Predict: angle += velocity * dt, P = F P F' + Q
+        angle += velocity * dt;
+        float dt2 = dt * dt;
+        p00 += dt * (p10 + p01) + dt2 * p11 + processNoise * dt2 * dt / 3f;
+        p01 += dt * p11 + processNoise * dt2 / 2f;
+        p10 += dt * p11 + processNoise * dt2 / 2f;
+        p11 += processNoise * dt;
+
+        // Correct with the measured angle
+        float innovation = sample - angle;
+        float s = p00 + MEASUREMENT_VARIANCE;
+        float k0 = p00 / s;
+        float k1 = p10 / s;
+        angle += k0 * innovation;
+        velocity += k1 * innovation;
+        float newP01 = (1f - k0) * p01;
+        float newP11 = p11 - k1 * p01;
+        p10 -= k1 * p00;
+        p00 *= 1f - k0;
+        p01 = newP01;
+        p11 = newP11;
+    }
+
+    @Override
+    public float getValue() {
+        return angle;
+    }
+
+    @Override
+    public float getVelocity() {
+        return velocity;
+    }
+}
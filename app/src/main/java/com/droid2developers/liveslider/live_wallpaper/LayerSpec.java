@@ -0,0 +1,34 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+/**
+ * One layer of the parallax stack: which wallpaper it shows, how fast it moves
+ * and at what resolution its texture is kept
+ */
+final class LayerSpec {
+    final String name;              // For debugging
+    final String key;               // Fixed wallpaper key, null for the wallpaper the user picked
+    final float parallaxFactor;     // Movement multiplier (1.0 = normal, 1.4 = 40% faster)
+    final float alpha;              // Transparency (1.0 = opaque, 0.0 = transparent)
+    // Fraction of the screen size the wallpaper is decoded at. Layers that move
+    // fast or are blurry anyway look the same at half the resolution.
+    final float resolutionScale;
+
+    LayerSpec(String name, String key, float parallaxFactor, float alpha, float resolutionScale) {
+        this.name = name;
+        this.key = key;
+        this.parallaxFactor = parallaxFactor;
+        this.alpha = alpha;
+        this.resolutionScale = resolutionScale;
+    }
+
+    /**
+     * @return true if this layer shows the wallpaper the user picked
+     */
+    boolean isForeground() {
+        return key == null;
+    }
+
+    static int scaleSize(int size, float resolutionScale) {
+        return Math.max(1, Math.round(size * resolutionScale));
+    }
+}
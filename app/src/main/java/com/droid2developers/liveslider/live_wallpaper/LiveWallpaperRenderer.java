@@ -1,133 +1,274 @@
 package com.droid2developers.liveslider.live_wallpaper;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.droid2developers.liveslider.R;
-import com.droid2developers.liveslider.models.BiasChangeEvent;
-import com.droid2developers.liveslider.models.FaceRotationEvent;
-import com.droid2developers.liveslider.utils.Constant;
+import com.droid2developers.liveslider.utils.AtomicFloatPair;
+import com.droid2developers.liveslider.utils.GLStateCache;
+import com.droid2developers.liveslider.utils.ProgramBinaryCache;
+import net.rbgrn.android.glwallpaperservice.GLWallpaperService;
 import org.apache.commons.collections4.queue.CircularFifoQueue;
-import org.greenrobot.eventbus.EventBus;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.opengles.GL10;
+import static com.droid2developers.liveslider.live_wallpaper.WallpaperDecoder.KEY_BACKGROUND;
+import static com.droid2developers.liveslider.live_wallpaper.WallpaperDecoder.KEY_DEFAULT;
 import static com.droid2developers.liveslider.utils.Constant.DEFAULT_LOCAL_PATH;
+import static com.droid2developers.liveslider.utils.Constant.TRANSITION_CROSSFADE;
 import static com.droid2developers.liveslider.utils.Constant.TYPE_SINGLE;
-import androidx.lifecycle.MutableLiveData;
 
-public class LiveWallpaperRenderer implements GLSurfaceView.Renderer {
+public class LiveWallpaperRenderer implements GLSurfaceView.Renderer, WallpaperPrefetcher.Callback,
+        TextureLoader.Callback, GLWallpaperService.GLThreadExitListener {
+    // Frame rate assumed until the real frame interval is known
     private final static int REFRESH_RATE = 60;
+    private final static float REFERENCE_FRAME_SECONDS = 1f / REFRESH_RATE;
+    // Longest step taken in one frame, e.g. after the clock was stopped
+    private final static float MAX_FRAME_SECONDS = 0.1f;
     private final static float MAX_BIAS_RANGE = 0.006f;
     private final static String TAG = LiveWallpaperRenderer.class.getSimpleName();
+    // Frames of a wallpaper transition taking longer than this are logged
+    private final static long TRANSITION_FRAME_BUDGET_NANOS = 16_000_000L;
+    // GL time a frame may spend on tiles of wallpapers too large for one texture
+    private final static long UPLOAD_FRAME_BUDGET_NANOS = 4_000_000L;
+
+    // Parallax layer stack, drawn back to front. Exactly one layer shows the
+    // wallpaper the user picked, the others show fixed wallpapers.
+    private static final LayerSpec[] LAYER_SPECS = {
+            new LayerSpec("Background", KEY_BACKGROUND, 1.6f, 1.0f, 1.0f),
+            new LayerSpec("Foreground", null, 1.0f, 0.5f, 1.0f),
+    };
+    private static final int FOREGROUND_INDEX = getForegroundIndex();
+
+    // Layers and the fixed layers still to load, GL thread only
+    private final ParallaxLayer[] layers = new ParallaxLayer[LAYER_SPECS.length];
+    private final boolean[] pendingLayers = new boolean[LAYER_SPECS.length];
+    private ParallaxLayer outgoingForegroundLayer;  // Previous foreground while a transition runs
+    private final Set<String> failedLayerKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    // Draw list built every frame, one slot per layer plus the outgoing foreground
+    private final ParallaxLayer[] drawLayers = new ParallaxLayer[LAYER_SPECS.length + 1];
+    private final float[][] drawMatrices = new float[LAYER_SPECS.length + 1][16];
+    private final float[] drawAlphas = new float[LAYER_SPECS.length + 1];
+    private int drawCount;
 
-    // Parallax layers
-    private ParallaxLayer backgroundLayer;  // Di chuyển nhanh (factor = 1.4)
-    private ParallaxLayer foregroundLayer;  // Di chuyển chậm (factor = 1.0)
-    private static final float BACKGROUND_PARALLAX_FACTOR = 1.6f;
-    private static final float FOREGROUND_PARALLAX_FACTOR = 1.0f;
-    private static final float BACKGROUND_ALPHA = 1.0f;
-    private static final float FOREGROUND_ALPHA = 0.5f;
-
-    private MutableLiveData<Float> mutableAlfa = null;
-    private final float[] mMVPMatrix = new float[16];
-    private final float[] mMVPMatrixBackground = new float[16];
-    private final float[] mMVPMatrixForeground = new float[16];
+    private final float[] mLayerMatrix = new float[16];
     private final float[] mProjectionMatrix = new float[16];
     private final float[] mViewMatrix = new float[16];
-    private final Context mContext;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    private float scrollStep = 1f;
+    private final WallpaperPrefetcher prefetcher;
+    private final SharedTextureCache sharedTextures;
+    // Uploads in progress by key, GL thread only
+    private final Map<String, Upload> uploads = new HashMap<>();
+    // Null if the context couldn't be shared, uploads then run on the GL thread
+    private volatile TextureLoader textureLoader;
+    // Decode wallpapers that fit in one texture into hardware bitmaps and skip the upload
+    private volatile boolean hardwareBitmaps = true;
+    private final FrameClock frameClock;
+    private final FrameWorkReporter frameWork;
+    private volatile float scrollStep = 1f;
     private final Queue<Float> scrollOffsetXQueue = new CircularFifoQueue<>(10);
-    private float scrollOffsetX = 0.5f;
+    // Written on the main thread, read once per frame into frameScrollOffsetX
+    private volatile float scrollOffsetX = 0.5f;
+    private float frameScrollOffsetX = 0.5f;  // GL thread only
     private float scrollOffsetXBackup = 0.5f;
     private float currentOrientationOffsetX, currentOrientationOffsetY;
     private float orientationOffsetX, orientationOffsetY;
-    private final Callbacks mCallbacks;
+    // Filtered roll and pitch from the sensor thread, offsets for the GL thread
+    private final MotionPredictor motionPredictor = new MotionPredictor();
+    private final float[] predictedAngles = new float[2];
+    private final AtomicFloatPair frameOrientationOffsets = new AtomicFloatPair();
+    private float frameOffsetX, frameOffsetY;  // GL thread only
     private float screenAspectRatio;
-    private int screenH;
+    private volatile int surfaceWidth;
+    private volatile int surfaceHeight;
+    private volatile Object shareGroup;
     private float wallpaperAspectRatio;
-    private final Runnable transition = new Runnable() {
-        @Override
-        public void run() {
-            transitionCal();
-        }
-    };
-    private ScheduledFuture<?> transitionHandle;
+    private long lastFrameTimeNanos;
+    private boolean idle;
+    private boolean stoppedForIdle;
+    // Camera parameters, GL thread only. The main thread asks for a recalculation.
     private float preA;
     private float preB;
+    private volatile boolean needsPreCalculate;
 
     // Important mutable parameters
-    private String localWallpaperPath = null;
-    private int delay = 1;
-    private float biasRange;
+    private volatile String localWallpaperPath = null;
+    private volatile float biasRange;
     private float scrollRange;
     private boolean scrollMode = true;
-    private boolean needsRefreshWallpaper;
-    private boolean isDefaultWallpaper;
-    private int wallpaperType;
+    private volatile boolean needsRefreshWallpaper;
+    private volatile boolean needsReloadLayers;
+    private volatile String failedForegroundKey;
+    private volatile boolean isDefaultWallpaper;
+    private volatile int wallpaperType;
+    private volatile int transitionType = TRANSITION_CROSSFADE;
+    private volatile boolean animateNextForeground;
+    private volatile String shownForegroundKey;
+    // Time to first frame after refreshWallpaper, 0 while nothing is measured
+    private volatile long refreshRequestNanos;
+    private long firstFrameRequestNanos;  // GL thread only
+    private String firstFrameSource;
+    // Time to first frame after onSurfaceCreated, cold or with cached programs
+    private final ProgramBinaryCache programCache;
+    private long surfaceCreatedNanos;  // GL thread only
+
+    // Wallpaper change transition, GL thread only
+    private final WallpaperTransition wallpaperTransition = new WallpaperTransition();
+    private int overBudgetTransitionFrames;
+
+    LiveWallpaperRenderer(Context context, Callbacks callbacks, SharedTextureCache sharedTextures) {
+        this.sharedTextures = sharedTextures;
+        prefetcher = new WallpaperPrefetcher(context, this);
+        Map<String, Float> fixedLayerScales = new HashMap<>();
+        for (LayerSpec spec : LAYER_SPECS) {
+            if (!spec.isForeground()) fixedLayerScales.put(spec.key, spec.resolutionScale);
+        }
+        prefetcher.setLayers(fixedLayerScales, LAYER_SPECS[FOREGROUND_INDEX].resolutionScale);
+        frameClock = new FrameClock(this::transitionCal, callbacks);
+        frameWork = new FrameWorkReporter(context);
+        programCache = new ProgramBinaryCache(context);
+    }
+
+    /**
+     * Main thread, before the engine stops the GL thread. What the GL thread
+     * works on is released in {@link #onGLThreadExit(boolean)}.
+     */
+    void release() {
+        frameClock.release();
+        prefetcher.release();
+    }
 
-    private final Handler animationHandler = new Handler(Looper.getMainLooper());
+    @Override
+    public void onGLThreadExit(boolean hasContext) {
+        Log.d(TAG, "Frame work: " + frameWork.getSummary());
+        frameWork.release();
+        if (hasContext) {
+            cancelUploads();
+        } else {
+            abandonUploads();
+        }
+        releaseTextureLoader();
+        releaseLayers();
+    }
 
-    LiveWallpaperRenderer(Context context, Callbacks callbacks) {
-        mContext = context;
-        mCallbacks = callbacks;
-        mutableAlfa = new MutableLiveData<>(1.0f);
+    private void releaseLayers() {
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i] != null) {
+                layers[i].destroy();
+                layers[i] = null;
+            }
+        }
+        finishWallpaperTransition();
     }
 
-    void release() {
-        if (backgroundLayer != null) {
-            backgroundLayer.destroy();
-            backgroundLayer = null;
+    private static int getForegroundIndex() {
+        for (int i = 0; i < LAYER_SPECS.length; i++) {
+            if (LAYER_SPECS[i].isForeground()) return i;
         }
-        if (foregroundLayer != null) {
-            foregroundLayer.destroy();
-            foregroundLayer = null;
+        throw new IllegalStateException("No foreground layer");
+    }
+
+    private static boolean isFixedLayerKey(String key) {
+        for (LayerSpec spec : LAYER_SPECS) {
+            if (key.equals(spec.key)) return true;
         }
-        stopTransition();
-        scheduler.shutdown();
+        return false;
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        surfaceCreatedNanos = SystemClock.elapsedRealtimeNanos();
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glBlendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA, GLES20.GL_ONE, GLES20.GL_ONE);
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-        Wallpaper.initGl();
+        // Only called for a new context. Layers of a lost one are released without
+        // GL calls, their textures are deleted by whatever context of their share
+        // group is still around.
+        GLStateCache.get().reset();
+        abandonUploads();
+        releaseLayers();
+        shownForegroundKey = null;
+        surfaceWidth = 0;
+        surfaceHeight = 0;
+        shareGroup = GLWallpaperService.getShareGroup(((EGL10) EGLContext.getEGL()).eglGetCurrentContext());
+        sharedTextures.deletePending(shareGroup);
+        Wallpaper.initGl(shareGroup, programCache);
+        // The old loader shared objects with the lost context
+        releaseTextureLoader();
+        textureLoader = TextureLoader.create(config, this);
+        prefetcher.setTextureLimits(Wallpaper.getMaxTextureSize(), Wallpaper.isCompressedSupported());
+        prefetcher.setHardwareBitmaps(hardwareBitmaps && Wallpaper.isExternalSupported());
+    }
+
+    /**
+     * Show wallpapers from hardware bitmaps where the GPU can sample them, instead
+     * of uploading their pixels. On by default, falls back to uploads by itself.
+     * Affects decodes started afterwards.
+     */
+    void setHardwareBitmaps(boolean enabled) {
+        hardwareBitmaps = enabled;
+        prefetcher.setHardwareBitmaps(enabled && Wallpaper.isExternalSupported());
     }
 
     void startTransition() {
-        stopTransition();
-        transitionHandle = scheduler.scheduleWithFixedDelay(transition,
-                0, 1000 / REFRESH_RATE, TimeUnit.MILLISECONDS);
+        lastFrameTimeNanos = 0;
+        frameClock.start();
     }
 
     void stopTransition() {
-        if (transitionHandle != null) transitionHandle.cancel(true);
+        stoppedForIdle = false;
+        frameClock.stop();
+    }
+
+    /**
+     * While idle the frame loop stops as soon as the smoothing has settled,
+     * and restarts right away once the device moves again
+     */
+    void setIdle(boolean idle) {
+        this.idle = idle;
+        if (!idle && stoppedForIdle) {
+            stoppedForIdle = false;
+            startTransition();
+        }
     }
 
     private boolean hasLoggedNullWallpaper = false;
     @Override
     public void onDrawFrame(GL10 gl) {
-        if (needsRefreshWallpaper) {
+        frameWork.beginFrame();
+        drawFrame();
+        frameWork.endFrame();
+    }
+
+    private void drawFrame() {
+        final long frameStartNanos = SystemClock.elapsedRealtimeNanos();
+        // Other engines may have deleted shared objects and reused their names
+        GLStateCache.get().forgetSharedBindings();
+        sharedTextures.deletePending(shareGroup);
+        if (needsRefreshWallpaper || needsReloadLayers) {
             loadTextures();
-            needsRefreshWallpaper = false;
+        }
+        final float transitionProgress = wallpaperTransition.update(frameStartNanos);
+        final long offsets = frameOrientationOffsets.get();
+        frameOffsetX = AtomicFloatPair.first(offsets);
+        frameOffsetY = AtomicFloatPair.second(offsets);
+        frameScrollOffsetX = scrollOffsetX;
+        if (needsPreCalculate) {
+            needsPreCalculate = false;
+            preCalculate();
         }
 
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
@@ -140,37 +281,99 @@ public class LiveWallpaperRenderer implements GLSurfaceView.Renderer {
             return;
         }
 
-        float globalAlpha = (mutableAlfa.getValue() != null) ? mutableAlfa.getValue() : 1.0f;
+        buildDrawList(transitionProgress);
+        for (int i = 0; i < drawCount; i++) {
+            drawLayers[i].draw(drawMatrices[i], drawAlphas[i]);
+            drawLayers[i] = null;
+        }
 
-        // Draw BACKGROUND layer first (di chuyển nhanh hơn)
-        if (backgroundLayer != null && backgroundLayer.isEnabled()) {
-            float bgScrollOffset = calculateParallaxScrollOffset(scrollOffsetX, BACKGROUND_PARALLAX_FACTOR);
-            float bgOrientationX = currentOrientationOffsetX * BACKGROUND_PARALLAX_FACTOR;
-            float bgOrientationY = currentOrientationOffsetY * BACKGROUND_PARALLAX_FACTOR;
+        hasLoggedNullWallpaper = false;
+        if (firstFrameRequestNanos != 0) {
+            Log.d(TAG, "First frame of " + shownForegroundKey + " from " + firstFrameSource + " "
+                    + (SystemClock.elapsedRealtimeNanos() - firstFrameRequestNanos) / 1_000_000
+                    + "ms after refreshWallpaper");
+            firstFrameRequestNanos = 0;
+        }
+        if (surfaceCreatedNanos != 0 && drawCount > 0) {
+            Log.d(TAG, "First frame " + (SystemClock.elapsedRealtimeNanos() - surfaceCreatedNanos) / 1_000_000
+                    + "ms after onSurfaceCreated, programs " + programCache.getSummary());
+            surfaceCreatedNanos = 0;
+        }
 
-            float bgX = preA * (-2 * bgScrollOffset + 1) + bgOrientationX;
-            float bgY = bgOrientationY;
+        if (wallpaperTransition.isRunning()) {
+            if (SystemClock.elapsedRealtimeNanos() - frameStartNanos > TRANSITION_FRAME_BUDGET_NANOS) {
+                overBudgetTransitionFrames++;
+            }
+            frameClock.requestRender();
+        } else if (outgoingForegroundLayer != null) {
+            finishWallpaperTransition();
+        }
+    }
 
-            Matrix.setLookAtM(mViewMatrix, 0, bgX, bgY, preB, bgX, bgY, 0f, 0f, 1.0f, 0.0f);
-            Matrix.multiplyMM(mMVPMatrixBackground, 0, mProjectionMatrix, 0, mViewMatrix, 0);
-            backgroundLayer.draw(mMVPMatrixBackground, globalAlpha);
+    /**
+     * Collect the layers of this frame back to front, each with its final
+     * matrix and alpha. A running transition adds the outgoing foreground.
+     */
+    private void buildDrawList(float transitionProgress) {
+        drawCount = 0;
+        for (int i = 0; i < layers.length; i++) {
+            ParallaxLayer layer = layers[i];
+            if (layer == null || !layer.isEnabled()) {
+                continue;
+            }
+            if (i == FOREGROUND_INDEX && (outgoingForegroundLayer != null || transitionProgress < 1f)) {
+                computeLayerMatrix(layer.getParallaxFactor(), mLayerMatrix);
+                float slideDistance = 2 * screenAspectRatio * Math.abs(preB);
+                if (outgoingForegroundLayer != null) {
+                    float alpha = wallpaperTransition.apply(mLayerMatrix, drawMatrices[drawCount],
+                            1f - transitionProgress, false, slideDistance);
+                    addDraw(outgoingForegroundLayer, alpha);
+                }
+                float alpha = wallpaperTransition.apply(mLayerMatrix, drawMatrices[drawCount],
+                        transitionProgress, true, slideDistance);
+                addDraw(layer, alpha);
+            } else {
+                computeLayerMatrix(layer.getParallaxFactor(), drawMatrices[drawCount]);
+                addDraw(layer, 1.0f);
+            }
         }
+    }
 
-        // Draw FOREGROUND layer on top (di chuyển chậm hơn)
-        if (foregroundLayer != null && foregroundLayer.isEnabled()) {
-            float fgScrollOffset = calculateParallaxScrollOffset(scrollOffsetX, FOREGROUND_PARALLAX_FACTOR);
-            float fgOrientationX = currentOrientationOffsetX * FOREGROUND_PARALLAX_FACTOR;
-            float fgOrientationY = currentOrientationOffsetY * FOREGROUND_PARALLAX_FACTOR;
+    private void addDraw(ParallaxLayer layer, float alpha) {
+        drawLayers[drawCount] = layer;
+        drawAlphas[drawCount] = alpha;
+        drawCount++;
+    }
 
-            float fgX = preA * (-2 * fgScrollOffset + 1) + fgOrientationX;
-            float fgY = fgOrientationY;
+    /**
+     * MVP matrix of a layer, faster layers move further for the same scroll and tilt
+     */
+    private void computeLayerMatrix(float parallaxFactor, float[] mvpMatrix) {
+        float scrollOffset = calculateParallaxScrollOffset(frameScrollOffsetX, parallaxFactor);
+        float x = preA * (-2 * scrollOffset + 1) + frameOffsetX * parallaxFactor;
+        float y = frameOffsetY * parallaxFactor;
 
-            Matrix.setLookAtM(mViewMatrix, 0, fgX, fgY, preB, fgX, fgY, 0f, 0f, 1.0f, 0.0f);
-            Matrix.multiplyMM(mMVPMatrixForeground, 0, mProjectionMatrix, 0, mViewMatrix, 0);
-            foregroundLayer.draw(mMVPMatrixForeground, globalAlpha);
-        }
+        Matrix.setLookAtM(mViewMatrix, 0, x, y, preB, x, y, 0f, 0f, 1.0f, 0.0f);
+        Matrix.multiplyMM(mvpMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
+    }
 
-        hasLoggedNullWallpaper = false;
+    private void startWallpaperTransition(ParallaxLayer outgoing) {
+        finishWallpaperTransition();
+        outgoingForegroundLayer = outgoing;
+        overBudgetTransitionFrames = 0;
+        wallpaperTransition.start(transitionType, SystemClock.elapsedRealtimeNanos());
+        frameClock.requestRender();
+    }
+
+    private void finishWallpaperTransition() {
+        if (outgoingForegroundLayer != null) {
+            outgoingForegroundLayer.destroy();
+            outgoingForegroundLayer = null;
+        }
+        if (overBudgetTransitionFrames > 0) {
+            Log.w(TAG, overBudgetTransitionFrames + " transition frames over budget");
+            overBudgetTransitionFrames = 0;
+        }
     }
 
     /**
@@ -208,7 +411,7 @@ public class LiveWallpaperRenderer implements GLSurfaceView.Renderer {
         }
 
         // Use foreground factor as baseline so foreground keeps original movement
-        float baseFactor = FOREGROUND_PARALLAX_FACTOR;
+        float baseFactor = LAYER_SPECS[FOREGROUND_INDEX].parallaxFactor;
         preA = screenAspectRatio * (scrollRange - 1) * baseFactor;
 
         if (screenAspectRatio < 1)
@@ -224,14 +427,31 @@ public class LiveWallpaperRenderer implements GLSurfaceView.Renderer {
         }
 
         screenAspectRatio = (float) width / (float) height;
-        screenH = height;
 
         GLES20.glViewport(0, 0, width, height);
         Matrix.frustumM(mProjectionMatrix, 0, -0.1f * screenAspectRatio,
                 0.1f * screenAspectRatio, -0.1f, 0.1f, 0.1f, 2);
 
+        // A recreated surface of the same size keeps the textures, they still fit
+        if (width == surfaceWidth && height == surfaceHeight) {
+            frameClock.requestRender();
+            return;
+        }
+        surfaceWidth = width;
+        surfaceHeight = height;
+
+        prefetcher.setTargetSize(width, height);
+        failedLayerKeys.clear();
+        for (int i = 0; i < LAYER_SPECS.length; i++) {
+            if (!LAYER_SPECS[i].isForeground()) {
+                pendingLayers[i] = true;
+                requestDecode(LAYER_SPECS[i].key, LAYER_SPECS[i]);
+            }
+        }
+        needsReloadLayers = true;
         needsRefreshWallpaper = true;
-        mCallbacks.requestRender();
+        requestDecode(getForegroundKey(), LAYER_SPECS[FOREGROUND_INDEX]);
+        frameClock.requestRender();
     }
 
     void setOffset(float offsetX, float offsetY) {
@@ -246,17 +466,32 @@ public class LiveWallpaperRenderer implements GLSurfaceView.Renderer {
     void setOffsetStep(float offsetStepX, float offsetStepY) {
         if (scrollStep != offsetStepX) {
             scrollStep = offsetStepX;
-            preCalculate();
+            needsPreCalculate = true;
         }
     }
 
-    void setOrientationAngle(float roll, float pitch) {
-        orientationOffsetX = (float) (biasRange * Math.sin(roll));
-        orientationOffsetY = (float) (biasRange * Math.sin(pitch));
+    /**
+     * Called from the sensor thread, the angles are filtered and applied on the next frame
+     * @param timestampNanos sensor event time
+     */
+    void setOrientationAngle(long timestampNanos, float roll, float pitch) {
+        motionPredictor.onAngles(timestampNanos, roll, pitch);
+    }
+
+    /**
+     * Level the picture while the sensor is off
+     */
+    void resetOrientationAngle() {
+        motionPredictor.reset();
+        frameClock.requestRender();
+    }
+
+    void setMotionFilter(int filterType) {
+        motionPredictor.setFilterType(filterType);
     }
 
     void setNewFaceRotation(int face) {
-        EventBus.getDefault().post(new FaceRotationEvent(face));
+        OrientationChannel.get().publishFace(face);
     }
 
     void setBiasRange(int multiples) {
@@ -267,16 +502,24 @@ public class LiveWallpaperRenderer implements GLSurfaceView.Renderer {
             currentOrientationOffsetY = 0f;
             orientationOffsetX = 0f;
             orientationOffsetY = 0f;
+            frameOrientationOffsets.set(0f, 0f);
         } else {
             biasRange = multiples * MAX_BIAS_RANGE + 0.03f;
             startTransition();
         }
-        preCalculate();
-        mCallbacks.requestRender();
+        needsPreCalculate = true;
+        frameClock.requestRender();
+    }
+
+    /**
+     * Refresh rate of the display, the frame work target
+     */
+    void setTargetFrameRate(float framesPerSecond) {
+        frameWork.setTargetFrameRate(framesPerSecond);
     }
 
     void setDelay(int delay) {
-        this.delay = delay;
+        motionPredictor.setDelay(delay);
     }
 
     void setScrollMode(boolean scrollMode) {
@@ -301,207 +544,398 @@ public class LiveWallpaperRenderer implements GLSurfaceView.Renderer {
         this.wallpaperType = wallpaperType;
     }
 
+    /**
+     * Change the foreground wallpaper with a transition. The transition starts on
+     * the GL thread once the new wallpaper is decoded and uploaded, so no frame of
+     * it waits for decode work.
+     */
     void refreshWallpaper(String wallpaperPath, boolean isDefault) {
-        Runnable fadeOutThenInRunnable = new Runnable() {
-            private float alpha = 1.0f;
-            private boolean fadeOutComplete = false;
-            private boolean wallpaperChanged = false;
-
-            @Override
-            public void run() {
-                if (!fadeOutComplete) {
-                    alpha -= 0.05f;
-
-                    if (alpha <= 0.0f) {
-                        alpha = 0.0f;
-                        fadeOutComplete = true;
-
-                        if (!wallpaperChanged) {
-                            setLocalWallpaperPath(wallpaperPath);
-                            setIsDefaultWallpaper(isDefault);
-                            needsRefreshWallpaper = true;
-                            wallpaperChanged = true;
-
-                            animationHandler.postDelayed(this, 50);
-                            mutableAlfa.setValue(alpha);
-                            mCallbacks.requestRender();
-                            return;
-                        }
-                    }
-                } else {
-                    alpha += 0.04f;
+        String key = getForegroundKey(wallpaperPath, isDefault);
+        setLocalWallpaperPath(wallpaperPath);
+        setIsDefaultWallpaper(isDefault);
+        // Already on screen, e.g. our own preference write coming back
+        if (key.equals(shownForegroundKey) && !needsRefreshWallpaper) {
+            return;
+        }
+        refreshRequestNanos = SystemClock.elapsedRealtimeNanos();
+        requestDecode(key, LAYER_SPECS[FOREGROUND_INDEX]);
+        failedForegroundKey = null;
+        animateNextForeground = true;
+        needsRefreshWallpaper = true;
+        frameClock.requestRender();
+    }
 
-                    if (alpha >= 1.0f) {
-                        alpha = 1.0f;
-                        mutableAlfa.setValue(alpha);
-                        mCallbacks.requestRender();
-                        return;
-                    }
+    void setTransitionType(int transitionType) {
+        this.transitionType = transitionType;
+    }
+
+    /**
+     * Decode upcoming wallpapers in the background so changing to them is instant
+     */
+    void prefetchWallpapers(List<String> wallpaperPaths, boolean isDefault) {
+        List<String> keys = new ArrayList<>(wallpaperPaths.size());
+        LayerSpec spec = LAYER_SPECS[FOREGROUND_INDEX];
+        for (String path : wallpaperPaths) {
+            String key = getForegroundKey(path, isDefault);
+            if (!sharedTextures.contains(shareGroup, key, getLayerWidth(spec), getLayerHeight(spec))) {
+                keys.add(key);
+            }
+        }
+        prefetcher.prefetch(keys);
+    }
+
+    @Override
+    public void onWallpaperDecoded(String key) {
+        if (needsRefreshWallpaper || needsReloadLayers) {
+            frameClock.requestRender();
+        }
+    }
+
+    @Override
+    public void onWallpaperFailed(String key) {
+        if (isFixedLayerKey(key)) {
+            failedLayerKeys.add(key);
+        } else if (key.equals(getForegroundKey())) {
+            failedForegroundKey = key;
+            if (!KEY_DEFAULT.equals(key)) {
+                refreshWallpaper(DEFAULT_LOCAL_PATH, true);
+            }
+        }
+        frameClock.requestRender();
+    }
+
+    /**
+     * Decode a wallpaper for a layer unless another engine already uploaded it
+     */
+    private void requestDecode(String key, LayerSpec spec) {
+        if (!uploads.containsKey(key) && !sharedTextures.contains(shareGroup, key, getLayerWidth(spec), getLayerHeight(spec))) {
+            prefetcher.request(key);
+        }
+    }
+
+    private int getLayerWidth(LayerSpec spec) {
+        return LayerSpec.scaleSize(surfaceWidth, spec.resolutionScale);
+    }
+
+    private int getLayerHeight(LayerSpec spec) {
+        return LayerSpec.scaleSize(surfaceHeight, spec.resolutionScale);
+    }
+
+    /**
+     * Get a wallpaper from the shared cache, or upload the decoded one and share it.
+     * Uploads run on the loader thread, or without one a few tiles per frame.
+     * @return the entry, holding one reference, or null if it isn't decoded or
+     * completely uploaded yet
+     */
+    private SharedTextureCache.Entry obtainWallpaper(String key, LayerSpec spec) {
+        final int width = getLayerWidth(spec);
+        final int height = getLayerHeight(spec);
+        SharedTextureCache.Entry entry = sharedTextures.acquire(shareGroup, key, width, height);
+        Upload upload = uploads.get(key);
+        if (upload != null && (entry != null || upload.width != width || upload.height != height)) {
+            // Another engine was faster, or the upload is for an old surface size
+            uploads.remove(key);
+            upload.cancel();
+            upload = null;
+        }
+        WallpaperDecoder.Decoded decoded = prefetcher.take(key);
+        if (entry != null) {
+            if (decoded != null) decoded.recycle();
+            return entry;
+        }
+        if (upload == null) {
+            if (decoded != null && decoded.isHardware()) {
+                HardwareBitmapTexture texture = HardwareBitmapTexture.create(decoded.bitmap,
+                        frameClock::requestRender);
+                if (texture != null) {
+                    upload = new Upload(texture, width, height, decoded.aspectRatio);
+                } else {
+                    // Don't try again, upload this one and decode the next ones in memory
+                    Log.w(TAG, "Hardware bitmaps not usable, uploading instead");
+                    setHardwareBitmaps(false);
+                    decoded = decoded.toSoftware();
                 }
+            }
+        }
+        if (upload == null) {
+            if (decoded == null) {
+                return null;
+            }
+            TextureLoader loader = textureLoader;
+            if (loader != null) {
+                upload = new Upload(loader.submit(key, decoded), width, height, decoded.aspectRatio);
+            } else if (decoded.texture != null) {
+                long uploadStart = SystemClock.elapsedRealtime();
+                Wallpaper wallpaper = new Wallpaper(decoded.texture);
+                // Other contexts of the share group may only use the textures once they're complete
+                GLES20.glFinish();
+                Log.d(TAG, "Uploaded " + key + " texture in "
+                        + (SystemClock.elapsedRealtime() - uploadStart) + "ms");
+                return sharedTextures.publish(shareGroup, key, width, height,
+                        wallpaper, decoded.aspectRatio);
+            } else {
+                upload = new Upload(new TileUploader(decoded.bitmap), width, height,
+                        decoded.aspectRatio);
+            }
+            uploads.put(key, upload);
+        } else if (decoded != null) {
+            // Decoded again while uploading, the upload has the same pixels
+            decoded.recycle();
+        }
 
-                mutableAlfa.setValue(alpha);
-                mCallbacks.requestRender();
-                animationHandler.postDelayed(this, 16);
+        final Wallpaper wallpaper;
+        if (upload.job != null) {
+            if (upload.job.isFailed()) {
+                // Upload here from now on, the caller asks for a new decode
+                Log.w(TAG, "Loader failed on " + key + ", uploading on the GL thread");
+                releaseTextureLoader();
+                return null;
+            }
+            wallpaper = upload.job.poll();
+            if (wallpaper == null) {
+                // The loader asks for a frame when it's done, after that the fence is polled
+                if (upload.job.isUploaded()) frameClock.requestRender();
+                return null;
             }
-        };
+        } else if (upload.hardware != null) {
+            if (!upload.hardware.poll()) {
+                // Asks for a frame once the bitmap is drawn
+                return null;
+            }
+            wallpaper = new Wallpaper(upload.hardware);
+            // Other contexts wait for the frame as well
+            GLES20.glFinish();
+        } else {
+            if (!upload.tiles.step(UPLOAD_FRAME_BUDGET_NANOS)) {
+                // The current wallpaper stays until all tiles are there
+                frameClock.requestRender();
+                return null;
+            }
+            wallpaper = new Wallpaper(upload.tiles);
+            GLES20.glFinish();
+            Log.d(TAG, "Uploaded " + key + " bitmap, " + upload.tiles.getSummary());
+        }
+        uploads.remove(key);
+        return sharedTextures.publish(shareGroup, key, width, height,
+                wallpaper, upload.aspectRatio);
+    }
+
+    @Override
+    public void onUploadFinished(String key) {
+        frameClock.requestRender();
+    }
+
+    /**
+     * Cancel unfinished uploads and delete what they uploaded so far
+     */
+    private void cancelUploads() {
+        for (Upload upload : uploads.values()) {
+            upload.cancel();
+        }
+        uploads.clear();
+    }
 
-        animationHandler.post(fadeOutThenInRunnable);
+    /**
+     * Drop unfinished uploads without GL calls here. Loader jobs delete their
+     * textures on the loader thread, tiles and hardware textures go with the context.
+     */
+    private void abandonUploads() {
+        for (Upload upload : uploads.values()) {
+            if (upload.job != null) {
+                upload.job.cancel();
+            } else if (upload.tiles != null) {
+                upload.tiles.abandon();
+            } else {
+                upload.hardware.abandon();
+            }
+        }
+        uploads.clear();
     }
 
-    private void transitionCal() {
+    /**
+     * Cancel the loader's jobs, their wallpapers are decoded again when asked for.
+     * GL thread only.
+     */
+    private void releaseTextureLoader() {
+        TextureLoader loader = textureLoader;
+        if (loader == null) return;
+        textureLoader = null;
+        Iterator<Upload> iterator = uploads.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().job != null) iterator.remove();
+        }
+        loader.release();
+    }
+
+    private String getForegroundKey() {
+        return getForegroundKey(localWallpaperPath, isDefaultWallpaper);
+    }
+
+    private String getForegroundKey(String wallpaperPath, boolean isDefault) {
+        if ((wallpaperType == TYPE_SINGLE && isDefault) || wallpaperPath == null) {
+            return KEY_DEFAULT;
+        }
+        return wallpaperPath;
+    }
+
+    /**
+     * Move the orientation to where the filtered sensor pose will be when this
+     * frame is displayed
+     * @return true if anything moved and the frame needs to be rendered
+     */
+    private boolean transitionCal(long frameTimeNanos) {
         boolean needRefresh = false;
 
+        float frameSeconds = lastFrameTimeNanos == 0 ? REFERENCE_FRAME_SECONDS
+                : Math.min(MAX_FRAME_SECONDS, (frameTimeNanos - lastFrameTimeNanos) / 1e9f);
+        lastFrameTimeNanos = frameTimeNanos;
+
+        // Vsync times are System.nanoTime() based, sensor times elapsedRealtimeNanos()
+        // based. The frame prepared now reaches the screen on the next vsync.
+        long displayTimeNanos = frameTimeNanos + (SystemClock.elapsedRealtimeNanos() - System.nanoTime())
+                + (long) (frameSeconds * 1e9f);
+        motionPredictor.predict(displayTimeNanos, predictedAngles);
+        orientationOffsetX = (float) (biasRange * Math.sin(predictedAngles[0]));
+        orientationOffsetY = (float) (biasRange * Math.sin(predictedAngles[1]));
         if (Math.abs(currentOrientationOffsetX - orientationOffsetX) > .0001
                 || Math.abs(currentOrientationOffsetY - orientationOffsetY) > .0001) {
-
-            if (delay == 1) {
-                currentOrientationOffsetX += (orientationOffsetX - currentOrientationOffsetX) * 0.8f;
-                currentOrientationOffsetY += (orientationOffsetY - currentOrientationOffsetY) * 0.8f;
-            } else {
-                float transitionStep = REFRESH_RATE / LiveWallpaperService.SENSOR_RATE;
-                float tinyOffsetX = (orientationOffsetX - currentOrientationOffsetX)
-                        / (transitionStep * delay);
-                float tinyOffsetY = (orientationOffsetY - currentOrientationOffsetY)
-                        / (transitionStep * delay);
-                currentOrientationOffsetX += tinyOffsetX;
-                currentOrientationOffsetY += tinyOffsetY;
-            }
-            EventBus.getDefault().post(new BiasChangeEvent(currentOrientationOffsetX / biasRange,
-                    currentOrientationOffsetY / biasRange));
+            currentOrientationOffsetX = orientationOffsetX;
+            currentOrientationOffsetY = orientationOffsetY;
+            frameOrientationOffsets.set(currentOrientationOffsetX, currentOrientationOffsetY);
+            OrientationChannel.get().publishBias(currentOrientationOffsetX / biasRange,
+                    currentOrientationOffsetY / biasRange);
             needRefresh = true;
         }
         if (!scrollOffsetXQueue.isEmpty()) {
             scrollOffsetX = scrollOffsetXQueue.poll();
             needRefresh = true;
         }
-        if (needRefresh) mCallbacks.requestRender();
+        if (idle && !needRefresh) {
+            stoppedForIdle = true;
+            frameClock.stop();
+        }
+        return needRefresh;
     }
 
     /**
-     * Load both background and foreground textures
+     * Upload the decoded textures of all layers. Layers that are still being
+     * decoded stay pending and are picked up on a later frame.
      */
     private void loadTextures() {
-        System.gc();
-
-        // Load BACKGROUND layer (default from drawable)
-        Bitmap backgroundBitmap = loadBackgroundBitmap();
-        if (backgroundBitmap != null) {
-            if (backgroundLayer != null) {
-                backgroundLayer.destroy();
-            }
-            Bitmap croppedBg = cropBitmap(backgroundBitmap);
-            backgroundLayer = new ParallaxLayer(croppedBg, BACKGROUND_PARALLAX_FACTOR,
-                    BACKGROUND_ALPHA, "Background");
-        }
-
-        // Load FOREGROUND layer (user selected image)
-        FileInputStream is = null;
-        if (wallpaperType == TYPE_SINGLE) {
-            if (!isDefaultWallpaper) {
-                try {
-                    is = new FileInputStream(localWallpaperPath);
-                } catch (FileNotFoundException e) {
-                    Log.e(TAG, "FileNotFoundException for foreground: " + localWallpaperPath, e);
-                    refreshWallpaper(DEFAULT_LOCAL_PATH, true);
+        if (needsReloadLayers) {
+            boolean pending = false;
+            for (int i = 0; i < LAYER_SPECS.length; i++) {
+                if (!pendingLayers[i]) continue;
+                LayerSpec spec = LAYER_SPECS[i];
+                if (failedLayerKeys.contains(spec.key)) {
+                    pendingLayers[i] = false;
+                    continue;
                 }
-            } else {
-                try {
-                    AssetFileDescriptor fileDescriptor = mContext.getAssets().openFd(Constant.DEFAULT_WALLPAPER_NAME);
-                    is = fileDescriptor.createInputStream();
-                } catch (IOException e) {
-                    Log.e(TAG, "IOException loading default foreground", e);
+                SharedTextureCache.Entry entry = obtainWallpaper(spec.key, spec);
+                if (entry != null) {
+                    if (layers[i] != null) {
+                        layers[i].destroy();
+                    }
+                    if (layers[FOREGROUND_INDEX] == null) {
+                        wallpaperAspectRatio = entry.aspectRatio;
+                    }
+                    layers[i] = new ParallaxLayer(entry.wallpaper, sharedTextures,
+                            spec.parallaxFactor, spec.alpha, spec.name);
+                    pendingLayers[i] = false;
+                } else {
+                    requestDecode(spec.key, spec);
+                    pending = true;
                 }
             }
-        } else {
-            try {
-                is = new FileInputStream(localWallpaperPath);
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "FileNotFoundException for foreground: " + localWallpaperPath, e);
-                refreshWallpaper(DEFAULT_LOCAL_PATH, true);
-            }
+            needsReloadLayers = pending;
         }
 
-        if (is != null) {
-            if (foregroundLayer != null) {
-                foregroundLayer.destroy();
-            }
-            Bitmap foregroundBmp = cropBitmap(is);
-            foregroundLayer = new ParallaxLayer(foregroundBmp, FOREGROUND_PARALLAX_FACTOR,
-                    FOREGROUND_ALPHA, "Foreground");
-            try {
-                is.close();
-            } catch (IOException e) {
-                Log.e(TAG, "IOException closing foreground stream", e);
+        // Uploads wait for a running transition to finish, so its frames stay within budget
+        if (needsRefreshWallpaper && !wallpaperTransition.isRunning()) {
+            String foregroundKey = getForegroundKey();
+            if (foregroundKey.equals(failedForegroundKey)) {
+                // Keep showing the previous foreground, the failure callback handles the rest
+                needsRefreshWallpaper = false;
+            } else {
+                LayerSpec spec = LAYER_SPECS[FOREGROUND_INDEX];
+                SharedTextureCache.Entry foreground = obtainWallpaper(foregroundKey, spec);
+                if (foreground != null) {
+                    ParallaxLayer previous = layers[FOREGROUND_INDEX];
+                    wallpaperAspectRatio = foreground.aspectRatio;
+                    layers[FOREGROUND_INDEX] = new ParallaxLayer(foreground.wallpaper, sharedTextures,
+                            spec.parallaxFactor, spec.alpha, spec.name);
+                    shownForegroundKey = foregroundKey;
+                    firstFrameRequestNanos = refreshRequestNanos;
+                    refreshRequestNanos = 0;
+                    firstFrameSource = foreground.wallpaper.isHardware() ? "hardware bitmap" : "upload";
+                    if (animateNextForeground) {
+                        animateNextForeground = false;
+                        startWallpaperTransition(previous);
+                    } else if (previous != null) {
+                        previous.destroy();
+                    }
+                    // The path may have changed again while we were uploading
+                    if (foregroundKey.equals(getForegroundKey())) {
+                        needsRefreshWallpaper = false;
+                    }
+                } else {
+                    requestDecode(foregroundKey, spec);
+                }
             }
         }
 
         preCalculate();
-        System.gc();
+    }
+
+    interface Callbacks {
+        void requestRender();
     }
 
     /**
-     * Load default background image from drawable
+     * An upload on the loader thread, in frame sized steps or a hardware bitmap being
+     * drawn, with the layer size it is for. Exactly one of the three is set.
      */
-    private Bitmap loadBackgroundBitmap() {
-        try {
-            // Tên file: parallax_background.png trong drawable
-            Bitmap bitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.parallax_background);
-            Log.d(TAG, "Loaded parallax_background successfully");
-            return bitmap;
-        } catch (Exception e) {
-            Log.e(TAG, "Error loading parallax_background from drawable", e);
-            return null;
+    private static class Upload {
+        final TextureLoader.Job job;
+        final TileUploader tiles;
+        final HardwareBitmapTexture hardware;
+        final int width;
+        final int height;
+        final float aspectRatio;
+
+        Upload(TextureLoader.Job job, int width, int height, float aspectRatio) {
+            this(job, null, null, width, height, aspectRatio);
         }
-    }
 
-    private Bitmap cropBitmap(InputStream is) {
-        Bitmap src = BitmapFactory.decodeStream(is);
-        if (src == null) {
-            Log.e(TAG, "cropBitmap: BitmapFactory returned null");
-            return null;
+        Upload(TileUploader tiles, int width, int height, float aspectRatio) {
+            this(null, tiles, null, width, height, aspectRatio);
         }
-        return cropBitmap(src);
-    }
-
-    private Bitmap cropBitmap(Bitmap src) {
-        if (src == null) return null;
 
-        final float width = src.getWidth();
-        final float height = src.getHeight();
-        if (height == 0) {
-            Log.e(TAG, "cropBitmap: height is zero");
-            src.recycle();
-            return null;
+        Upload(HardwareBitmapTexture hardware, int width, int height, float aspectRatio) {
+            this(null, null, hardware, width, height, aspectRatio);
         }
-        wallpaperAspectRatio = width / height;
 
-        if (wallpaperAspectRatio < screenAspectRatio) {
-            scrollRange = 1;
-            Bitmap tmp = Bitmap.createBitmap(src, 0,
-                    (int) (height - width / screenAspectRatio) / 2,
-                    (int) width, (int) (width / screenAspectRatio));
-            src.recycle();
-            if (tmp.getHeight() > 1.1 * screenH) {
-                Bitmap result = Bitmap.createScaledBitmap(tmp,
-                        (int) (1.1 * screenH * screenAspectRatio),
-                        (int) (1.1 * screenH), true);
-                tmp.recycle();
-                return result;
-            } else
-                return tmp;
-        } else {
-            if (src.getHeight() > 1.1 * screenH) {
-                Bitmap result = Bitmap.createScaledBitmap(src,
-                        (int) (1.1 * screenH * wallpaperAspectRatio),
-                        (int) (1.1 * screenH), true);
-                src.recycle();
-                return result;
-            } else
-                return src;
+        private Upload(TextureLoader.Job job, TileUploader tiles, HardwareBitmapTexture hardware,
+                       int width, int height, float aspectRatio) {
+            this.job = job;
+            this.tiles = tiles;
+            this.hardware = hardware;
+            this.width = width;
+            this.height = height;
+            this.aspectRatio = aspectRatio;
         }
-    }
 
-    interface Callbacks {
-        void requestRender();
+        /**
+         * GL thread only
+         */
+        void cancel() {
+            if (job != null) {
+                job.cancel();
+            } else if (tiles != null) {
+                tiles.cancel();
+            } else {
+                hardware.destroy();
+            }
+        }
     }
 }
\ No newline at end of file
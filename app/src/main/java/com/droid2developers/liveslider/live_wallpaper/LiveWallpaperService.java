@@ -8,13 +8,16 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
+import android.hardware.display.DisplayManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.PowerManager;
 import android.util.Log;
+import android.view.Display;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import androidx.lifecycle.Observer;
@@ -30,14 +33,37 @@ import java.util.List;
 
 import static com.droid2developers.liveslider.utils.Constant.DEFAULT_LOCAL_PATH;
 import static com.droid2developers.liveslider.utils.Constant.DEFAULT_SLIDESHOW_TIME;
+import static com.droid2developers.liveslider.utils.Constant.MOTION_FILTER_ONE_EURO;
 import static com.droid2developers.liveslider.utils.Constant.PLAYLIST_NONE;
+import static com.droid2developers.liveslider.utils.Constant.TRANSITION_CROSSFADE;
 import static com.droid2developers.liveslider.utils.Constant.TYPE_SINGLE;
 
 public class LiveWallpaperService extends GLWallpaperService {
 
     private final static String TAG = LiveWallpaperService.class.getSimpleName();
     public static final int SENSOR_RATE = 60;
+    // Sensor rate while the device is lying still, just enough to notice it being picked up
+    private static final int IDLE_SENSOR_RATE = 15;
+    // Number of upcoming playlist wallpapers decoded ahead of time
+    private static final int PREFETCH_COUNT = 2;
+    // Double taps within this long after a change are merged into the next one
+    private static final long DOUBLE_TAP_COALESCE_MS = 250;
+    // Shared by the home screen, lock screen and preview engines
+    private static final SharedTextureCache sharedTextures = new SharedTextureCache();
+    // One sensor registration for all engines
+    private SensorHub sensorHub;
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        sensorHub = new SensorHub(this, SENSOR_RATE, IDLE_SENSOR_RATE);
+    }
+
+    @Override
+    public void onDestroy() {
+        sensorHub.release();
+        super.onDestroy();
+    }
 
     @Override
     public Engine onCreateEngine() {
@@ -45,13 +71,14 @@ public class LiveWallpaperService extends GLWallpaperService {
     }
 
     class ParallaxEngine extends GLEngine implements LiveWallpaperRenderer.Callbacks,
-            SharedPreferences.OnSharedPreferenceChangeListener, RotationSensor.Callback {
+            SharedPreferences.OnSharedPreferenceChangeListener, SensorHub.Subscriber {
 
         private SharedPreferences prefs;
         private SharedPreferences.Editor editor;
         private LiveWallpaperRenderer renderer;
-        private RotationSensor rotationSensor;
         private BroadcastReceiver powerSaverChangeReceiver;
+        // Read for every sensor event, so looked up once per surface change
+        private volatile boolean landscape;
 
         private boolean pauseInSavePowerMode = false;
         private boolean savePowerMode = false;
@@ -77,6 +104,10 @@ public class LiveWallpaperService extends GLWallpaperService {
             incrementWallpaper();
             changeWallpaper();
         };
+        private final Runnable coalescedChange = this::endCoalescing;
+        // Set while a double tap change is in flight, main thread only
+        private boolean coalescing;
+        private boolean changePending;
 
 
         @Override
@@ -85,14 +116,16 @@ public class LiveWallpaperService extends GLWallpaperService {
             super.onCreate(surfaceHolder);
             setEGLContextClientVersion(2);
             setEGLConfigChooser(8, 8, 8, 0, 0, 0);
+            // Unlocking or going home shouldn't reload the textures
+            setPreserveEGLContextOnPause(true);
+            // Engines draw each other's textures, see SharedTextureCache
+            setShareEGLContext(true);
             
             // initial Setup of LiveWallpaper
-            renderer = new LiveWallpaperRenderer(LiveWallpaperService.this.getApplicationContext(), this);
+            renderer = new LiveWallpaperRenderer(LiveWallpaperService.this.getApplicationContext(),
+                    this, sharedTextures);
             setRenderer(renderer);
             setRenderMode(RENDERMODE_WHEN_DIRTY);
-            rotationSensor = new RotationSensor(LiveWallpaperService.this.getApplicationContext(),
-                    this, SENSOR_RATE);
-
 
             // Shared Preferences initialization
             prefs = PreferenceManager.getDefaultSharedPreferences(LiveWallpaperService.this);
@@ -108,16 +141,19 @@ public class LiveWallpaperService extends GLWallpaperService {
             setPowerSaverEnabled(prefs.getBoolean("power_saver", true));
             setSlideShowEnabled(prefs.getBoolean("slideshow",false));
             renderer.setWallpaperType(prefs.getInt("type",TYPE_SINGLE));
+            renderer.setTransitionType(prefs.getInt("transition", TRANSITION_CROSSFADE));
+            renderer.setMotionFilter(prefs.getInt("motion_filter", MOTION_FILTER_ONE_EURO));
             setAllowClickToChange(prefs.getBoolean("double_tap",false));
             setCurrentPlaylist(prefs.getString("current_playlist",PLAYLIST_NONE));
             setTimer(prefs.getLong("slideshow_timer", DEFAULT_SLIDESHOW_TIME));
 
             // Set initial calibration mode
-            rotationSensor.setCalibrationMode(prefs.getInt("calibration_mode", 0)); // 0 = CALIBRATION_DEFAULT
+            sensorHub.setCalibrationMode(prefs.getInt("calibration_mode", 0)); // 0 = CALIBRATION_DEFAULT
 
             // Set initial face switch animation duration (default 400ms, or from prefs if available)
             int delayPref = prefs.getInt("delay", 10);
-            rotationSensor.setFaceSwitchAnimationDurationFromDelay(delayPref);
+            sensorHub.setFaceSwitchAnimationDurationFromDelay(delayPref);
+            sensorHub.setTraceEnabled(prefs.getBoolean("record_sensor_trace", false));
 
             // Adding touch listeners for touch feedback
             setTouchEventsEnabled(true);
@@ -131,8 +167,11 @@ public class LiveWallpaperService extends GLWallpaperService {
         public void onDestroy() {
             // Unregister this as listener
             Log.d(TAG, "onDestroy: ");
-            rotationSensor.unregister();
+            sensorHub.stop(this);
             handler.removeCallbacks(slideshow);
+            handler.removeCallbacks(coalescedChange);
+            coalescing = false;
+            changePending = false;
             if(powerSaverChangeReceiver != null) {
                 unregisterReceiver(powerSaverChangeReceiver);
             }
@@ -149,7 +188,8 @@ public class LiveWallpaperService extends GLWallpaperService {
         public void onVisibilityChanged(boolean visible) {
             if (!pauseInSavePowerMode || !savePowerMode) {
                 if (visible) {
-                    rotationSensor.register();
+                    renderer.setIdle(false);
+                    sensorHub.start(this);
                     renderer.startTransition();
                     if (isSlideShowEnabled){
                         if (systemTime() - timeStarted + 100 < timer) {
@@ -163,7 +203,7 @@ public class LiveWallpaperService extends GLWallpaperService {
                     }
 
                 } else {
-                    rotationSensor.unregister();
+                    sensorHub.stop(this);
                     handler.removeCallbacks(slideshow);
                     renderer.stopTransition();
                 }
@@ -194,11 +234,10 @@ public class LiveWallpaperService extends GLWallpaperService {
 
 
         @Override
-        public void onSensorChanged(float[] angle) {
-            if (getResources().getConfiguration().orientation == Configuration
-                    .ORIENTATION_LANDSCAPE)
-                renderer.setOrientationAngle(angle[1], angle[2]);
-            else renderer.setOrientationAngle(-angle[2], angle[1]);
+        public void onSensorChanged(long timestampNanos, float[] angle) {
+            if (landscape)
+                renderer.setOrientationAngle(timestampNanos, angle[1], angle[2]);
+            else renderer.setOrientationAngle(timestampNanos, -angle[2], angle[1]);
         }
 
         @Override
@@ -206,6 +245,37 @@ public class LiveWallpaperService extends GLWallpaperService {
             renderer.setNewFaceRotation(face);
         }
 
+        @Override
+        public void onIdleStateChanged(boolean idle) {
+            renderer.setIdle(idle);
+        }
+
+        @Override
+        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            landscape = getResources().getConfiguration().orientation
+                    == Configuration.ORIENTATION_LANDSCAPE;
+            super.onSurfaceChanged(holder, format, width, height);
+        }
+
+        @Override
+        public void onSurfaceCreated(SurfaceHolder holder) {
+            super.onSurfaceCreated(holder);
+            setFrameRateHint(holder);
+        }
+
+        // Let the compositor run the wallpaper surface at the panel's native refresh rate
+        private void setFrameRateHint(SurfaceHolder holder) {
+            DisplayManager displayManager = (DisplayManager) getSystemService(Context.DISPLAY_SERVICE);
+            Display display = displayManager != null
+                    ? displayManager.getDisplay(Display.DEFAULT_DISPLAY) : null;
+            if (display == null) return;
+            renderer.setTargetFrameRate(display.getRefreshRate());
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) return;
+            Surface surface = holder.getSurface();
+            if (surface == null || !surface.isValid()) return;
+            surface.setFrameRate(display.getRefreshRate(), Surface.FRAME_RATE_COMPATIBILITY_DEFAULT);
+        }
+
         @Override
         public void onSurfaceDestroyed(SurfaceHolder holder) {
             super.onSurfaceDestroyed(holder);
@@ -214,6 +284,8 @@ public class LiveWallpaperService extends GLWallpaperService {
 
         @Override
         public void requestRender() {
+            // Frames while idle still want the latest batched pose
+            sensorHub.flush();
             super.requestRender();
         }
 
@@ -227,7 +299,7 @@ public class LiveWallpaperService extends GLWallpaperService {
                 case "delay":
                     int delay = sharedPreferences.getInt("delay", 10);
                     renderer.setDelay(21 - delay);
-                    rotationSensor.setFaceSwitchAnimationDurationFromDelay(delay);
+                    sensorHub.setFaceSwitchAnimationDurationFromDelay(delay);
                     break;
                 case "scroll":
                     Log.d(TAG, "onSharedPreferenceChanged: " + sharedPreferences.getBoolean(key, true));
@@ -244,6 +316,12 @@ public class LiveWallpaperService extends GLWallpaperService {
                 case "type":
                     renderer.setWallpaperType(sharedPreferences.getInt(key, TYPE_SINGLE));
                     break;
+                case "transition":
+                    renderer.setTransitionType(sharedPreferences.getInt(key, TRANSITION_CROSSFADE));
+                    break;
+                case "motion_filter":
+                    renderer.setMotionFilter(sharedPreferences.getInt(key, MOTION_FILTER_ONE_EURO));
+                    break;
                 case "slideshow":
                     setSlideShowEnabled(prefs.getBoolean("slideshow",false));
                     break;
@@ -261,9 +339,12 @@ public class LiveWallpaperService extends GLWallpaperService {
                     break;
                 case "calibration_mode":
                     int calibrationMode = sharedPreferences.getInt(key, 0); // 0 = DEFAULT
-                    rotationSensor.setCalibrationMode(calibrationMode);
+                    sensorHub.setCalibrationMode(calibrationMode);
                     Log.d(TAG, "Calibration mode changed to: " + calibrationMode);
                     break;
+                case "record_sensor_trace":
+                    sensorHub.setTraceEnabled(sharedPreferences.getBoolean(key, false));
+                    break;
             }
         }
 
@@ -282,10 +363,10 @@ public class LiveWallpaperService extends GLWallpaperService {
                             savePowerMode = pm.isPowerSaveMode();
                         }
                         if (savePowerMode && isVisible()) {
-                            rotationSensor.unregister();
-                            renderer.setOrientationAngle(0, 0);
+                            sensorHub.stop(ParallaxEngine.this);
+                            renderer.resetOrientationAngle();
                         } else if (!savePowerMode && isVisible()) {
-                            rotationSensor.register();
+                            sensorHub.start(ParallaxEngine.this);
                         }
                     }
                 };
@@ -297,14 +378,14 @@ public class LiveWallpaperService extends GLWallpaperService {
                     savePowerMode = pm.isPowerSaveMode();
                 }
                 if (savePowerMode && isVisible()) {
-                    rotationSensor.unregister();
-                    renderer.setOrientationAngle(0, 0);
+                    sensorHub.stop(this);
+                    renderer.resetOrientationAngle();
                 }
             } else {
                 unregisterReceiver(powerSaverChangeReceiver);
                 savePowerMode = pm.isPowerSaveMode();
                 if (savePowerMode && isVisible()) {
-                    rotationSensor.register();
+                    sensorHub.start(this);
                 }
 
             }
@@ -355,6 +436,7 @@ public class LiveWallpaperService extends GLWallpaperService {
                     String localWallpaperPath = playlistWallpapers.get(mImagesArrayIndex).getLocalPath();
                     boolean isDefault = prefs.getBoolean("default_wallpaper", true);
                     renderer.refreshWallpaper(localWallpaperPath, isDefault);
+                    prefetchUpcomingWallpapers(isDefault);
                     //mRepository.getPlaylistWallpapers(playlistId).removeObserver(this);
                 });
             }
@@ -369,6 +451,30 @@ public class LiveWallpaperService extends GLWallpaperService {
             }
             Log.d(TAG, "incrementCounter: " + mImagesArrayIndex);
         }
+
+        // The first double tap changes right away, taps during that change only
+        // move the index and are applied together once it's done
+        void requestNextWallpaper() {
+            incrementWallpaper();
+            if (coalescing) {
+                changePending = true;
+                return;
+            }
+            changeWallpaper();
+            coalescing = true;
+            handler.postDelayed(coalescedChange, DOUBLE_TAP_COALESCE_MS);
+        }
+
+        private void endCoalescing() {
+            coalescing = false;
+            if (changePending) {
+                changePending = false;
+                changeWallpaper();
+                coalescing = true;
+                handler.postDelayed(coalescedChange, DOUBLE_TAP_COALESCE_MS);
+            }
+        }
+
         void changeWallpaper(){
 
             if (!playlistWallpapers.isEmpty()){
@@ -376,6 +482,7 @@ public class LiveWallpaperService extends GLWallpaperService {
                 editor.putString("local_wallpaper_path", localWallpaperPath).apply();
                 boolean isDefault = prefs.getBoolean("default_wallpaper", true);
                 renderer.refreshWallpaper(localWallpaperPath, isDefault);
+                prefetchUpcomingWallpapers(isDefault);
 
                 handler.removeCallbacks(slideshow);
                 if (isVisible()){
@@ -388,6 +495,15 @@ public class LiveWallpaperService extends GLWallpaperService {
             
             
         }
+        private void prefetchUpcomingWallpapers(boolean isDefault) {
+            int size = playlistWallpapers.size();
+            List<String> upcoming = new ArrayList<>(PREFETCH_COUNT);
+            for (int i = 1; i <= PREFETCH_COUNT && i < size; i++) {
+                upcoming.add(playlistWallpapers.get((mImagesArrayIndex + i) % size).getLocalPath());
+            }
+            renderer.prefetchWallpapers(upcoming, isDefault);
+        }
+
         private long systemTime() {
             return System.nanoTime() / 1000000;
         }
@@ -0,0 +1,31 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+/**
+ * Smooths one sensor angle and estimates how fast it changes, so the pose can be
+ * extrapolated to the time a frame reaches the screen. Works on the sensor
+ * timestamps, the result doesn't depend on when or how often it is fed.
+ */
+interface MotionFilter {
+
+    /**
+     * Apply the "delay" preference, 1 is the most responsive and 21 the smoothest
+     */
+    void setDelay(int delay);
+
+    /**
+     * Forget everything, the next sample is taken as is
+     */
+    void reset();
+
+    void update(long timestampNanos, float value);
+
+    /**
+     * @return the filtered value at the time of the last sample
+     */
+    float getValue();
+
+    /**
+     * @return change of the value per second at the time of the last sample
+     */
+    float getVelocity();
+}
@@ -0,0 +1,114 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Detects when the device is lying still, so the engine can slow the sensor down
+ * and stop rendering. Fed with the parallax angles of every sensor event, goes idle
+ * once they stay within a small threshold for a while and wakes on the first
+ * event that leaves it. Keeps track of the idle/active duty cycle.
+ * Angles may come from another thread than start and stop, so may the callback.
+ */
+class MotionIdleDetector {
+    private static final String TAG = MotionIdleDetector.class.getSimpleName();
+    // Angle change in radians that counts as movement (~0.3 degrees)
+    private static final float MOTION_THRESHOLD = 0.005f;
+    private static final long IDLE_TIMEOUT_MS = 3000;
+
+    interface Callback {
+        void onIdleStateChanged(boolean idle);
+    }
+
+    private final Callback callback;
+    private boolean running = false;
+    private boolean idle = false;
+    private boolean hasReference = false;
+    private float referenceX, referenceY, referenceZ;
+    private long lastMotionTime;
+
+    // Duty cycle bookkeeping
+    private long stateSince;
+    private long idleMillis;
+    private long activeMillis;
+
+    MotionIdleDetector(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Start watching, always in the active state
+     */
+    synchronized void start() {
+        long now = SystemClock.elapsedRealtime();
+        running = true;
+        idle = false;
+        hasReference = false;
+        lastMotionTime = now;
+        stateSince = now;
+    }
+
+    synchronized void stop() {
+        if (!running) return;
+        accountState(SystemClock.elapsedRealtime());
+        running = false;
+        Log.d(TAG, "Stopped, " + getDutyCycleSummary());
+    }
+
+    synchronized void onAngles(float x, float y, float z) {
+        if (!running) return;
+        long now = SystemClock.elapsedRealtime();
+
+        boolean moved = !hasReference
+                || Math.abs(x - referenceX) > MOTION_THRESHOLD
+                || Math.abs(y - referenceY) > MOTION_THRESHOLD
+                || Math.abs(z - referenceZ) > MOTION_THRESHOLD;
+        if (moved) {
+            referenceX = x;
+            referenceY = y;
+            referenceZ = z;
+            hasReference = true;
+            lastMotionTime = now;
+            if (idle) setIdle(false, now);
+        } else if (!idle && now - lastMotionTime > IDLE_TIMEOUT_MS) {
+            setIdle(true, now);
+        }
+    }
+
+    synchronized boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * @return share of the watched time spent idle, between 0 and 1
+     */
+    synchronized float getIdleRatio() {
+        long idleTime = idleMillis;
+        long activeTime = activeMillis;
+        if (running) {
+            long current = SystemClock.elapsedRealtime() - stateSince;
+            if (idle) idleTime += current;
+            else activeTime += current;
+        }
+        long total = idleTime + activeTime;
+        return total == 0 ? 0f : (float) idleTime / total;
+    }
+
+    synchronized String getDutyCycleSummary() {
+        return "idle " + Math.round(getIdleRatio() * 100) + "% of "
+                + (idleMillis + activeMillis) / 1000 + "s";
+    }
+
+    private void setIdle(boolean idle, long now) {
+        accountState(now);
+        this.idle = idle;
+        Log.d(TAG, (idle ? "Idle" : "Active") + ", " + getDutyCycleSummary());
+        callback.onIdleStateChanged(idle);
+    }
+
+    private void accountState(long now) {
+        if (idle) idleMillis += now - stateSince;
+        else activeMillis += now - stateSince;
+        stateSince = now;
+    }
+}
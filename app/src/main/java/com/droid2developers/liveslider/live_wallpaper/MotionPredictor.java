@@ -0,0 +1,98 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import com.droid2developers.liveslider.utils.FloatSeqLock;
+
+import static com.droid2developers.liveslider.utils.Constant.MOTION_FILTER_KALMAN;
+import static com.droid2developers.liveslider.utils.Constant.MOTION_FILTER_ONE_EURO;
+
+/**
+ * Filter stage between the rotation sensor and the renderer. Roll and pitch are
+ * filtered on the sensor thread at the sensor timestamps, the frame clock then
+ * extrapolates the filtered pose to the time its frame is displayed.
+ * Timestamps are {@link android.os.SystemClock#elapsedRealtimeNanos()} based,
+ * like those of sensor events.
+ */
+class MotionPredictor {
+    // Extrapolate at most this far, beyond it the velocity says little
+    private static final long MAX_PREDICTION_NANOS = 50_000_000L;
+    private static final float[] LEVEL = new float[4];
+
+    // Roll, roll velocity, pitch, pitch velocity at the timestamp
+    private final FloatSeqLock estimate = new FloatSeqLock(4);
+    private final float[] snapshot = new float[4];  // Frame clock thread only
+
+    // Sensor thread only
+    private MotionFilter rollFilter;
+    private MotionFilter pitchFilter;
+    private int appliedFilterType = -1;
+    private int appliedDelay = -1;
+    private final float[] published = new float[4];
+
+    private volatile int filterType = MOTION_FILTER_ONE_EURO;
+    private volatile int delay = 1;
+    private volatile boolean resetRequested;
+
+    void setFilterType(int filterType) {
+        this.filterType = filterType;
+    }
+
+    void setDelay(int delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Drop the estimate and report a level pose until the next sample
+     */
+    void reset() {
+        resetRequested = true;
+        estimate.write(0L, LEVEL);
+    }
+
+    /**
+     * Called on the sensor thread for every sample
+     */
+    void onAngles(long timestampNanos, float roll, float pitch) {
+        if (filterType != appliedFilterType) {
+            appliedFilterType = filterType;
+            rollFilter = createFilter(appliedFilterType);
+            pitchFilter = createFilter(appliedFilterType);
+            appliedDelay = -1;
+        }
+        if (delay != appliedDelay) {
+            appliedDelay = delay;
+            rollFilter.setDelay(appliedDelay);
+            pitchFilter.setDelay(appliedDelay);
+        }
+        if (resetRequested) {
+            resetRequested = false;
+            rollFilter.reset();
+            pitchFilter.reset();
+        }
+        rollFilter.update(timestampNanos, roll);
+        pitchFilter.update(timestampNanos, pitch);
+        published[0] = rollFilter.getValue();
+        published[1] = rollFilter.getVelocity();
+        published[2] = pitchFilter.getValue();
+        published[3] = pitchFilter.getVelocity();
+        estimate.write(timestampNanos, published);
+    }
+
+    /**
+     * Estimate the pose at the given time. Called on the frame clock thread.
+     * @param angles receives roll and pitch
+     */
+    void predict(long timeNanos, float[] angles) {
+        long timestampNanos = estimate.read(snapshot);
+        long aheadNanos = Math.max(0L, Math.min(MAX_PREDICTION_NANOS, timeNanos - timestampNanos));
+        float aheadSeconds = aheadNanos / 1e9f;
+        angles[0] = snapshot[0] + snapshot[1] * aheadSeconds;
+        angles[1] = snapshot[2] + snapshot[3] * aheadSeconds;
+    }
+
+    private static MotionFilter createFilter(int type) {
+        if (type == MOTION_FILTER_KALMAN) {
+            return new KalmanMotionFilter();
+        }
+        return new OneEuroFilter();
+    }
+}
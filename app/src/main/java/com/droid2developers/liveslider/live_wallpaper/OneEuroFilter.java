@@ -0,0 +1,70 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+/**
+ * One Euro filter (Casiez et al.): a low pass whose cutoff rises with the speed of
+ * the signal. Holding the phone still gives a steady picture, moving it follows
+ * with little lag.
+ */
+class OneEuroFilter implements MotionFilter {
+    // Cutoff in Hz per unit of delay, matches the time constant of the old per frame smoothing
+    private static final float CUTOFF_DELAY_HZ = 9.5f;
+    // Cutoff increase per radian per second of movement
+    private static final float BETA = 0.8f;
+    private static final float DERIVATIVE_CUTOFF_HZ = 1f;
+    // Gaps longer than this restart the filter rather than smoothing across them
+    private static final float MAX_STEP_SECONDS = 0.5f;
+
+    private float minCutoff = CUTOFF_DELAY_HZ / 10;
+    private boolean hasSample;
+    private long lastTimestampNanos;
+    private float value;
+    private float velocity;
+
+    @Override
+    public void setDelay(int delay) {
+        minCutoff = CUTOFF_DELAY_HZ / Math.max(1, delay);
+    }
+
+    @Override
+    public void reset() {
+        hasSample = false;
+        velocity = 0f;
+    }
+
+    @Override
+    public void update(long timestampNanos, float sample) {
+        float seconds = (timestampNanos - lastTimestampNanos) / 1e9f;
+        if (hasSample && seconds <= 0f) {
+            // Out of order or repeated sample
+            return;
+        }
+        if (!hasSample || seconds > MAX_STEP_SECONDS) {
+            hasSample = true;
+            lastTimestampNanos = timestampNanos;
+            value = sample;
+            velocity = 0f;
+            return;
+        }
+        lastTimestampNanos = timestampNanos;
+
+        float rawVelocity = (sample - value) / seconds;
+        velocity += smoothingFactor(DERIVATIVE_CUTOFF_HZ, seconds) * (rawVelocity - velocity);
+        float cutoff = minCutoff + BETA * Math.abs(velocity);
+        value += smoothingFactor(cutoff, seconds) * (sample - value);
+    }
+
+    @Override
+    public float getValue() {
+        return value;
+    }
+
+    @Override
+    public float getVelocity() {
+        return velocity;
+    }
+
+    private static float smoothingFactor(float cutoffHz, float seconds) {
+        float timeConstant = 1f / (2f * (float) Math.PI * cutoffHz);
+        return 1f / (1f + timeConstant / seconds);
+    }
+}
@@ -0,0 +1,132 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.droid2developers.liveslider.utils.AtomicFloatPair;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets the settings screen follow the wallpaper's orientation. Publishing does
+ * nothing while no one listens. Bias updates are coalesced to at most one per
+ * vsync of the listening UI, and values are passed as primitives, so neither side
+ * allocates per update. Listeners are called on the main thread.
+ */
+public final class OrientationChannel implements Choreographer.FrameCallback {
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+    private static final OrientationChannel INSTANCE = new OrientationChannel();
+
+    public interface Listener {
+        /**
+         * @param x horizontal bias, between -1 and 1
+         * @param y vertical bias, between -1 and 1
+         */
+        void onBiasChanged(float x, float y);
+
+        void onFaceChanged(int face);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicFloatPair bias = new AtomicFloatPair();
+    private final AtomicBoolean biasScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean faceScheduled = new AtomicBoolean(false);
+    private final Runnable scheduleBias = this::scheduleBias;
+    private final Runnable dispatchFace = this::dispatchFace;
+    private volatile Listener[] listeners = NO_LISTENERS;
+    private volatile int face;
+    private Choreographer choreographer;  // Main thread only
+
+    private OrientationChannel() {
+    }
+
+    public static OrientationChannel get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Call on the main thread
+     */
+    public void subscribe(Listener listener) {
+        for (Listener existing : listeners) {
+            if (existing == listener) return;
+        }
+        Listener[] updated = new Listener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * Call on the main thread
+     */
+    public void unsubscribe(Listener listener) {
+        Listener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != listener) continue;
+            Listener[] updated = new Listener[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+            listeners = updated;
+            return;
+        }
+    }
+
+    /**
+     * Latest bias, only the newest value before the listener's next frame is delivered.
+     * May be called from any thread.
+     */
+    void publishBias(float x, float y) {
+        if (listeners.length == 0) return;
+        bias.set(x, y);
+        if (biasScheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                scheduleBias();
+            } else {
+                mainHandler.post(scheduleBias);
+            }
+        }
+    }
+
+    /**
+     * May be called from any thread
+     */
+    void publishFace(int face) {
+        if (listeners.length == 0) return;
+        this.face = face;
+        if (faceScheduled.compareAndSet(false, true)) {
+            mainHandler.post(dispatchFace);
+        }
+    }
+
+    private void scheduleBias() {
+        if (choreographer == null) {
+            choreographer = Choreographer.getInstance();
+        }
+        choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        biasScheduled.set(false);
+        long snapshot = bias.get();
+        float x = clamp(AtomicFloatPair.first(snapshot));
+        float y = clamp(AtomicFloatPair.second(snapshot));
+        for (Listener listener : listeners) {
+            listener.onBiasChanged(x, y);
+        }
+    }
+
+    private void dispatchFace() {
+        faceScheduled.set(false);
+        int face = this.face;
+        for (Listener listener : listeners) {
+            listener.onFaceChanged(face);
+        }
+    }
+
+    private static float clamp(float value) {
+        return Math.max(-1f, Math.min(1f, value));
+    }
+}
@@ -0,0 +1,309 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import static com.droid2developers.liveslider.utils.Constant.FACE_LANDSCAPE_RIGHT;
+import static com.droid2developers.liveslider.utils.Constant.FACE_LANDSCAPE_LEFT;
+import static com.droid2developers.liveslider.utils.Constant.FACE_PORTRAIT_UP;
+import static com.droid2developers.liveslider.utils.Constant.FACE_PORTRAIT_DOWN;
+import static com.droid2developers.liveslider.utils.Constant.FACE_FLAT_UP;
+import static com.droid2developers.liveslider.utils.Constant.FACE_FLAT_DOWN;
+import static com.droid2developers.liveslider.utils.Constant.FACE_UNKNOWN;
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DEFAULT;
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_VERTICAL;
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DYNAMIC;
+
+import com.droid2developers.liveslider.utils.Quaternion;
+
+/**
+ * Turns rotation vector samples into parallax angles and phone faces, for the
+ * three calibration modes: Default, Vertical, and Dynamic. Pure Java and driven
+ * only by the sample timestamps, so recorded traces replay the same on the JVM
+ * as on the device. Not thread safe, {@link RotationSensor} runs it on its sensor thread.
+ */
+class OrientationProcessor {
+    private static final float ROLL_THRESHOLD = (float) Math.PI / 4;
+    private static final float FLAT_THRESHOLD = (float) Math.PI / 3;
+    private static final int FACE_STABLE_COUNT = 5;
+    private static final long FACE_DETECTION_DEBOUNCE_NANOS = 100_000_000L;
+
+    private final RotationSensor.Callback callback;
+    private int calibrationMode = CALIBRATION_DEFAULT;
+
+    private final Quaternion referenceRotation = new Quaternion();
+    private boolean hasReferenceRotation = false;
+    private int currentPhoneFace = FACE_UNKNOWN;
+    private int candidatePhoneFace = FACE_UNKNOWN;
+    private int candidateStableCount = 0;
+    private long lastFaceDetectionCheck = Long.MIN_VALUE;
+
+    private final Quaternion rotation = new Quaternion();
+    private final Quaternion relativeRotation = new Quaternion();
+    private final float[] orientationValues = new float[3];
+    private final float[] angleChange = new float[3];
+
+    // Animation state for smooth face switching
+    private boolean isFaceSwitchAnimating = false;
+    private final Quaternion animationStartRotation = new Quaternion();
+    private final Quaternion animationEndRotation = new Quaternion();
+    private long animationStartTime = 0;
+    private long timestampNanos;  // Of the sample being processed
+    private volatile long faceSwitchAnimationDurationMs = 400; // Default, can be set dynamically
+
+    OrientationProcessor(RotationSensor.Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Change the calibration mode, starting over if it differs from the current one
+     */
+    void setCalibrationMode(int mode) {
+        if (mode != calibrationMode) {
+            calibrationMode = mode;
+            reset();
+        }
+    }
+
+    /**
+     * May be called from any thread, takes effect with the next face switch
+     */
+    void setFaceSwitchAnimationDuration(long durationMs) {
+        faceSwitchAnimationDurationMs = durationMs;
+    }
+
+    /**
+     * Forget the reference orientation and phone face
+     */
+    void reset() {
+        isFaceSwitchAnimating = false;
+        hasReferenceRotation = false;
+        currentPhoneFace = FACE_UNKNOWN;
+        candidatePhoneFace = FACE_UNKNOWN;
+        candidateStableCount = 0;
+        lastFaceDetectionCheck = Long.MIN_VALUE;
+    }
+
+    /**
+     * Process one rotation vector sample
+     * @param rotationVector values of the sensor event
+     * @return false if the sample was invalid and skipped
+     */
+    boolean process(long timestampNanos, float[] rotationVector) {
+        rotation.setFromRotationVector(rotationVector);
+        if (!rotation.isValid()) {
+            return false;
+        }
+        this.timestampNanos = timestampNanos;
+        if (isFaceSwitchAnimating) {
+            advanceFaceSwitchAnimation();
+        }
+
+        // Handle different calibration modes
+        switch (calibrationMode) {
+            case CALIBRATION_DEFAULT:
+                handleDefaultCalibration();
+                break;
+            case CALIBRATION_VERTICAL:
+                handleVerticalCalibration();
+                break;
+            case CALIBRATION_DYNAMIC:
+                handleDynamicCalibration();
+                break;
+        }
+        return true;
+    }
+
+    // Original simple implementation - sets the reference rotation once and calculates angle changes
+    private void handleDefaultCalibration() {
+        if (!hasReferenceRotation) {
+            setReferenceRotation(rotation);
+            return;
+        }
+        calculateParallax();
+    }
+
+    // Vertical mode - only updates the reference when switching between portrait up/down faces
+    private void handleVerticalCalibration() {
+        // Extract orientation angles for vertical face detection
+        rotation.getEulerAngles(orientationValues);
+
+        // Detect if phone is in top or bottom orientation
+        int detectedVerticalFace = detectVerticalFace(orientationValues);
+
+        // Handle vertical face changes with stability checking
+        handleVerticalFaceDetection(detectedVerticalFace);
+
+        // Calculate parallax if we have established reference
+        if (hasReferenceRotation) {
+            calculateParallax();
+        }
+    }
+
+    // Dynamic mode - full face detection with automatic reference updates for all orientations
+    private void handleDynamicCalibration() {
+        // Extract orientation angles (azimuth, pitch, roll) from the rotation
+        rotation.getEulerAngles(orientationValues);
+
+        // Detect phone face based on pitch and roll angles
+        int detectedFace = detectPhoneFace(orientationValues);
+
+        // Handle face changes with stability checking to prevent rapid switching
+        handleFaceDetection(detectedFace);
+
+        // Calculate parallax effect if we have established a reference orientation
+        if (hasReferenceRotation) {
+            calculateParallax();
+        }
+    }
+
+    // Detects only portrait orientations for vertical calibration mode
+    private int detectVerticalFace(float[] orientation) {
+        float roll = orientation[2];
+        float absRoll = Math.abs(roll);
+
+        if (absRoll < ROLL_THRESHOLD) {
+            return FACE_PORTRAIT_UP;
+        } else if (absRoll > Math.PI - ROLL_THRESHOLD) {
+            return FACE_PORTRAIT_DOWN;
+        }
+
+        // If not in vertical orientation, return current face or default to portrait up
+        return currentPhoneFace != FACE_UNKNOWN ? currentPhoneFace : FACE_PORTRAIT_UP;
+    }
+
+    // Handles vertical face detection with stability checking
+    private void handleVerticalFaceDetection(int detectedFace) {
+        if (!isFaceDetectionDue()) {
+            return;
+        }
+
+        // Only process portrait up/down face changes
+        if ((detectedFace == FACE_PORTRAIT_UP || detectedFace == FACE_PORTRAIT_DOWN) &&
+            detectedFace != currentPhoneFace) {
+
+            if (candidatePhoneFace == detectedFace) {
+                candidateStableCount++;
+
+                if (candidateStableCount >= FACE_STABLE_COUNT) {
+                    switchToNewFace(detectedFace);
+                }
+            } else {
+                candidatePhoneFace = detectedFace;
+                candidateStableCount = 1;
+            }
+        } else if (detectedFace == currentPhoneFace) {
+            // Reset candidate when returning to current face
+            candidatePhoneFace = FACE_UNKNOWN;
+            candidateStableCount = 0;
+        }
+    }
+
+    // Detects all phone orientations for dynamic calibration mode
+    private int detectPhoneFace(float[] orientation) {
+        float pitch = orientation[1];
+        float roll = orientation[2];
+
+        // Check for flat orientations first (high pitch values indicate flat positioning)
+        if (Math.abs(pitch) > FLAT_THRESHOLD) {
+            return pitch > 0 ? FACE_FLAT_DOWN : FACE_FLAT_UP;
+        }
+
+        // For non-flat orientations, use roll angle to determine portrait/landscape
+        float absRoll = Math.abs(roll);
+
+        if (absRoll < ROLL_THRESHOLD) {
+            return FACE_PORTRAIT_UP;
+        } else if (absRoll > Math.PI - ROLL_THRESHOLD) {
+            return FACE_PORTRAIT_DOWN;
+        } else {
+            return roll > 0 ? FACE_LANDSCAPE_RIGHT : FACE_LANDSCAPE_LEFT;
+        }
+    }
+
+    // Manages face change detection with debouncing and stability requirements
+    private void handleFaceDetection(int detectedFace) {
+        if (!isFaceDetectionDue()) {
+            return;
+        }
+
+        // Process face change candidates with stability checking
+        if (detectedFace != currentPhoneFace) {
+            if (candidatePhoneFace == detectedFace) {
+                candidateStableCount++;
+
+                if (candidateStableCount >= FACE_STABLE_COUNT) {
+                    switchToNewFace(detectedFace);
+                }
+            } else {
+                candidatePhoneFace = detectedFace;
+                candidateStableCount = 1;
+            }
+        } else {
+            candidatePhoneFace = FACE_UNKNOWN;
+            candidateStableCount = 0;
+        }
+    }
+
+    // Face detection runs at most every FACE_DETECTION_DEBOUNCE_NANOS of sensor time
+    private boolean isFaceDetectionDue() {
+        if (lastFaceDetectionCheck != Long.MIN_VALUE
+                && timestampNanos - lastFaceDetectionCheck < FACE_DETECTION_DEBOUNCE_NANOS) {
+            return false;
+        }
+        lastFaceDetectionCheck = timestampNanos;
+        return true;
+    }
+
+    // Updates to new phone face and establishes new reference rotation with animation
+    private void switchToNewFace(int newFace) {
+        currentPhoneFace = newFace;
+        candidatePhoneFace = FACE_UNKNOWN;
+        candidateStableCount = 0;
+        // Start animation from the current reference to the new face's rotation
+        if (!hasReferenceRotation) {
+            setReferenceRotation(rotation);
+            callback.onFaceChanged(newFace);
+            return;
+        }
+        animationStartRotation.set(referenceRotation);
+        animationEndRotation.set(rotation);
+        animationStartTime = timestampNanos;
+        isFaceSwitchAnimating = true;
+        callback.onFaceChanged(newFace);
+    }
+
+    // Calculates parallax movement using angle differences from reference orientation
+    private void calculateParallax() {
+        relativeRotation.setRelative(referenceRotation, rotation);
+        relativeRotation.getEulerAngles(angleChange);
+        // getEulerAngles clamps its input, only garbage samples end up here
+        if (isValidAngles(angleChange)) {
+            callback.onSensorChanged(timestampNanos, angleChange);
+        }
+    }
+
+    /**
+     * Slerp the reference towards the new face, driven by the sample timestamps so
+     * every parallax sample sees the reference of its own time
+     */
+    private void advanceFaceSwitchAnimation() {
+        long elapsedMs = (timestampNanos - animationStartTime) / 1_000_000L;
+        float t = Math.max(0f, Math.min(1f, (float) elapsedMs / faceSwitchAnimationDurationMs));
+        referenceRotation.slerp(animationStartRotation, animationEndRotation, t);
+        if (t >= 1f) {
+            isFaceSwitchAnimating = false;
+        }
+    }
+
+    private void setReferenceRotation(Quaternion rotation) {
+        referenceRotation.set(rotation);
+        hasReferenceRotation = true;
+    }
+
+    private static boolean isValidAngles(float[] angles) {
+        for (float angle : angles) {
+            if (Float.isNaN(angle) || Float.isInfinite(angle)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
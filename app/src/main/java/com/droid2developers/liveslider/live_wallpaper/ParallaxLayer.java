@@ -10,6 +10,7 @@ public class ParallaxLayer {
     private static final String TAG = "ParallaxLayer";
 
     private Wallpaper wallpaper;
+    private final SharedTextureCache cache;  // Owner of the wallpaper, null if it's ours
     private float parallaxFactor;  // Movement multiplier (1.0 = normal, 1.4 = 40% faster)
     private float alpha;            // Transparency (1.0 = opaque, 0.0 = transparent)
     private boolean enabled;
@@ -23,9 +24,19 @@ public class ParallaxLayer {
      * @param name Layer name for debugging
      */
     public ParallaxLayer(Bitmap bitmap, float parallaxFactor, float alpha, String name) {
+        this(bitmap != null ? new Wallpaper(bitmap) : null, null, parallaxFactor, alpha, name);
+    }
+
+    /**
+     * Create a parallax layer drawing a wallpaper from the shared texture cache.
+     * The layer owns one reference, {@link #destroy()} releases it.
+     */
+    ParallaxLayer(Wallpaper wallpaper, SharedTextureCache cache, float parallaxFactor,
+                  float alpha, String name) {
+        this.cache = cache;
         this.name = name;
-        if (bitmap != null) {
-            this.wallpaper = new Wallpaper(bitmap);
+        if (wallpaper != null) {
+            this.wallpaper = wallpaper;
             this.enabled = true;
             Log.d(TAG, "Created layer '" + name + "' with factor=" + parallaxFactor + ", alpha=" + alpha);
         } else {
@@ -39,7 +50,7 @@ public class ParallaxLayer {
     /**
      * Draw this layer
      * @param mvpMatrix MVP matrix for this layer
-     * @param globalAlpha Global alpha for fade effects
+     * @param globalAlpha Alpha multiplier for wallpaper transitions
      */
     public void draw(float[] mvpMatrix, float globalAlpha) {
         if (wallpaper != null && enabled) {
@@ -49,7 +60,11 @@ public class ParallaxLayer {
 
     public void destroy() {
         if (wallpaper != null) {
-            wallpaper.destroy();
+            if (cache != null) {
+                cache.release(wallpaper);
+            } else {
+                wallpaper.destroy();
+            }
             wallpaper = null;
         }
         enabled = false;
@@ -0,0 +1,184 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Raw pixels of playlist wallpapers, cropped for the screen and stored next to
+ * the source image. The renderer maps the file and hands the buffer straight to
+ * glTexImage2D, so neither the image decoder nor the Java heap are involved.
+ * <p>
+ * Like {@link CompressedTextureStore} the screen size is part of the file name,
+ * so engines with different surface sizes keep an entry each. The header records
+ * the size, pixel format, screen size and a fingerprint of the source file made of
+ * its path, length and modification time. Hashing the content would cost about as
+ * much as decoding it. Entries that don't match are ignored, and rewritten by the
+ * next regular decode of the wallpaper.
+ */
+class PixelCacheStore {
+    private static final String TAG = PixelCacheStore.class.getSimpleName();
+    private static final String EXTENSION = ".pixels";
+
+    private static final int MAGIC = 0x4c535058; // "LSPX"
+    private static final int VERSION = 1;
+    // Padded so the pixels start well aligned
+    private static final int HEADER_SIZE = 64;
+
+    private PixelCacheStore() {
+    }
+
+    static File getFile(String wallpaperPath, int screenWidth, int screenHeight) {
+        return new File(wallpaperPath + "." + screenWidth + "x" + screenHeight + EXTENSION);
+    }
+
+    /**
+     * Store a wallpaper already cropped for the given screen size.
+     * The bitmap is left untouched.
+     * @param aspectRatio aspect ratio of the source image
+     * @return true if the file was written
+     */
+    static boolean write(String wallpaperPath, int screenWidth, int screenHeight,
+                         Bitmap bitmap, float aspectRatio) {
+        final int format;
+        if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            format = TextureData.FORMAT_RGBA_8888;
+        } else if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            format = TextureData.FORMAT_RGB_565;
+        } else {
+            Log.w(TAG, "Not caching " + bitmap.getConfig() + " pixels of " + wallpaperPath);
+            return false;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int size = width * height * getBytesPerPixel(format);
+        if (bitmap.getByteCount() != size) {
+            Log.w(TAG, "Not caching padded rows of " + wallpaperPath);
+            return false;
+        }
+
+        File file = getFile(wallpaperPath, screenWidth, screenHeight);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+                 FileChannel channel = out.getChannel()) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + size);
+                mapped.order(ByteOrder.BIG_ENDIAN);
+                mapped.putInt(MAGIC)
+                        .putInt(VERSION)
+                        .putInt(format)
+                        .putInt(width)
+                        .putInt(height)
+                        .putInt(screenWidth)
+                        .putInt(screenHeight)
+                        .putFloat(aspectRatio)
+                        .putLong(getSourceFingerprint(new File(wallpaperPath)));
+                mapped.position(HEADER_SIZE);
+                bitmap.copyPixelsToBuffer(mapped);
+                mapped.force();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error caching pixels of " + wallpaperPath, e);
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Map the cached pixels of a wallpaper
+     * @return the wallpaper, or null if there is no valid entry for this screen size
+     */
+    static WallpaperDecoder.Decoded read(String wallpaperPath, int screenWidth, int screenHeight) {
+        File file = getFile(wallpaperPath, screenWidth, screenHeight);
+        if (!file.isFile()) return null;
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            if (channel.size() < HEADER_SIZE) return invalid(file, "truncated");
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.BIG_ENDIAN);
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                return invalid(file, "unknown version");
+            }
+            int format = mapped.getInt();
+            int width = mapped.getInt();
+            int height = mapped.getInt();
+            if (mapped.getInt() != screenWidth || mapped.getInt() != screenHeight) {
+                return invalid(file, "different screen size");
+            }
+            float aspectRatio = mapped.getFloat();
+            if (mapped.getLong() != getSourceFingerprint(new File(wallpaperPath))) {
+                return invalid(file, "source changed");
+            }
+            int bytesPerPixel = getBytesPerPixel(format);
+            if (bytesPerPixel == 0 || width <= 0 || height <= 0
+                    || channel.size() != HEADER_SIZE + (long) width * height * bytesPerPixel) {
+                return invalid(file, "corrupt");
+            }
+
+            mapped.position(HEADER_SIZE);
+            // Fault the pages in now rather than during the upload on the GL thread
+            mapped.load();
+            TextureData texture = new TextureData(mapped.slice().order(ByteOrder.nativeOrder()),
+                    width, height, format);
+            return new WallpaperDecoder.Decoded(texture, aspectRatio);
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the cached pixels of a wallpaper for every screen size
+     */
+    static void delete(String wallpaperPath) {
+        File source = new File(wallpaperPath);
+        // Also matches the single file per wallpaper of earlier versions
+        File[] files = source.getAbsoluteFile().getParentFile().listFiles((dir, name) ->
+                name.startsWith(source.getName() + ".") && name.endsWith(EXTENSION));
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+    }
+
+    private static WallpaperDecoder.Decoded invalid(File file, String reason) {
+        Log.d(TAG, "Ignoring " + file + ": " + reason);
+        return null;
+    }
+
+    /**
+     * Path, length and modification time of the source file, not a hash of its
+     * content. Playlist files are replaced rather than edited, which changes them.
+     */
+    private static long getSourceFingerprint(File source) {
+        long fingerprint = source.getAbsolutePath().hashCode();
+        fingerprint = 31 * fingerprint + source.length();
+        fingerprint = 31 * fingerprint + source.lastModified();
+        return fingerprint;
+    }
+
+    private static int getBytesPerPixel(int format) {
+        switch (format) {
+            case TextureData.FORMAT_RGBA_8888:
+                return 4;
+            case TextureData.FORMAT_RGB_565:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+}
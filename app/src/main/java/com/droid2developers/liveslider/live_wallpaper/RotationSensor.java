@@ -1,96 +1,93 @@
 package com.droid2developers.liveslider.live_wallpaper;
 
-import static com.droid2developers.liveslider.utils.Constant.FACE_LANDSCAPE_RIGHT;
-import static com.droid2developers.liveslider.utils.Constant.FACE_LANDSCAPE_LEFT;
-import static com.droid2developers.liveslider.utils.Constant.FACE_PORTRAIT_UP;
-import static com.droid2developers.liveslider.utils.Constant.FACE_PORTRAIT_DOWN;
-import static com.droid2developers.liveslider.utils.Constant.FACE_FLAT_UP;
-import static com.droid2developers.liveslider.utils.Constant.FACE_FLAT_DOWN;
-import static com.droid2developers.liveslider.utils.Constant.FACE_UNKNOWN;
 import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DEFAULT;
-import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_VERTICAL;
-import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DYNAMIC;
 import static com.droid2developers.liveslider.utils.Constant.getFaceName;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.widget.Toast;
 import android.util.Log;
 import com.droid2developers.liveslider.R;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 /**
  * Rotation sensor that handles phone orientation detection and parallax calculations
  * Supports three calibration modes: Default, Vertical, and Dynamic
+ * <p>
+ * Events are processed on a dedicated sensor thread, which also calls the {@link Callback}.
+ * The orientation math lives in {@link OrientationProcessor}, so recorded traces
+ * can be replayed without a device.
+ * <p>
+ * Prefers the game rotation vector, heading is never used. In batched mode events
+ * may wait in the sensor hub FIFO for up to one frame, so events close together
+ * share a wakeup while the first event of a movement still wakes the idle engine
+ * in time for the next frame.
  */
-public class RotationSensor implements SensorEventListener {
+public class RotationSensor implements SensorEventListener2 {
     private static final String TAG = RotationSensor.class.getSimpleName();
-    private static final float ROLL_THRESHOLD = (float) Math.PI / 4;
-    private static final float FLAT_THRESHOLD = (float) Math.PI / 3;
-    private static final int FACE_STABLE_COUNT = 5;
-    private static final long FACE_DETECTION_DEBOUNCE_MS = 100;
+    private static final long FACE_SWITCH_ANIMATION_MIN_MS = 200;
+    private static final long FACE_SWITCH_ANIMATION_MAX_MS = 1000;
+    // How long batched events may wait in the FIFO, one frame at 60 Hz. Nothing
+    // else wakes an idle engine, longer waits would delay it by as much.
+    private static final int BATCH_LATENCY_US = 1_000_000 / 60;
 
-    private final int sampleRate;
+    private int sampleRate;
     private final Callback callback;
     private final SensorManager sensorManager;
     private Sensor rotationSensor;
     private boolean listenerRegistered = false;
-    private int calibrationMode = CALIBRATION_DEFAULT;
-
-    private float[] initialRotationMatrix = null;
-    private int currentPhoneFace = -1;
-    private int candidatePhoneFace = -1;
-    private int candidateStableCount = 0;
-    private long lastFaceDetectionCheck = 0;
-
-    private final float[] rotationMatrix = new float[9];
-    private final float[] orientationValues = new float[3];
-
-    // Animation state for smooth face switching
-    private boolean isFaceSwitchAnimating = false;
-    private float[] animationStartMatrix = null;
-    private float[] animationEndMatrix = null;
-    private long animationStartTime = 0;
-    private long faceSwitchAnimationDurationMs = 400; // Default, can be set dynamically
-    private static final long FACE_SWITCH_ANIMATION_MIN_MS = 200;
-    private static final long FACE_SWITCH_ANIMATION_MAX_MS = 1000;
-    private final android.os.Handler animationHandler = new android.os.Handler();
-    private final Runnable faceSwitchAnimationRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (!isFaceSwitchAnimating || animationStartMatrix == null || animationEndMatrix == null) return;
-            long elapsed = System.currentTimeMillis() - animationStartTime;
-            float t = Math.min(1f, (float) elapsed / faceSwitchAnimationDurationMs);
-            initialRotationMatrix = lerpMatrix(animationStartMatrix, animationEndMatrix, t);
-            // Update parallax with interpolated matrix
-            calculateParallax();
-            if (t < 1f) {
-                animationHandler.postDelayed(this, 16);
-            } else {
-                // Animation finished
-                isFaceSwitchAnimating = false;
-                initialRotationMatrix = animationEndMatrix.clone();
-            }
-        }
-    };
-
-    // Linear interpolation between two 9-element matrices
-    private float[] lerpMatrix(float[] from, float[] to, float t) {
-        float[] result = new float[9];
-        for (int i = 0; i < 9; i++) {
-            result[i] = from[i] + (to[i] - from[i]) * t;
-        }
-        return result;
-    }
+    // Read on the sensor thread to pick the wakeup counter
+    private volatile boolean batched = false;
+    private volatile boolean flushPending = false;
+    private final SensorWakeupCounter streamingWakeups = new SensorWakeupCounter("Streaming");
+    private final SensorWakeupCounter batchedWakeups = new SensorWakeupCounter("Batched");
+    private volatile int calibrationMode = CALIBRATION_DEFAULT;
+    private final HandlerThread sensorThread;
+    private final Handler sensorHandler;
+
+    // Sensor thread only from here on
+    private final OrientationProcessor processor;
+    private int accuracy = SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+    private SensorTraceRecorder traceRecorder;
+
+    private final Runnable resetCalibration = this::resetCalibrationState;
 
     RotationSensor(Context context, Callback callback, int sampleRate) {
         this.sampleRate = sampleRate;
         this.callback = callback;
+        processor = new OrientationProcessor(new Callback() {
+            @Override
+            public void onSensorChanged(long timestampNanos, float[] angle) {
+                callback.onSensorChanged(timestampNanos, angle);
+            }
+
+            @Override
+            public void onFaceChanged(int face) {
+                Log.i(TAG, "Face changed to: " + getFaceName(face));
+                callback.onFaceChanged(face);
+            }
+        });
+        sensorThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
 
         if (sensorManager != null) {
-            rotationSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+            // Parallax and face detection only need pitch and roll, so the magnetometer
+            // and its disturbances can be left out where the game rotation vector exists
+            rotationSensor = sensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+            if (rotationSensor == null) {
+                rotationSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+            }
         }
 
         if (rotationSensor == null) {
@@ -102,12 +99,10 @@ public class RotationSensor implements SensorEventListener {
     void register() {
         if (listenerRegistered) return;
 
-        initialRotationMatrix = null;
-        currentPhoneFace = FACE_UNKNOWN;
-        candidatePhoneFace = FACE_UNKNOWN;
-        candidateStableCount = 0;
+        // Queued before any event of the new registration
+        sensorHandler.post(resetCalibration);
 
-        boolean success = sensorManager.registerListener(this, rotationSensor, 1000000 / sampleRate);
+        boolean success = registerListener();
         listenerRegistered = success;
 
         if (!success) {
@@ -115,247 +110,157 @@ public class RotationSensor implements SensorEventListener {
         }
     }
 
-    void unregister() {
-        if (!listenerRegistered) return;
-        sensorManager.unregisterListener(this);
-        listenerRegistered = false;
-        initialRotationMatrix = null;
-        currentPhoneFace = FACE_UNKNOWN;
+    private boolean registerListener() {
+        flushPending = false;
+        boolean success = sensorManager.registerListener(this, rotationSensor,
+                1000000 / sampleRate, batched ? BATCH_LATENCY_US : 0, sensorHandler);
+        if (success) {
+            getWakeupCounter().start(SystemClock.elapsedRealtimeNanos());
+        }
+        return success;
     }
 
-    public void recalibrate() {
-        initialRotationMatrix = null;
-        currentPhoneFace = FACE_UNKNOWN;
-        candidatePhoneFace = FACE_UNKNOWN;
-        candidateStableCount = 0;
+    private void unregisterListener() {
+        sensorManager.unregisterListener(this);
+        getWakeupCounter().stop(SystemClock.elapsedRealtimeNanos());
     }
 
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        if (event.sensor.getType() != Sensor.TYPE_ROTATION_VECTOR) {
-            return;
-        }
-
-        // Convert sensor data to rotation matrix
-        SensorManager.getRotationMatrixFromVector(rotationMatrix, event.values);
-
-        if (!isValidMatrix(rotationMatrix)) {
-            Log.w(TAG, "Invalid rotation matrix detected, skipping frame");
-            return;
-        }
+    private SensorWakeupCounter getWakeupCounter() {
+        return batched ? batchedWakeups : streamingWakeups;
+    }
 
-        // Handle different calibration modes
-        switch (calibrationMode) {
-            case CALIBRATION_DEFAULT:
-                handleDefaultCalibration();
-                break;
-            case CALIBRATION_VERTICAL:
-                handleVerticalCalibration();
-                break;
-            case CALIBRATION_DYNAMIC:
-                handleDynamicCalibration();
-                break;
+    /**
+     * Change the sampling rate without losing the calibration state
+     */
+    void setSampleRate(int sampleRate) {
+        if (this.sampleRate == sampleRate) return;
+        this.sampleRate = sampleRate;
+        if (!listenerRegistered) return;
+        unregisterListener();
+        listenerRegistered = registerListener();
+        if (!listenerRegistered) {
+            Log.e(TAG, "Failed to register rotation sensor at " + sampleRate + " Hz");
         }
     }
 
-    // Original simple implementation - sets initial matrix once and calculates angle changes
-    private void handleDefaultCalibration() {
-        if (initialRotationMatrix == null) {
-            initialRotationMatrix = rotationMatrix.clone();
+    /**
+     * Let events wait in the hardware FIFO for up to {@link #BATCH_LATENCY_US}, or
+     * deliver every event as it comes. Keeps the calibration state.
+     */
+    void setBatched(boolean batched) {
+        if (this.batched == batched) return;
+        if (batched && rotationSensor != null && rotationSensor.getFifoMaxEventCount() == 0) {
+            Log.d(TAG, "No sensor FIFO, batching has no effect");
+        }
+        if (!listenerRegistered) {
+            this.batched = batched;
             return;
         }
-
-        float[] angleChange = new float[3];
-        SensorManager.getAngleChange(angleChange, rotationMatrix, initialRotationMatrix);
-        
-        if (isValidAngles(angleChange)) {
-            callback.onSensorChanged(angleChange);
+        unregisterListener();
+        this.batched = batched;
+        listenerRegistered = registerListener();
+        if (!listenerRegistered) {
+            Log.e(TAG, "Failed to register rotation sensor " + (batched ? "batched" : "streaming"));
         }
     }
 
-    // Vertical mode - only updates matrix when switching between portrait up/down faces
-    private void handleVerticalCalibration() {
-        // Extract orientation angles for vertical face detection
-        SensorManager.getOrientation(rotationMatrix, orientationValues);
-
-        // Detect if phone is in top or bottom orientation
-        int detectedVerticalFace = detectVerticalFace(orientationValues);
-
-        // Handle vertical face changes with stability checking
-        handleVerticalFaceDetection(detectedVerticalFace);
-
-        // Calculate parallax if we have established reference
-        if (initialRotationMatrix != null) {
-            calculateParallax();
-        }
+    /**
+     * Deliver the batched events now, for a frame about to be rendered
+     */
+    void flush() {
+        if (!listenerRegistered || !batched || flushPending) return;
+        flushPending = sensorManager.flush(this);
     }
 
-    // Dynamic mode - full face detection with automatic matrix updates for all orientations
-    private void handleDynamicCalibration() {
-        // Extract orientation angles (azimuth, pitch, roll) from rotation matrix
-        SensorManager.getOrientation(rotationMatrix, orientationValues);
-
-        // Detect phone face based on pitch and roll angles
-        int detectedFace = detectPhoneFace(orientationValues);
-
-        // Handle face changes with stability checking to prevent rapid switching
-        handleFaceDetection(detectedFace);
-
-        // Calculate parallax effect if we have established a reference orientation
-        if (initialRotationMatrix != null) {
-            calculateParallax();
-        }
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        flushPending = false;
     }
 
-    // Detects only portrait orientations for vertical calibration mode
-    private int detectVerticalFace(float[] orientation) {
-        float roll = orientation[2];
-        float absRoll = Math.abs(roll);
-
-        if (absRoll < ROLL_THRESHOLD) {
-            return FACE_PORTRAIT_UP;
-        } else if (absRoll > Math.PI - ROLL_THRESHOLD) {
-            return FACE_PORTRAIT_DOWN;
-        }
-
-        // If not in vertical orientation, return current face or default to portrait up
-        return currentPhoneFace != FACE_UNKNOWN ? currentPhoneFace : FACE_PORTRAIT_UP;
+    void unregister() {
+        if (!listenerRegistered) return;
+        unregisterListener();
+        listenerRegistered = false;
+        long now = SystemClock.elapsedRealtimeNanos();
+        Log.d(TAG, streamingWakeups.getSummary(now) + "; " + batchedWakeups.getSummary(now));
     }
 
-    // Handles vertical face detection with stability checking
-    private void handleVerticalFaceDetection(int detectedFace) {
-        long currentTime = System.currentTimeMillis();
-
-        if (currentTime - lastFaceDetectionCheck < FACE_DETECTION_DEBOUNCE_MS) {
-            return;
-        }
-
-        lastFaceDetectionCheck = currentTime;
-
-        // Only process portrait up/down face changes
-        if ((detectedFace == FACE_PORTRAIT_UP || detectedFace == FACE_PORTRAIT_DOWN) &&
-            detectedFace != currentPhoneFace) {
-
-            if (candidatePhoneFace == detectedFace) {
-                candidateStableCount++;
-
-                if (candidateStableCount >= FACE_STABLE_COUNT) {
-                    switchToNewFace(detectedFace);
-                }
-            } else {
-                candidatePhoneFace = detectedFace;
-                candidateStableCount = 1;
-            }
-        } else if (detectedFace == currentPhoneFace) {
-            // Reset candidate when returning to current face
-            candidatePhoneFace = FACE_UNKNOWN;
-            candidateStableCount = 0;
-        }
+    /**
+     * Unregister and stop the sensor thread, the sensor can't be used afterwards
+     */
+    void release() {
+        unregister();
+        stopTrace();
+        sensorThread.quitSafely();
     }
 
-    // Detects all phone orientations for dynamic calibration mode
-    private int detectPhoneFace(float[] orientation) {
-        float pitch = orientation[1];
-        float roll = orientation[2];
-
-        // Check for flat orientations first (high pitch values indicate flat positioning)
-        if (Math.abs(pitch) > FLAT_THRESHOLD) {
-            return pitch > 0 ? FACE_FLAT_DOWN : FACE_FLAT_UP;
-        }
-
-        // For non-flat orientations, use roll angle to determine portrait/landscape
-        float absRoll = Math.abs(roll);
-
-        if (absRoll < ROLL_THRESHOLD) {
-            return FACE_PORTRAIT_UP;
-        } else if (absRoll > Math.PI - ROLL_THRESHOLD) {
-            return FACE_PORTRAIT_DOWN;
-        } else {
-            return roll > 0 ? FACE_LANDSCAPE_RIGHT : FACE_LANDSCAPE_LEFT;
-        }
+    public void recalibrate() {
+        sensorHandler.post(resetCalibration);
     }
 
-    // Manages face change detection with debouncing and stability requirements
-    private void handleFaceDetection(int detectedFace) {
-        long currentTime = System.currentTimeMillis();
+    private void resetCalibrationState() {
+        processor.reset();
+    }
 
-        if (currentTime - lastFaceDetectionCheck < FACE_DETECTION_DEBOUNCE_MS) {
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        int type = event.sensor.getType();
+        if (type != Sensor.TYPE_GAME_ROTATION_VECTOR && type != Sensor.TYPE_ROTATION_VECTOR) {
             return;
         }
-
-        lastFaceDetectionCheck = currentTime;
-
-        // Process face change candidates with stability checking
-        if (detectedFace != currentPhoneFace) {
-            if (candidatePhoneFace == detectedFace) {
-                candidateStableCount++;
-
-                if (candidateStableCount >= FACE_STABLE_COUNT) {
-                    switchToNewFace(detectedFace);
-                }
-            } else {
-                candidatePhoneFace = detectedFace;
-                candidateStableCount = 1;
-            }
-        } else {
-            candidatePhoneFace = FACE_UNKNOWN;
-            candidateStableCount = 0;
+        getWakeupCounter().onEvent(SystemClock.elapsedRealtimeNanos());
+        if (traceRecorder != null) {
+            recordEvent(event);
         }
-    }
-
-    // Updates to new phone face and establishes new reference matrix with animation
-    private void switchToNewFace(int newFace) {
-        Log.i(TAG, "Face changed to: " + getFaceName(newFace));
-        currentPhoneFace = newFace;
-        candidatePhoneFace = FACE_UNKNOWN;
-        candidateStableCount = 0;
-        // Start animation from current initialRotationMatrix to new face's rotationMatrix
-        if (initialRotationMatrix == null) {
-            initialRotationMatrix = rotationMatrix.clone();
-            callback.onFaceChanged(newFace);
-            return;
+        // Applied here so a mode change takes effect in order with the events
+        processor.setCalibrationMode(calibrationMode);
+        if (!processor.process(event.timestamp, event.values)) {
+            Log.w(TAG, "Invalid rotation detected, skipping frame");
         }
-        animationStartMatrix = initialRotationMatrix.clone();
-        animationEndMatrix = rotationMatrix.clone();
-        animationStartTime = System.currentTimeMillis();
-        isFaceSwitchAnimating = true;
-        animationHandler.removeCallbacks(faceSwitchAnimationRunnable);
-        animationHandler.post(faceSwitchAnimationRunnable);
-        callback.onFaceChanged(newFace);
     }
 
-    // Calculates parallax movement using angle differences from reference orientation
-    private void calculateParallax() {
-        if (initialRotationMatrix == null) return;
-        float[] angleChange = new float[3];
-        SensorManager.getAngleChange(angleChange, rotationMatrix, initialRotationMatrix);
-        if (isValidAngles(angleChange)) {
-            callback.onSensorChanged(angleChange);
-        } else {
-            Log.w(TAG, "Invalid angle changes detected, skipping parallax");
+    private void recordEvent(SensorEvent event) {
+        try {
+            traceRecorder.record(event.timestamp, event.values, accuracy);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to record sensor trace", e);
+            closeTrace();
         }
     }
 
-    private boolean isValidMatrix(float[] matrix) {
-        for (float value : matrix) {
-            if (Float.isNaN(value) || Float.isInfinite(value)) {
-                return false;
+    /**
+     * Record every event from now on to the given file, for replay with
+     * {@link SensorTraceReplayer}. Replaces a trace being recorded.
+     */
+    void startTrace(File file) {
+        sensorHandler.post(() -> {
+            closeTrace();
+            try {
+                traceRecorder = new SensorTraceRecorder(new FileOutputStream(file));
+                Log.i(TAG, "Recording sensor trace to " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start sensor trace " + file, e);
             }
-        }
-        return true;
+        });
     }
 
-    private boolean isValidAngles(float[] angles) {
-        for (float angle : angles) {
-            if (Float.isNaN(angle) || Float.isInfinite(angle)) {
-                return false;
-            }
+    void stopTrace() {
+        sensorHandler.post(this::closeTrace);
+    }
+
+    private void closeTrace() {
+        if (traceRecorder == null) return;
+        try {
+            traceRecorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close sensor trace", e);
         }
-        return true;
+        traceRecorder = null;
     }
 
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        this.accuracy = accuracy;
         if (accuracy < SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM) {
             Log.w(TAG, "Sensor accuracy low: " + accuracy);
         }
@@ -367,13 +272,8 @@ public class RotationSensor implements SensorEventListener {
      */
     public void setCalibrationMode(int mode) {
         if (mode != calibrationMode) {
+            // The processor starts over with the next event
             calibrationMode = mode;
-
-            // Reset calibration state when mode changes
-            initialRotationMatrix = null;
-            currentPhoneFace = FACE_UNKNOWN;
-            candidatePhoneFace = FACE_UNKNOWN;
-            candidateStableCount = 0;
         }
     }
 
@@ -398,12 +298,19 @@ public class RotationSensor implements SensorEventListener {
     // Sets the animation duration dynamically based on "delay" preference
     public void setFaceSwitchAnimationDurationFromDelay(int delay) {
         long duration = mapDelayToAnimDuration(delay);
-        this.faceSwitchAnimationDurationMs = duration;
+        processor.setFaceSwitchAnimationDuration(duration);
         Log.d(TAG, "Face switch animation duration set to " + duration + "ms (delay=" + delay + ")");
     }
 
+    /**
+     * Called on the sensor thread
+     */
     public interface Callback {
-        void onSensorChanged(float[] angle);
+        /**
+         * @param timestampNanos sensor event time, {@link android.os.SystemClock#elapsedRealtimeNanos()} based
+         * @param angle reused for every event, copy what needs to be kept
+         */
+        void onSensorChanged(long timestampNanos, float[] angle);
         void onFaceChanged(int face);
     }
 }
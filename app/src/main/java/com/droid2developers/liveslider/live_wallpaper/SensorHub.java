@@ -0,0 +1,167 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import static com.droid2developers.liveslider.utils.Constant.FACE_UNKNOWN;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.droid2developers.liveslider.BuildConfig;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One rotation sensor registration for all engines of the service. Orientation,
+ * face and idle state are computed once and fanned out to the engines that are
+ * visible. The sensor runs while at least one engine is started.
+ * <p>
+ * Control methods are called on the main thread. Angles and faces reach the
+ * subscribers on the sensor thread, in the array reused by {@link RotationSensor},
+ * which subscribers must treat as read only.
+ */
+class SensorHub implements RotationSensor.Callback, MotionIdleDetector.Callback {
+    private static final String TAG = SensorHub.class.getSimpleName();
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    interface Subscriber extends RotationSensor.Callback {
+        /**
+         * Called on the main thread
+         */
+        void onIdleStateChanged(boolean idle);
+    }
+
+    private final Context context;
+    private final int sampleRate;
+    private final int idleSampleRate;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final RotationSensor rotationSensor;
+    private final MotionIdleDetector idleDetector;
+
+    // Main thread only
+    private final List<Subscriber> started = new ArrayList<>();
+    private boolean idle = false;
+    private boolean traceEnabled = false;
+
+    // Copied on change, iterated on the sensor thread without allocating
+    private volatile Subscriber[] subscribers = NO_SUBSCRIBERS;
+    private volatile int currentFace = FACE_UNKNOWN;
+
+    SensorHub(Context context, int sampleRate, int idleSampleRate) {
+        this.context = context.getApplicationContext();
+        this.sampleRate = sampleRate;
+        this.idleSampleRate = idleSampleRate;
+        rotationSensor = new RotationSensor(this.context, this, sampleRate);
+        idleDetector = new MotionIdleDetector(this);
+    }
+
+    /**
+     * Start delivering to the subscriber, registering the sensor for the first one
+     */
+    void start(Subscriber subscriber) {
+        if (started.contains(subscriber)) return;
+        started.add(subscriber);
+        subscribers = started.toArray(NO_SUBSCRIBERS);
+        if (started.size() == 1) {
+            idle = false;
+            currentFace = FACE_UNKNOWN;
+            rotationSensor.setSampleRate(sampleRate);
+            rotationSensor.setBatched(false);
+            rotationSensor.register();
+            idleDetector.start();
+        } else {
+            // Catch up with the shared state
+            if (idle) subscriber.onIdleStateChanged(true);
+            int face = currentFace;
+            if (face != FACE_UNKNOWN) subscriber.onFaceChanged(face);
+        }
+    }
+
+    /**
+     * Stop delivering to the subscriber, unregistering the sensor after the last one
+     */
+    void stop(Subscriber subscriber) {
+        if (!started.remove(subscriber)) return;
+        subscribers = started.toArray(NO_SUBSCRIBERS);
+        if (started.isEmpty()) {
+            rotationSensor.unregister();
+            idleDetector.stop();
+        }
+    }
+
+    /**
+     * Frames rendered while idle still want the latest batched pose
+     */
+    void flush() {
+        rotationSensor.flush();
+    }
+
+    void setCalibrationMode(int mode) {
+        rotationSensor.setCalibrationMode(mode);
+    }
+
+    void setFaceSwitchAnimationDurationFromDelay(int delay) {
+        rotationSensor.setFaceSwitchAnimationDurationFromDelay(delay);
+    }
+
+    // Debug builds only, traces go to files/traces for replay with SensorTraceReplayer
+    void setTraceEnabled(boolean enabled) {
+        if (!BuildConfig.DEBUG || traceEnabled == enabled) return;
+        traceEnabled = enabled;
+        if (enabled) {
+            File dir = new File(context.getFilesDir(), "traces");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.e(TAG, "Failed to create " + dir);
+                return;
+            }
+            rotationSensor.startTrace(new File(dir, "sensor-" + System.currentTimeMillis() + ".lstr"));
+        } else {
+            rotationSensor.stopTrace();
+        }
+    }
+
+    /**
+     * Stop the sensor for good, when the service is destroyed
+     */
+    void release() {
+        started.clear();
+        subscribers = NO_SUBSCRIBERS;
+        idleDetector.stop();
+        rotationSensor.release();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public void onSensorChanged(long timestampNanos, float[] angle) {
+        idleDetector.onAngles(angle[0], angle[1], angle[2]);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onSensorChanged(timestampNanos, angle);
+        }
+    }
+
+    @Override
+    public void onFaceChanged(int face) {
+        currentFace = face;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onFaceChanged(face);
+        }
+    }
+
+    @Override
+    public void onIdleStateChanged(boolean idle) {
+        // Detected on the sensor thread
+        mainHandler.post(() -> {
+            if (started.isEmpty() || this.idle == idle) return;
+            this.idle = idle;
+            // While lying still the events can wait in the sensor FIFO, for no
+            // longer than a frame since they are also what ends the idle state
+            rotationSensor.setSampleRate(idle ? idleSampleRate : sampleRate);
+            rotationSensor.setBatched(idle);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onIdleStateChanged(idle);
+            }
+        });
+    }
+}
@@ -0,0 +1,43 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes rotation vector events to a compact binary trace that
+ * {@link SensorTraceReplayer} can feed back through the orientation math.
+ * <p>
+ * Big endian: a header of the magic "LSTR" and a version short, then one
+ * {@link #RECORD_SIZE} byte record per event holding the timestamp in nanos,
+ * x, y, z, the scalar part (NaN if the event had none) and the accuracy.
+ */
+class SensorTraceRecorder implements Closeable {
+    static final int MAGIC = 0x4C535452;  // "LSTR"
+    static final short VERSION = 1;
+    static final int RECORD_SIZE = 8 + 4 * 4 + 1;
+
+    private final DataOutputStream out;
+
+    SensorTraceRecorder(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeShort(VERSION);
+    }
+
+    void record(long timestampNanos, float[] values, int accuracy) throws IOException {
+        out.writeLong(timestampNanos);
+        out.writeFloat(values[0]);
+        out.writeFloat(values[1]);
+        out.writeFloat(values[2]);
+        out.writeFloat(values.length >= 4 ? values[3] : Float.NaN);
+        out.writeByte(accuracy);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
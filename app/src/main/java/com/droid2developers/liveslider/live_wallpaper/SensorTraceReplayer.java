@@ -0,0 +1,272 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DEFAULT;
+import static com.droid2developers.liveslider.utils.Constant.MOTION_FILTER_ONE_EURO;
+
+/**
+ * Feeds a trace written by {@link SensorTraceRecorder} through the same path as
+ * live events: {@link OrientationProcessor}, {@link MotionPredictor} and the
+ * offset math of the renderer, with frames at a simulated 60 Hz vsync. Everything
+ * runs on the calling thread and only depends on the trace timestamps, so a trace
+ * replays the same on the JVM as on the device, apart from the measured costs.
+ * <p>
+ * With a batch latency events are delivered like from the sensor FIFO: held
+ * until the latency of the oldest waiting event ran out, then all at once.
+ */
+class SensorTraceReplayer {
+    private static final long FRAME_NANOS = 1_000_000_000L / 60;
+    // The default "range" preference of 10
+    private static final float DEFAULT_BIAS_RANGE = 10 * 0.006f + 0.03f;
+
+    private int calibrationMode = CALIBRATION_DEFAULT;
+    private int filterType = MOTION_FILTER_ONE_EURO;
+    private int delay = 1;
+    private float biasRange = DEFAULT_BIAS_RANGE;
+    private boolean landscape = false;
+    private long batchLatencyNanos = 0;
+
+    SensorTraceReplayer setCalibrationMode(int calibrationMode) {
+        this.calibrationMode = calibrationMode;
+        return this;
+    }
+
+    SensorTraceReplayer setMotionFilter(int filterType) {
+        this.filterType = filterType;
+        return this;
+    }
+
+    SensorTraceReplayer setDelay(int delay) {
+        this.delay = delay;
+        return this;
+    }
+
+    SensorTraceReplayer setBiasRange(float biasRange) {
+        this.biasRange = biasRange;
+        return this;
+    }
+
+    SensorTraceReplayer setLandscape(boolean landscape) {
+        this.landscape = landscape;
+        return this;
+    }
+
+    SensorTraceReplayer setBatchLatency(long batchLatencyNanos) {
+        this.batchLatencyNanos = batchLatencyNanos;
+        return this;
+    }
+
+    Report replay(InputStream trace) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(trace));
+        if (in.readInt() != SensorTraceRecorder.MAGIC) {
+            throw new IOException("Not a sensor trace");
+        }
+        short version = in.readShort();
+        if (version != SensorTraceRecorder.VERSION) {
+            throw new IOException("Unsupported sensor trace version " + version);
+        }
+
+        MotionPredictor predictor = new MotionPredictor();
+        predictor.setFilterType(filterType);
+        predictor.setDelay(delay);
+        Session session = new Session(predictor);
+        session.processor.setCalibrationMode(calibrationMode);
+
+        // Events read but not delivered yet, x, y, z and scalar each
+        long[] timestamps = new long[64];
+        float[] vectors = new float[4 * timestamps.length];
+        int waiting = 0;
+        long deliveryNanos = 0;
+        while (true) {
+            long timestampNanos;
+            try {
+                timestampNanos = in.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+            if (waiting > 0 && timestampNanos > deliveryNanos) {
+                session.deliver(deliveryNanos, timestamps, vectors, waiting);
+                waiting = 0;
+            }
+            if (waiting == 0) {
+                deliveryNanos = timestampNanos + batchLatencyNanos;
+            } else if (waiting == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, waiting * 2);
+                vectors = Arrays.copyOf(vectors, 4 * waiting * 2);
+            }
+            timestamps[waiting] = timestampNanos;
+            for (int i = 0; i < 4; i++) {
+                vectors[4 * waiting + i] = in.readFloat();
+            }
+            in.readByte();  // Accuracy, kept for inspecting traces
+            waiting++;
+        }
+        if (waiting > 0) {
+            session.deliver(deliveryNanos, timestamps, vectors, waiting);
+        }
+        return new Report(session);
+    }
+
+    /**
+     * Stands in for the service and the renderer
+     */
+    private class Session implements RotationSensor.Callback {
+        final OrientationProcessor processor = new OrientationProcessor(this);
+        private final MotionPredictor predictor;
+        private final float[] predictedAngles = new float[2];
+        private final float[] vector = new float[3];
+        private final float[] vectorWithScalar = new float[4];
+        private long nextFrameNanos = Long.MIN_VALUE;
+        long lastEventNanos;
+        long[] costs = new long[1024];
+        int events;
+        int invalidEvents;
+        int faceSwitches;
+        int frames;
+        private float lastX, lastY;
+        private float lastStepX, lastStepY;
+        private float lastAccelerationX, lastAccelerationY;
+        double jerkSquareSum;
+        float maxStep;
+
+        Session(MotionPredictor predictor) {
+            this.predictor = predictor;
+        }
+
+        /**
+         * Render the frames due before the events arrive at the given time, then
+         * process them one by one
+         */
+        void deliver(long deliveryNanos, long[] timestamps, float[] vectors, int count) {
+            if (nextFrameNanos == Long.MIN_VALUE) {
+                nextFrameNanos = timestamps[0];
+            }
+            while (nextFrameNanos <= deliveryNanos) {
+                renderFrame(nextFrameNanos);
+                nextFrameNanos += FRAME_NANOS;
+            }
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(vectors, 4 * i, vectorWithScalar, 0, 4);
+                float[] values = vectorWithScalar;
+                if (Float.isNaN(vectorWithScalar[3])) {
+                    System.arraycopy(vectorWithScalar, 0, vector, 0, 3);
+                    values = vector;
+                }
+                long start = System.nanoTime();
+                if (!processor.process(timestamps[i], values)) {
+                    invalidEvents++;
+                }
+                long cost = System.nanoTime() - start;
+                if (events == costs.length) {
+                    costs = Arrays.copyOf(costs, events * 2);
+                }
+                costs[events++] = cost;
+            }
+            lastEventNanos = timestamps[count - 1];
+        }
+
+        @Override
+        public void onSensorChanged(long timestampNanos, float[] angle) {
+            if (landscape) predictor.onAngles(timestampNanos, angle[1], angle[2]);
+            else predictor.onAngles(timestampNanos, -angle[2], angle[1]);
+        }
+
+        @Override
+        public void onFaceChanged(int face) {
+            faceSwitches++;
+        }
+
+        // The frame prepared on this vsync is displayed on the next one
+        void renderFrame(long vsyncNanos) {
+            predictor.predict(vsyncNanos + FRAME_NANOS, predictedAngles);
+            float x = (float) (biasRange * Math.sin(predictedAngles[0]));
+            float y = (float) (biasRange * Math.sin(predictedAngles[1]));
+            float stepX = x - lastX;
+            float stepY = y - lastY;
+            float accelerationX = stepX - lastStepX;
+            float accelerationY = stepY - lastStepY;
+            // Needs three frames of history for the third difference
+            if (frames >= 3) {
+                float jerkX = accelerationX - lastAccelerationX;
+                float jerkY = accelerationY - lastAccelerationY;
+                jerkSquareSum += jerkX * jerkX + jerkY * jerkY;
+            }
+            if (frames >= 1) {
+                maxStep = Math.max(maxStep, (float) Math.hypot(stepX, stepY));
+            }
+            lastX = x;
+            lastY = y;
+            lastStepX = stepX;
+            lastStepY = stepY;
+            lastAccelerationX = accelerationX;
+            lastAccelerationY = accelerationY;
+            frames++;
+        }
+    }
+
+    /**
+     * Outcome of a replay. Offsets are in the units the renderer shifts the layers by.
+     */
+    static final class Report {
+        final int events;
+        final int invalidEvents;
+        final int faceSwitches;
+        final int frames;
+        // Processing cost of one event on this machine
+        final long meanNanos;
+        final long p50Nanos;
+        final long p99Nanos;
+        final long maxNanos;
+        // Root mean square of the third difference of the offsets between frames
+        final float rmsJerk;
+        // Largest offset change from one frame to the next
+        final float maxStep;
+        // Filtered roll and pitch at the last event
+        final float finalRoll;
+        final float finalPitch;
+
+        private Report(Session session) {
+            events = session.events;
+            invalidEvents = session.invalidEvents;
+            faceSwitches = session.faceSwitches;
+            frames = session.frames;
+            long[] costs = Arrays.copyOf(session.costs, events);
+            Arrays.sort(costs);
+            long total = 0;
+            for (long cost : costs) {
+                total += cost;
+            }
+            meanNanos = costs.length == 0 ? 0 : total / costs.length;
+            p50Nanos = percentile(costs, 0.5f);
+            p99Nanos = percentile(costs, 0.99f);
+            maxNanos = costs.length == 0 ? 0 : costs[costs.length - 1];
+            rmsJerk = frames > 3 ? (float) Math.sqrt(session.jerkSquareSum / (frames - 3)) : 0f;
+            maxStep = session.maxStep;
+            // Not ahead of the last event, so this is the filter output itself
+            float[] angles = new float[2];
+            session.predictor.predict(session.lastEventNanos, angles);
+            finalRoll = angles[0];
+            finalPitch = angles[1];
+        }
+
+        private static long percentile(long[] sorted, float fraction) {
+            if (sorted.length == 0) return 0;
+            return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "events=%d invalid=%d faceSwitches=%d frames=%d cost mean=%dns p50=%dns p99=%dns max=%dns rmsJerk=%.6f maxStep=%.6f",
+                    events, invalidEvents, faceSwitches, frames, meanNanos, p50Nanos, p99Nanos, maxNanos,
+                    rmsJerk, maxStep);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import java.util.Locale;
+
+/**
+ * Counts how often sensor deliveries wake the application processor. Events that
+ * arrive back to back came out of the same hardware FIFO flush and share one
+ * wakeup, so a batched sensor shows far fewer wakeups than events.
+ * Events may come from another thread than start and stop.
+ */
+class SensorWakeupCounter {
+    // Events delivered closer together than this share a wakeup
+    private static final long SAME_DELIVERY_NANOS = 2_000_000L;
+
+    private final String name;
+    private boolean running = false;
+    private long runningSince;
+    private long countedNanos;
+    private long lastArrivalNanos;
+    private long wakeups;
+    private long events;
+
+    SensorWakeupCounter(String name) {
+        this.name = name;
+    }
+
+    synchronized void start(long nowNanos) {
+        if (running) return;
+        running = true;
+        runningSince = nowNanos;
+        lastArrivalNanos = Long.MIN_VALUE;
+    }
+
+    synchronized void stop(long nowNanos) {
+        if (!running) return;
+        countedNanos += nowNanos - runningSince;
+        running = false;
+    }
+
+    /**
+     * @param arrivalNanos when the event reached the listener, not the sensor timestamp
+     */
+    synchronized void onEvent(long arrivalNanos) {
+        if (!running) return;
+        if (lastArrivalNanos == Long.MIN_VALUE || arrivalNanos - lastArrivalNanos > SAME_DELIVERY_NANOS) {
+            wakeups++;
+        }
+        lastArrivalNanos = arrivalNanos;
+        events++;
+    }
+
+    synchronized float getWakeupsPerMinute(long nowNanos) {
+        long nanos = countedNanos + (running ? nowNanos - runningSince : 0);
+        return nanos <= 0 ? 0f : wakeups * 60e9f / nanos;
+    }
+
+    synchronized String getSummary(long nowNanos) {
+        long nanos = countedNanos + (running ? nowNanos - runningSince : 0);
+        return String.format(Locale.US, "%s: %.0f wakeups/min, %d events in %d wakeups over %ds",
+                name, getWakeupsPerMinute(nowNanos), events, wakeups, nanos / 1_000_000_000L);
+    }
+}
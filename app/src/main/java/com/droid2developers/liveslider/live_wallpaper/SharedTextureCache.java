@@ -0,0 +1,145 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Uploaded wallpapers shared by all engines of the service. Home screen, lock screen
+ * and the picker preview run their own renderer, but their contexts are in one EGL
+ * share group, so a wallpaper is decoded and uploaded once and drawn by all of them.
+ * <p>
+ * Entries are reference counted. Textures of released entries are not deleted right
+ * away, the releasing thread may have no context, but by the next GL thread of the
+ * same share group that calls {@link #deletePending(Object)}.
+ */
+class SharedTextureCache {
+
+    /**
+     * An uploaded wallpaper together with the aspect ratio of its source image
+     */
+    static class Entry {
+        final Wallpaper wallpaper;
+        final float aspectRatio;
+        private final Key key;
+        private int refCount = 1;
+
+        private Entry(Key key, Wallpaper wallpaper, float aspectRatio) {
+            this.key = key;
+            this.wallpaper = wallpaper;
+            this.aspectRatio = aspectRatio;
+        }
+    }
+
+    private final Map<Key, Entry> entries = new HashMap<>();
+    private final Map<Wallpaper, Entry> byWallpaper = new IdentityHashMap<>();
+    private final Map<Object, List<Wallpaper>> pendingDeletes = new HashMap<>();
+
+    /**
+     * @return true if the wallpaper cropped for the given size is uploaded in the share group
+     */
+    synchronized boolean contains(Object shareGroup, String key, int width, int height) {
+        return shareGroup != null && entries.containsKey(new Key(shareGroup, key, width, height));
+    }
+
+    /**
+     * Take a reference to an uploaded wallpaper, release it with {@link #release(Wallpaper)}
+     * @return the entry, or null if it isn't uploaded
+     */
+    synchronized Entry acquire(Object shareGroup, String key, int width, int height) {
+        Entry entry = entries.get(new Key(shareGroup, key, width, height));
+        if (entry != null) {
+            entry.refCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * Add a wallpaper the caller just uploaded, holding one reference to it. If another
+     * engine was faster, its entry is returned instead and the duplicate gets deleted.
+     */
+    synchronized Entry publish(Object shareGroup, String key, int width, int height,
+                               Wallpaper wallpaper, float aspectRatio) {
+        Key entryKey = new Key(shareGroup, key, width, height);
+        Entry entry = entries.get(entryKey);
+        if (entry != null) {
+            entry.refCount++;
+            deleteLater(shareGroup, wallpaper);
+            return entry;
+        }
+        entry = new Entry(entryKey, wallpaper, aspectRatio);
+        entries.put(entryKey, entry);
+        byWallpaper.put(wallpaper, entry);
+        return entry;
+    }
+
+    /**
+     * Drop a reference taken by {@link #acquire} or {@link #publish}. Safe to call
+     * from any thread.
+     */
+    synchronized void release(Wallpaper wallpaper) {
+        Entry entry = byWallpaper.get(wallpaper);
+        if (entry == null || --entry.refCount > 0) return;
+        byWallpaper.remove(wallpaper);
+        entries.remove(entry.key);
+        deleteLater(entry.key.shareGroup, wallpaper);
+    }
+
+    /**
+     * Delete the textures of released wallpapers. Must be called on a GL thread
+     * whose current context is in the given share group.
+     */
+    void deletePending(Object shareGroup) {
+        List<Wallpaper> wallpapers;
+        synchronized (this) {
+            wallpapers = pendingDeletes.remove(shareGroup);
+        }
+        if (wallpapers == null) return;
+        for (Wallpaper wallpaper : wallpapers) {
+            wallpaper.destroy();
+        }
+    }
+
+    private void deleteLater(Object shareGroup, Wallpaper wallpaper) {
+        List<Wallpaper> wallpapers = pendingDeletes.get(shareGroup);
+        if (wallpapers == null) {
+            wallpapers = new ArrayList<>();
+            pendingDeletes.put(shareGroup, wallpapers);
+        }
+        wallpapers.add(wallpaper);
+    }
+
+    /**
+     * Wallpaper key and the screen size it was cropped for, within one share group
+     */
+    private static final class Key {
+        final Object shareGroup;
+        final String key;
+        final int width;
+        final int height;
+
+        Key(Object shareGroup, String key, int width, int height) {
+            this.shareGroup = shareGroup;
+            this.key = key;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return width == other.width && height == other.height
+                    && Objects.equals(shareGroup, other.shareGroup) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(shareGroup, key, width, height);
+        }
+    }
+}
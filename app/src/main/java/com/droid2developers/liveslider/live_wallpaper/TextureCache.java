@@ -0,0 +1,44 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Entry point for preparing wallpapers at import time. Decodes a wallpaper once
+ * and stores the copies the renderer can load without decoding: raw pixels in
+ * {@link PixelCacheStore} and an ETC2 texture in {@link CompressedTextureStore}.
+ */
+public class TextureCache {
+    private static final String TAG = TextureCache.class.getSimpleName();
+
+    private TextureCache() {
+    }
+
+    /**
+     * Slow, call from a background thread. Failures are logged, the renderer
+     * falls back to decoding the wallpaper itself.
+     */
+    public static void write(Context context, String wallpaperPath, int screenWidth, int screenHeight) {
+        try {
+            WallpaperDecoder.Decoded decoded = WallpaperDecoder.decode(context, wallpaperPath,
+                    screenWidth, screenHeight);
+            if (decoded == null) return;
+            PixelCacheStore.write(wallpaperPath, screenWidth, screenHeight,
+                    decoded.bitmap, decoded.aspectRatio);
+            CompressedTextureStore.write(wallpaperPath, screenWidth, screenHeight, decoded.bitmap);
+            decoded.recycle();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error preparing wallpaper: " + wallpaperPath, e);
+        }
+    }
+
+    /**
+     * Delete every cached copy of a wallpaper
+     */
+    public static void delete(String wallpaperPath) {
+        PixelCacheStore.delete(wallpaperPath);
+        CompressedTextureStore.delete(wallpaperPath);
+    }
+}
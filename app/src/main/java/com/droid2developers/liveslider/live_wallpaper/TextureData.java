@@ -0,0 +1,29 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pixels of a cropped wallpaper that go to GL straight from a buffer, without
+ * a Bitmap in between. The buffer is usually a mapped file.
+ */
+class TextureData {
+    static final int FORMAT_ETC2 = 1;
+    static final int FORMAT_RGBA_8888 = 2;
+    static final int FORMAT_RGB_565 = 3;
+
+    final ByteBuffer data;
+    final int width;
+    final int height;
+    final int format;
+
+    TextureData(ByteBuffer data, int width, int height, int format) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+
+    boolean isCompressed() {
+        return format == FORMAT_ETC2;
+    }
+}
@@ -0,0 +1,292 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * Uploads decoded wallpapers on a thread of its own, with an EGL context in the
+ * share group of the renderer's context. A finished upload is followed by a fence,
+ * the renderer only takes the wallpaper once the fence has signaled, so the render
+ * thread never waits for the driver to copy pixels. ES 2 contexts have no fences,
+ * there the loader thread waits with glFinish instead.
+ */
+class TextureLoader {
+    private static final String TAG = TextureLoader.class.getSimpleName();
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    // Same as the engines ask for
+    private static final int CLIENT_VERSION = 2;
+
+    interface Callback {
+        /**
+         * Called on the loader thread when a job has finished or failed
+         */
+        void onUploadFinished(String key);
+    }
+
+    /**
+     * One wallpaper to upload. The renderer polls it with {@link #poll()}.
+     */
+    static class Job {
+        private static final int PENDING = 0;
+        private static final int UPLOADED = 1;
+        private static final int FAILED = 2;
+        private static final int TAKEN = 3;
+        private static final int CANCELLED = 4;
+
+        final String key;
+        private final WallpaperDecoder.Decoded decoded;
+        private final TextureLoader loader;
+        // Guarded by this
+        private int state = PENDING;
+        private Wallpaper wallpaper;
+        private long fence;
+
+        private Job(TextureLoader loader, String key, WallpaperDecoder.Decoded decoded) {
+            this.loader = loader;
+            this.key = key;
+            this.decoded = decoded;
+        }
+
+        /**
+         * Render thread only
+         * @return the wallpaper once its textures are complete, the caller owns it from now on
+         */
+        synchronized Wallpaper poll() {
+            if (state != UPLOADED) return null;
+            if (fence != 0) {
+                int status = GLES30.glClientWaitSync(fence, 0, 0);
+                if (status == GLES30.GL_TIMEOUT_EXPIRED) return null;
+                if (status == GLES30.GL_WAIT_FAILED) {
+                    Log.w(TAG, "poll: waiting for the fence failed, finishing instead");
+                    GLES20.glFinish();
+                }
+                GLES30.glDeleteSync(fence);
+                fence = 0;
+            }
+            state = TAKEN;
+            loader.remove(this);
+            return wallpaper;
+        }
+
+        synchronized boolean isUploaded() {
+            return state == UPLOADED;
+        }
+
+        synchronized boolean isFailed() {
+            return state == FAILED;
+        }
+
+        /**
+         * May be called from any thread. Uploaded textures are deleted on the loader thread.
+         */
+        void cancel() {
+            boolean uploaded;
+            synchronized (this) {
+                if (state == TAKEN || state == CANCELLED) return;
+                uploaded = state == UPLOADED;
+                state = CANCELLED;
+            }
+            if (uploaded) {
+                loader.execute(this::destroy);
+            } else {
+                loader.remove(this);
+            }
+        }
+
+        /**
+         * Loader thread only
+         */
+        private void run() {
+            synchronized (this) {
+                if (state == CANCELLED) {
+                    decoded.recycle();
+                    return;
+                }
+            }
+            Wallpaper uploaded;
+            long uploadedFence = 0;
+            long start = System.nanoTime();
+            try {
+                if (!loader.current) {
+                    throw new IllegalStateException("No current context");
+                }
+                uploaded = decoded.texture != null
+                        ? new Wallpaper(decoded.texture) : new Wallpaper(decoded.bitmap);
+                if (Wallpaper.isGles3()) {
+                    uploadedFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                    // The fence must reach the GPU before other contexts can wait for it
+                    GLES20.glFlush();
+                } else {
+                    GLES20.glFinish();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Uploading " + key + " failed", e);
+                decoded.recycle();
+                synchronized (this) {
+                    if (state == PENDING) state = FAILED;
+                }
+                loader.remove(this);
+                loader.callback.onUploadFinished(key);
+                return;
+            }
+            Log.d(TAG, "Uploaded " + key + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+            synchronized (this) {
+                wallpaper = uploaded;
+                fence = uploadedFence;
+                if (state == PENDING) {
+                    state = UPLOADED;
+                } else {
+                    // Cancelled while uploading
+                    destroy();
+                    return;
+                }
+            }
+            loader.callback.onUploadFinished(key);
+        }
+
+        /**
+         * Loader thread only
+         */
+        private synchronized void destroy() {
+            if (wallpaper != null) {
+                wallpaper.destroy();
+                wallpaper = null;
+            }
+            if (fence != 0) {
+                GLES30.glDeleteSync(fence);
+                fence = 0;
+            }
+            loader.remove(this);
+        }
+    }
+
+    private final Callback callback;
+    private final EGL10 egl;
+    private final EGLDisplay display;
+    private final EGLConfig config;
+    private final EGLContext context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, TAG));
+    // Jobs that may still hold textures, guarded by this
+    private final Set<Job> jobs = new HashSet<>();
+    private EGLSurface surface = EGL10.EGL_NO_SURFACE;  // Loader thread only
+    private volatile boolean current;
+
+    private TextureLoader(EGL10 egl, EGLDisplay display, EGLConfig config, EGLContext context,
+                          Callback callback) {
+        this.egl = egl;
+        this.display = display;
+        this.config = config;
+        this.context = context;
+        this.callback = callback;
+        executor.execute(this::makeCurrent);
+    }
+
+    /**
+     * Create a loader sharing objects with the context current on the calling thread
+     * @param config the config of the current context
+     * @return the loader, or null if no shared context could be created
+     */
+    static TextureLoader create(EGLConfig config, Callback callback) {
+        EGL10 egl = (EGL10) EGLContext.getEGL();
+        EGLDisplay display = egl.eglGetCurrentDisplay();
+        EGLContext shared = egl.eglGetCurrentContext();
+        int[] attribs = {EGL_CONTEXT_CLIENT_VERSION, CLIENT_VERSION, EGL10.EGL_NONE};
+        EGLContext context = egl.eglCreateContext(display, config, shared, attribs);
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            Log.w(TAG, "Could not create a shared context, error " + egl.eglGetError());
+            return null;
+        }
+        return new TextureLoader(egl, display, config, context, callback);
+    }
+
+    /**
+     * Upload a decoded wallpaper, which the loader owns from now on
+     */
+    Job submit(String key, WallpaperDecoder.Decoded decoded) {
+        Job job = new Job(this, key, decoded);
+        synchronized (this) {
+            jobs.add(job);
+        }
+        if (!execute(job::run)) {
+            decoded.recycle();
+            synchronized (job) {
+                job.state = Job.FAILED;
+            }
+            remove(job);
+        }
+        return job;
+    }
+
+    /**
+     * Cancel all jobs and destroy the context once they're done. May be called from any thread.
+     */
+    void release() {
+        List<Job> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(jobs);
+        }
+        for (Job job : remaining) {
+            job.cancel();
+        }
+        execute(this::destroyContext);
+        executor.shutdown();
+    }
+
+    private synchronized void remove(Job job) {
+        jobs.remove(job);
+    }
+
+    private boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loader thread only. A 1x1 pbuffer if the config allows it, no surface at all otherwise.
+     */
+    private void makeCurrent() {
+        int[] attribs = {EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE};
+        EGLSurface pbuffer = egl.eglCreatePbufferSurface(display, config, attribs);
+        if (pbuffer != null && pbuffer != EGL10.EGL_NO_SURFACE) {
+            surface = pbuffer;
+        }
+        current = egl.eglMakeCurrent(display, surface, surface, context);
+        if (!current) {
+            Log.w(TAG, "eglMakeCurrent failed, error " + egl.eglGetError());
+        }
+    }
+
+    /**
+     * Loader thread only
+     */
+    private void destroyContext() {
+        egl.eglMakeCurrent(display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                EGL10.EGL_NO_CONTEXT);
+        if (surface != EGL10.EGL_NO_SURFACE) {
+            egl.eglDestroySurface(display, surface);
+            surface = EGL10.EGL_NO_SURFACE;
+        }
+        egl.eglDestroyContext(display, context);
+        current = false;
+    }
+}
@@ -0,0 +1,187 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.droid2developers.liveslider.utils.GLStateCache;
+import com.droid2developers.liveslider.utils.GLUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Uploads a bitmap larger than {@link Wallpaper#getMaxTextureSize()} tile by tile,
+ * so the upload can be spread over several frames. On ES 3 the tiles are read from
+ * one copy of the pixels with row length unpacking, otherwise each tile is copied
+ * into a bitmap of its own.
+ * <p>
+ * GL thread only. The tiles belong to the uploader until it is handed to
+ * {@link Wallpaper#Wallpaper(TileUploader)}.
+ */
+class TileUploader {
+    private static final String TAG = TileUploader.class.getSimpleName();
+
+    final int width;
+    final int height;
+    final int tileSize;
+    final int cols;
+    final int rows;
+    private final int[] textureHandles;
+    private final Rect rect = new Rect();
+    private Bitmap bitmap;
+    // ES 3 only, all pixels of the bitmap
+    private ByteBuffer pixels;
+    private int rowLength;
+    private int format;
+    private int type;
+    private int nextTile;
+    private int steps;
+    private long uploadNanos;
+
+    TileUploader(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        width = bitmap.getWidth();
+        height = bitmap.getHeight();
+        tileSize = Wallpaper.getMaxTextureSize();
+        cols = width / (tileSize + 1) + 1;
+        rows = height / (tileSize + 1) + 1;
+        textureHandles = new int[cols * rows];
+    }
+
+    /**
+     * Upload all tiles right away
+     */
+    static TileUploader uploadAll(Bitmap bitmap) {
+        TileUploader uploader = new TileUploader(bitmap);
+        while (!uploader.step(Long.MAX_VALUE)) {
+            // Every step uploads at least one tile
+        }
+        return uploader;
+    }
+
+    /**
+     * Upload tiles until the budget is spent, at least one per step
+     * @return true once all tiles are uploaded
+     */
+    boolean step(long budgetNanos) {
+        if (isComplete()) return true;
+        final long start = System.nanoTime();
+        if (nextTile == 0 && textureHandles.length > 1) {
+            preparePixels();
+        }
+        do {
+            uploadTile(nextTile++);
+        } while (nextTile < textureHandles.length && System.nanoTime() - start < budgetNanos);
+        steps++;
+        uploadNanos += System.nanoTime() - start;
+        if (isComplete()) {
+            releasePixels();
+            return true;
+        }
+        return false;
+    }
+
+    boolean isComplete() {
+        return nextTile == textureHandles.length;
+    }
+
+    /**
+     * The uploaded tiles, in {@link Wallpaper} order: rows from the bottom up
+     */
+    int[] getTextureHandles() {
+        return textureHandles;
+    }
+
+    String getSummary() {
+        return textureHandles.length + " tiles in " + steps + " frames, "
+                + uploadNanos / 1_000_000 + "ms";
+    }
+
+    /**
+     * Delete the tiles uploaded so far
+     */
+    void cancel() {
+        if (nextTile > 0) {
+            GLStateCache.get().deleteTextures(Arrays.copyOf(textureHandles, nextTile));
+        }
+        abandon();
+    }
+
+    /**
+     * Drop the pixels without GL calls, when the context is already gone
+     */
+    void abandon() {
+        nextTile = textureHandles.length;
+        releasePixels();
+    }
+
+    /**
+     * Copy the pixels once so every tile can be read from them in place
+     */
+    private void preparePixels() {
+        if (!Wallpaper.isGles3()) return;
+        final int bytesPerPixel;
+        if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            format = GLES20.GL_RGBA;
+            type = GLES20.GL_UNSIGNED_BYTE;
+            bytesPerPixel = 4;
+        } else if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            format = GLES20.GL_RGB;
+            type = GLES20.GL_UNSIGNED_SHORT_5_6_5;
+            bytesPerPixel = 2;
+        } else {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bitmap.getRowBytes() * height)
+                    .order(ByteOrder.nativeOrder());
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.position(0);
+            rowLength = bitmap.getRowBytes() / bytesPerPixel;
+            pixels = buffer;
+            bitmap.recycle();
+            bitmap = null;
+        } catch (OutOfMemoryError e) {
+            // The per tile copies need less memory at once
+            Log.w(TAG, "preparePixels: " + e);
+        }
+    }
+
+    private void uploadTile(int tile) {
+        if (textureHandles.length == 1) {
+            textureHandles[0] = GLUtil.loadTexture(bitmap);
+            return;
+        }
+        final int x = tile % cols;
+        final int y = tile / cols;
+        rect.set(x * tileSize, (rows - y - 1) * tileSize,
+                (x + 1) * tileSize, (rows - y) * tileSize);
+        // The bottom tiles must be full tiles for drawing, so only allow
+        // edge tiles at the top. Edge tiles are cut to the image.
+        final int leftoverHeight = height % tileSize;
+        if (leftoverHeight > 0) {
+            rect.offset(0, -tileSize + leftoverHeight);
+        }
+        rect.intersect(0, 0, width, height);
+        if (pixels != null) {
+            textureHandles[tile] = GLUtil.loadSubTexture(rowLength, rect.left, rect.top,
+                    rect.width(), rect.height(), format, type, pixels);
+        } else {
+            Bitmap subBitmap = Bitmap.createBitmap(bitmap, rect.left, rect.top,
+                    rect.width(), rect.height());
+            textureHandles[tile] = GLUtil.loadTexture(subBitmap);
+            subBitmap.recycle();
+        }
+    }
+
+    private void releasePixels() {
+        pixels = null;
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+    }
+}
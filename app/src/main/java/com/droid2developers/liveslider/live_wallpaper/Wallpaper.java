@@ -17,14 +17,20 @@
 package com.droid2developers.liveslider.live_wallpaper;
 
 import android.graphics.Bitmap;
-import android.graphics.Rect;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.util.Log;
 
+import com.droid2developers.liveslider.utils.GLStateCache;
 import com.droid2developers.liveslider.utils.GLUtil;
+import com.droid2developers.liveslider.utils.ProgramBinaryCache;
 
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 class Wallpaper {
+    private static final String TAG = Wallpaper.class.getSimpleName();
     private static final String VERTEX_SHADER_CODE = ""
             +
             // This matrix member variable provides a hook to manipulate
@@ -42,36 +48,46 @@ class Wallpaper {
             + "  gl_FragColor.a = uAlpha;"
             + "}";
 
-    // number of coordinates per vertex in this array
-    private static final int COORDS_PER_VERTEX = 3;
-    private static final int VERTEX_STRIDE_BYTES = COORDS_PER_VERTEX
-            * GLUtil.BYTES_PER_FLOAT;
-    private static final int VERTICES = 6; // TL, BL, BR, TL, BR, TR
+    // For external textures, which come with a matrix for their texture coordinates
+    private static final String EXTERNAL_VERTEX_SHADER_CODE = ""
+            + "uniform mat4 uMVPMatrix;" + "uniform mat4 uTexMatrix;"
+            + "attribute vec4 aPosition;"
+            + "attribute vec2 aTexCoords;" + "varying vec2 vTexCoords;"
+            + "void main(){"
+            + "  vTexCoords = (uTexMatrix * vec4(aTexCoords, 0.0, 1.0)).xy;"
+            + "  gl_Position = uMVPMatrix * aPosition;" + "}";
+
+    private static final String EXTERNAL_FRAGMENT_SHADER_CODE = ""
+            + "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;" + "uniform samplerExternalOES uTexture;"
+            + "uniform float uAlpha;"
+            + "varying vec2 vTexCoords;" + "void main(){"
+            + "  gl_FragColor = texture2D(uTexture, vTexCoords);"
+            + "  gl_FragColor.a = uAlpha;"
+            + "}";
 
+    // Both programs use the same locations, so attribute state carries over between them
+    private static final String[] ATTRIBUTES = {"aPosition", "aTexCoords"};
+
+    // number of coordinates per vertex: X, Y, Z
+    private static final int COORDS_PER_VERTEX = 3;
     // S, T (or X, Y)
     private static final int COORDS_PER_TEXTURE_VERTEX = 2;
-    private static final int TEXTURE_VERTEX_STRIDE_BYTES = COORDS_PER_TEXTURE_VERTEX
+    // Position and texture coordinates are interleaved in one buffer
+    private static final int FLOATS_PER_VERTEX = COORDS_PER_VERTEX + COORDS_PER_TEXTURE_VERTEX;
+    private static final int VERTEX_STRIDE_BYTES = FLOATS_PER_VERTEX
             * GLUtil.BYTES_PER_FLOAT;
-
-    private static final float[] SQUARE_TEXTURE_VERTICES = {0, 0, // top left
-            0, 1, // bottom left
-            1, 1, // bottom right
-
-            0, 0, // top left
-            1, 1, // bottom right
-            1, 0, // top right
-    };
+    private static final int TEXTURE_COORDS_OFFSET_BYTES = COORDS_PER_VERTEX
+            * GLUtil.BYTES_PER_FLOAT;
+    private static final int VERTICES_PER_TILE = 4; // TL, BL, TR, BR as a triangle strip
     private static int sMaxTextureSize;
-    private static int sProgramHandle;
-    private static int sAttribPositionHandle;
-    private static int sAlphaUniformHandle;
-    private static int sAttribTextureCoordsHandle;
-    private static int sUniformTextureHandle;
-    private static int sUniformMVPMatrixHandle;
-    private final float[] mVertices = new float[COORDS_PER_VERTEX * VERTICES];
+    private static int sEtcTextureFormat;
+    private static boolean sGles3;
+    // Programs of each share group, and those of the context current on each GL thread
+    private static final Map<Object, Programs> sSharedPrograms = new WeakHashMap<>();
+    private static final ThreadLocal<Programs> sPrograms = new ThreadLocal<>();
     private boolean mHasContent = false;
-    private FloatBuffer mVertexBuffer;
-    private FloatBuffer mTextureCoordsBuffer;
+    private int mVertexBufferHandle;
     private int mCols = 1;
     private int mRows = 1;
     private int mWidth = 0;
@@ -79,77 +95,191 @@ class Wallpaper {
     private float mRatio;
     private int mTileSize = sMaxTextureSize;
     private int[] mTextureHandles;
+    // Set if the only tile is an external texture
+    private HardwareBitmapTexture mHardwareTexture;
+    // Left, right, bottom, top of each tile in model space, for culling
+    private float[] mTileBounds;
 
     Wallpaper(Bitmap bitmap) {
-        if (bitmap == null) {
+        this(bitmap != null ? TileUploader.uploadAll(bitmap) : null);
+    }
+
+    /**
+     * Wallpaper from the tiles of a complete upload, which it owns from now on
+     */
+    Wallpaper(TileUploader upload) {
+        if (upload == null) {
             return;
         }
 
-        mTileSize = sMaxTextureSize;
         mHasContent = true;
-        mVertexBuffer = GLUtil.newFloatBuffer(mVertices.length);
-        mTextureCoordsBuffer = GLUtil.asFloatBuffer(SQUARE_TEXTURE_VERTICES);
-
-        mWidth = bitmap.getWidth();
-        mHeight = bitmap.getHeight();
+        mWidth = upload.width;
+        mHeight = upload.height;
         mRatio = (float) mWidth / (float) mHeight;
-        int leftoverHeight = mHeight % mTileSize;
+        mTileSize = upload.tileSize;
+        mCols = upload.cols;
+        mRows = upload.rows;
+        mTextureHandles = upload.getTextureHandles();
+        mVertexBufferHandle = createVertexBuffer();
+    }
 
-        // Load m x n textures
-        mCols = mWidth / (mTileSize + 1) + 1;
-        mRows = mHeight / (mTileSize + 1) + 1;
+    /**
+     * Single tile wallpaper from a hardware bitmap, which must have been polled
+     * successfully. The wallpaper owns the texture from now on.
+     */
+    Wallpaper(HardwareBitmapTexture texture) {
+        mHasContent = true;
+        mWidth = texture.width;
+        mHeight = texture.height;
+        mRatio = (float) mWidth / (float) mHeight;
+        mTileSize = Math.max(mWidth, mHeight);
+        mHardwareTexture = texture;
+        mTextureHandles = new int[]{texture.getTextureHandle()};
+        mVertexBufferHandle = createVertexBuffer();
+    }
 
-        mTextureHandles = new int[mCols * mRows];
-        if (mCols == 1 && mRows == 1) {
-            mTextureHandles[0] = GLUtil.loadTexture(bitmap);
+    /**
+     * Single tile wallpaper from cached texture data, which must fit within
+     * {@link #getMaxTextureSize()}. Compressed data needs {@link #isCompressedSupported()}.
+     */
+    Wallpaper(TextureData texture) {
+        mHasContent = true;
+        mWidth = texture.width;
+        mHeight = texture.height;
+        mRatio = (float) mWidth / (float) mHeight;
+        mTileSize = Math.max(mWidth, mHeight);
+        final int textureHandle;
+        if (texture.isCompressed()) {
+            textureHandle = GLUtil.loadCompressedTexture(sEtcTextureFormat,
+                    mWidth, mHeight, texture.data);
+        } else if (texture.format == TextureData.FORMAT_RGB_565) {
+            textureHandle = loadTexture(GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, texture.data);
         } else {
-            Rect rect = new Rect();
-            for (int y = 0; y < mRows; y++) {
-                for (int x = 0; x < mCols; x++) {
-                    rect.set(x * mTileSize, (mRows - y - 1) * mTileSize,
-                            (x + 1) * mTileSize, (mRows - y) * mTileSize);
-                    // The bottom tiles must be full tiles for drawing, so only
-                    // allow edge tiles
-                    // at the top
-                    if (leftoverHeight > 0) {
-                        rect.offset(0, -mTileSize + leftoverHeight);
-                    }
-//                    rect.intersect(0, 0, mWidth, mHeight);
-                    Bitmap subBitmap = Bitmap.createBitmap(bitmap, rect.left,
-                            rect.top, rect.width(), rect.height());
-                    mTextureHandles[y * mCols + x] = GLUtil
-                            .loadTexture(subBitmap);
-                    subBitmap.recycle();
-                }
+            textureHandle = loadTexture(GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, texture.data);
+        }
+        mTextureHandles = new int[]{textureHandle};
+        mVertexBufferHandle = createVertexBuffer();
+    }
+
+    private int loadTexture(int format, int type, ByteBuffer pixels) {
+        return sGles3 ? GLUtil.loadTextureStreamed(mWidth, mHeight, format, type, pixels)
+                : GLUtil.loadTexture(mWidth, mHeight, format, type, pixels);
+    }
+
+    /**
+     * @return true if {@link HardwareBitmapTexture}s can be drawn
+     */
+    static boolean isExternalSupported() {
+        Programs programs = sPrograms.get();
+        return programs != null && programs.external != null;
+    }
+
+    boolean isHardware() {
+        return mHardwareTexture != null;
+    }
+
+    static int getMaxTextureSize() {
+        return sMaxTextureSize;
+    }
+
+    /**
+     * @return true if textures can be uploaded with unpack buffers and row lengths
+     */
+    static boolean isGles3() {
+        return sGles3;
+    }
+
+    /**
+     * @return true if the current context can show the textures
+     * {@link CompressedTextureStore} writes
+     */
+    static boolean isCompressedSupported() {
+        return sEtcTextureFormat != 0;
+    }
+
+    /**
+     * Build the quads of all tiles once and keep them on the GPU. Parallax
+     * movement only changes the MVP matrix, so the geometry never changes.
+     */
+    private int createVertexBuffer() {
+        float[] vertices = new float[mCols * mRows * VERTICES_PER_TILE * FLOATS_PER_VERTEX];
+        mTileBounds = new float[mCols * mRows * 4];
+        int i = 0;
+        int b = 0;
+        for (int y = 0; y < mRows; y++) {
+            for (int x = 0; x < mCols; x++) {
+                float left = -mRatio * Math.min(-1 + 2f * x * mTileSize / mWidth, 1);
+                float right = -mRatio * Math.min(-1 + 2f * (x + 1) * mTileSize / mWidth, 1);
+                float top = Math.min(-1 + 2f * (y + 1) * mTileSize / mHeight, 1);
+                float bottom = Math.min(-1 + 2f * y * mTileSize / mHeight, 1);
+
+                i = putVertex(vertices, i, left, top, 0, 0);
+                i = putVertex(vertices, i, left, bottom, 0, 1);
+                i = putVertex(vertices, i, right, top, 1, 0);
+                i = putVertex(vertices, i, right, bottom, 1, 1);
+                mTileBounds[b++] = left;
+                mTileBounds[b++] = right;
+                mTileBounds[b++] = bottom;
+                mTileBounds[b++] = top;
             }
         }
-        bitmap.recycle();
+
+        final int[] bufferHandle = new int[1];
+        GLStateCache state = GLStateCache.get();
+        GLES20.glGenBuffers(1, bufferHandle, 0);
+        state.bindArrayBuffer(bufferHandle[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.length * GLUtil.BYTES_PER_FLOAT,
+                GLUtil.asFloatBuffer(vertices), GLES20.GL_STATIC_DRAW);
+        state.bindArrayBuffer(0);
+        GLUtil.checkGlError("glBufferData");
+        return bufferHandle[0];
+    }
+
+    private static int putVertex(float[] vertices, int i, float x, float y, float s, float t) {
+        vertices[i++] = x;
+        vertices[i++] = y;
+        vertices[i++] = 0;
+        vertices[i++] = s;
+        vertices[i++] = t;
+        return i;
     }
 
     static void initGl() {
-        // Initialize shaders and create/link program
-        int vertexShaderHandle = GLUtil.loadShader(GLES20.GL_VERTEX_SHADER,
-                VERTEX_SHADER_CODE);
-        int fragShaderHandle = GLUtil.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                FRAGMENT_SHADER_CODE);
-
-        sProgramHandle = GLUtil.createAndLinkProgram(vertexShaderHandle,
-                fragShaderHandle, null);
-        sAlphaUniformHandle = GLES20.glGetUniformLocation(sProgramHandle,
-                "uAlpha");
-        sAttribPositionHandle = GLES20.glGetAttribLocation(sProgramHandle,
-                "aPosition");
-        sAttribTextureCoordsHandle = GLES20.glGetAttribLocation(sProgramHandle,
-                "aTexCoords");
-        sUniformMVPMatrixHandle = GLES20.glGetUniformLocation(sProgramHandle,
-                "uMVPMatrix");
-        sUniformTextureHandle = GLES20.glGetUniformLocation(sProgramHandle,
-                "uTexture");
+        initGl(null, null);
+    }
+
+    /**
+     * Set up the programs for the context current on this thread
+     * @param shareGroup share group of the context, its programs are reused by the
+     *                   other contexts in it. Null for a context of its own.
+     * @param cache where linked programs are kept between surfaces, or null to
+     *              always compile them
+     */
+    static void initGl(Object shareGroup, ProgramBinaryCache cache) {
+        Programs programs = null;
+        if (shareGroup != null) {
+            synchronized (sSharedPrograms) {
+                programs = sSharedPrograms.get(shareGroup);
+            }
+        }
+        // A context sharing objects with another engine can use its programs
+        if (programs == null || !GLES20.glIsProgram(programs.program.handle)) {
+            programs = new Programs(cache);
+            if (shareGroup != null) {
+                synchronized (sSharedPrograms) {
+                    sSharedPrograms.put(shareGroup, programs);
+                }
+            }
+        }
+        sPrograms.set(programs);
+        GLStateCache.get().useProgram(programs.program.handle);
 
         // Compute max texture size
         int[] maxTextureSize = new int[1];
         GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
         sMaxTextureSize = maxTextureSize[0];
+        sEtcTextureFormat = GLUtil.getEtcTextureFormat();
+        sGles3 = GLUtil.isGles3();
     }
 
     void draw(float[] mvpMatrix, float alpha) {
@@ -157,64 +287,141 @@ class Wallpaper {
             return;
         }
 
+        GLStateCache state = GLStateCache.get();
+        final Programs programs = sPrograms.get();
+        final Program program = mHardwareTexture != null ? programs.external : programs.program;
+
         // Add program to OpenGL ES environment
-        GLES20.glUseProgram(sProgramHandle);
+        state.useProgram(program.handle);
 
         // Apply the projection and view transformation
-        GLES20.glUniformMatrix4fv(sUniformMVPMatrixHandle, 1, false, mvpMatrix,
+        GLES20.glUniformMatrix4fv(program.uniformMVPMatrix, 1, false, mvpMatrix,
                 0);
-        GLUtil.checkGlError("glUniformMatrix4fv");
+        GLUtil.checkFrameGlError("glUniformMatrix4fv");
+        if (mHardwareTexture != null) {
+            GLES20.glUniformMatrix4fv(program.uniformTexMatrix, 1, false,
+                    mHardwareTexture.getTextureMatrix(), 0);
+        }
 
-        // Set up vertex buffer
-        GLES20.glUniform1f(sAlphaUniformHandle, alpha);
-        GLES20.glEnableVertexAttribArray(sAttribPositionHandle);
-        GLES20.glVertexAttribPointer(sAttribPositionHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, VERTEX_STRIDE_BYTES, mVertexBuffer);
+        // Set up vertex buffer, pointers follow the buffer they were set with
+        GLES20.glUniform1f(program.uniformAlpha, alpha);
+        if (state.bindArrayBuffer(mVertexBufferHandle)) {
+            GLES20.glVertexAttribPointer(program.attribPosition, COORDS_PER_VERTEX,
+                    GLES20.GL_FLOAT, false, VERTEX_STRIDE_BYTES, 0);
+            GLES20.glVertexAttribPointer(program.attribTextureCoords,
+                    COORDS_PER_TEXTURE_VERTEX, GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE_BYTES, TEXTURE_COORDS_OFFSET_BYTES);
+        }
+        state.enableVertexAttribArray(program.attribPosition);
+        state.enableVertexAttribArray(program.attribTextureCoords);
 
         // Set up texture stuff
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glUniform1i(sUniformTextureHandle, 0);
-        GLES20.glVertexAttribPointer(sAttribTextureCoordsHandle,
-                COORDS_PER_TEXTURE_VERTEX, GLES20.GL_FLOAT, false,
-                TEXTURE_VERTEX_STRIDE_BYTES, mTextureCoordsBuffer);
-        GLES20.glEnableVertexAttribArray(sAttribTextureCoordsHandle);
-        // Log.i("Wallpaper", "mRatio=" + mRatio);
-        // mRatio = 1;
-        // Draw tiles
-        for (int y = 0; y < mRows; y++) {
-            for (int x = 0; x < mCols; x++) {
-                // Pass in the vertex information
-                mVertices[0] = mVertices[3] = mVertices[9] = -mRatio
-                        * Math.min(-1 + 2f * 1 * x * mTileSize / mWidth, 1); // left
-                mVertices[1] = mVertices[10] = mVertices[16] = Math.min(-1 + 2f
-                        * (y + 1) * mTileSize / mHeight, 1); // top
-                mVertices[6] = mVertices[12] = mVertices[15] = -mRatio
-                        * Math.min(-1 + 2f * 1 * (x + 1) * mTileSize / mWidth,
-                        1); // right
-                mVertices[4] = mVertices[7] = mVertices[13] = Math.min(-1 + 2f
-                        * y * mTileSize / mHeight, 1); // bottom
-                mVertexBuffer.put(mVertices);
-                mVertexBuffer.position(0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureHandles[y
-                        * mCols + x]);
-                GLUtil.checkGlError("glBindTexture");
-
-                // Draw the two triangles
-                GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mVertices.length
-                        / COORDS_PER_VERTEX);
+        state.activeTexture(0);
+
+        if (mHardwareTexture != null) {
+            // Its own target, the cached GL_TEXTURE_2D binding stays valid
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureHandles[0]);
+            GLUtil.checkFrameGlError("glBindTexture");
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTICES_PER_TILE);
+            return;
+        }
+
+        // Draw tiles, skipping the ones the parallax moved off screen
+        for (int i = 0; i < mTextureHandles.length; i++) {
+            if (isOutsideFrustum(mvpMatrix, i)) {
+                continue;
             }
+            state.bindTexture(mTextureHandles[i]);
+            GLUtil.checkFrameGlError("glBindTexture");
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, i * VERTICES_PER_TILE,
+                    VERTICES_PER_TILE);
         }
+    }
 
-        GLES20.glDisableVertexAttribArray(sAttribPositionHandle);
-        GLES20.glDisableVertexAttribArray(sAttribTextureCoordsHandle);
+    /**
+     * @return true if the tile lies entirely on the outer side of one clip plane
+     */
+    private boolean isOutsideFrustum(float[] m, int tile) {
+        final int b = tile * 4;
+        int outside = 0xf;
+        for (int corner = 0; corner < 4; corner++) {
+            float x = mTileBounds[b + (corner & 1)];
+            float y = mTileBounds[b + 2 + (corner >> 1)];
+            // Tiles lie in the z = 0 plane
+            float clipX = m[0] * x + m[4] * y + m[12];
+            float clipY = m[1] * x + m[5] * y + m[13];
+            float clipW = m[3] * x + m[7] * y + m[15];
+            int code = 0;
+            if (clipX < -clipW) code |= 1;
+            if (clipX > clipW) code |= 2;
+            if (clipY < -clipW) code |= 4;
+            if (clipY > clipW) code |= 8;
+            outside &= code;
+        }
+        return outside != 0;
     }
 
     void destroy() {
-        if (mTextureHandles != null) {
-            GLES20.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
+        GLStateCache state = GLStateCache.get();
+        if (mHardwareTexture != null) {
+            mHardwareTexture.destroy();
+            mHardwareTexture = null;
+        } else if (mTextureHandles != null) {
+            state.deleteTextures(mTextureHandles);
             GLUtil.checkGlError("Destroy picture");
 //            mTextureHandles = null;
         }
+        if (mVertexBufferHandle != 0) {
+            state.deleteBuffer(mVertexBufferHandle);
+            mVertexBufferHandle = 0;
+        }
+    }
+
+    /**
+     * The programs of one share group
+     */
+    private static class Programs {
+        final Program program;
+        final Program external;  // Null without external texture support
+
+        Programs(ProgramBinaryCache cache) {
+            program = new Program(cache, VERTEX_SHADER_CODE, FRAGMENT_SHADER_CODE);
+            Program externalProgram = null;
+            if (GLUtil.isExternalTextureSupported()) {
+                try {
+                    externalProgram = new Program(cache, EXTERNAL_VERTEX_SHADER_CODE,
+                            EXTERNAL_FRAGMENT_SHADER_CODE);
+                } catch (RuntimeException e) {
+                    // Hardware bitmaps are uploaded like any other then
+                    Log.w(TAG, "initGl: no external texture program", e);
+                }
+            }
+            external = externalProgram;
+        }
+    }
+
+    private static class Program {
+        final int handle;
+        final int attribPosition;
+        final int attribTextureCoords;
+        final int uniformMVPMatrix;
+        final int uniformTexMatrix;  // -1 for GL_TEXTURE_2D
+        final int uniformAlpha;
+
+        Program(ProgramBinaryCache cache, String vertexShaderCode, String fragmentShaderCode) {
+            handle = cache != null
+                    ? cache.loadProgram(vertexShaderCode, fragmentShaderCode, ATTRIBUTES)
+                    : ProgramBinaryCache.compile(vertexShaderCode, fragmentShaderCode,
+                    ATTRIBUTES, false);
+            attribPosition = GLES20.glGetAttribLocation(handle, "aPosition");
+            attribTextureCoords = GLES20.glGetAttribLocation(handle, "aTexCoords");
+            uniformMVPMatrix = GLES20.glGetUniformLocation(handle, "uMVPMatrix");
+            uniformTexMatrix = GLES20.glGetUniformLocation(handle, "uTexMatrix");
+            uniformAlpha = GLES20.glGetUniformLocation(handle, "uAlpha");
+
+            // The sampler always reads texture unit 0, uniforms stick with the program
+            GLStateCache.get().useProgram(handle);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(handle, "uTexture"), 0);
+        }
     }
 }
@@ -0,0 +1,214 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+
+import com.droid2developers.liveslider.R;
+import com.droid2developers.liveslider.utils.Constant;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.droid2developers.liveslider.utils.Constant.DEFAULT_LOCAL_PATH;
+
+/**
+ * Decodes and crops wallpaper images to the screen size. Runs off the GL thread,
+ * the renderer only uploads the resulting bitmaps.
+ */
+class WallpaperDecoder {
+    private static final String TAG = WallpaperDecoder.class.getSimpleName();
+
+    // Keys that don't point to a local file
+    static final String KEY_BACKGROUND = "drawable://parallax_background";
+    static final String KEY_DEFAULT = DEFAULT_LOCAL_PATH;
+
+    /**
+     * A decoded and cropped wallpaper together with the aspect ratio of its source image.
+     * Holds either a bitmap or texture data from one of the caches.
+     */
+    static class Decoded {
+        final Bitmap bitmap;
+        final TextureData texture;
+        final float aspectRatio;
+
+        Decoded(Bitmap bitmap, float aspectRatio) {
+            this.bitmap = bitmap;
+            this.texture = null;
+            this.aspectRatio = aspectRatio;
+        }
+
+        Decoded(TextureData texture, float aspectRatio) {
+            this.bitmap = null;
+            this.texture = texture;
+            this.aspectRatio = aspectRatio;
+        }
+
+        /**
+         * @return true if the pixels live in a graphics buffer, see {@link HardwareBitmapTexture}
+         */
+        boolean isHardware() {
+            return bitmap != null && bitmap.getConfig() == Bitmap.Config.HARDWARE;
+        }
+
+        /**
+         * Copy a hardware bitmap back into memory for the texImage2D upload path.
+         * Recycles this one.
+         * @return the software copy, or null if the copy failed
+         */
+        Decoded toSoftware() {
+            Bitmap copy = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            bitmap.recycle();
+            return copy != null ? new Decoded(copy, aspectRatio) : null;
+        }
+
+        int getByteCount() {
+            return bitmap != null ? bitmap.getAllocationByteCount() : texture.data.capacity();
+        }
+
+        void recycle() {
+            if (bitmap != null) bitmap.recycle();
+        }
+    }
+
+    private WallpaperDecoder() {
+    }
+
+    /**
+     * Same as {@link #decode(Context, String, int, int)}, but prefers the copies
+     * prepared by {@link TextureCache}: the ETC2 texture if the GPU supports it,
+     * then the cached raw pixels. Files without a valid pixel cache entry for this
+     * screen size get one after decoding, so the next load of the same surface maps it.
+     * @param maxTextureSize largest texture the GPU takes, bigger cached copies are skipped
+     * @param hardwareBitmaps decode images that fit in one texture into hardware bitmaps
+     */
+    static Decoded decode(Context context, String key, int screenWidth, int screenHeight,
+                          int maxTextureSize, boolean compressedSupported,
+                          boolean hardwareBitmaps) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final boolean isFile = !KEY_BACKGROUND.equals(key) && !KEY_DEFAULT.equals(key);
+        Decoded decoded = null;
+        String source = "image";
+        if (isFile && compressedSupported) {
+            TextureData texture = CompressedTextureStore.read(key, screenWidth, screenHeight);
+            if (texture != null && fits(texture, maxTextureSize)) {
+                // Only wider wallpapers keep their aspect ratio through the crop,
+                // and those are the only ones the ratio matters for
+                decoded = new Decoded(texture, (float) texture.width / texture.height);
+                source = "etc2";
+            }
+        }
+        boolean writeCache = false;
+        if (decoded == null && isFile) {
+            Decoded cached = PixelCacheStore.read(key, screenWidth, screenHeight);
+            if (cached != null && fits(cached.texture, maxTextureSize)) {
+                decoded = cached;
+                source = "pixel cache";
+            } else {
+                // Missing or stale for this size, other sizes keep their entries.
+                // An entry too large for this GPU would only be written again.
+                writeCache = cached == null;
+            }
+        }
+        if (decoded == null) {
+            // The pixel cache is written from a software bitmap, later loads get
+            // the hardware bitmap speed from the mapped file instead
+            int maxHardwareSize = hardwareBitmaps && !writeCache ? maxTextureSize : 0;
+            decoded = decode(context, key, screenWidth, screenHeight, maxHardwareSize);
+            if (decoded != null && decoded.isHardware()) source = "image to hardware bitmap";
+            if (decoded != null && writeCache) {
+                PixelCacheStore.write(key, screenWidth, screenHeight, decoded.bitmap,
+                        decoded.aspectRatio);
+            }
+        }
+        Log.d(TAG, "Loaded " + key + " from " + source + " in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return decoded;
+    }
+
+    private static boolean fits(TextureData texture, int maxTextureSize) {
+        return texture.width <= maxTextureSize && texture.height <= maxTextureSize;
+    }
+
+    /**
+     * Decode the image behind the given key and crop it for a screen of the given size.
+     * The crop rect and target size are computed from the image header, so the
+     * full resolution image is never allocated.
+     * @return the cropped wallpaper, or null if the image could not be decoded
+     */
+    static Decoded decode(Context context, String key, int screenWidth, int screenHeight)
+            throws IOException {
+        return decode(context, key, screenWidth, screenHeight, 0);
+    }
+
+    /**
+     * @param maxHardwareSize results up to this size are decoded into a hardware bitmap,
+     * 0 for software bitmaps only
+     */
+    static Decoded decode(Context context, String key, int screenWidth, int screenHeight,
+                          int maxHardwareSize) throws IOException {
+        if (screenWidth == 0 || screenHeight == 0) {
+            Log.e(TAG, "decode: screen size is zero");
+            return null;
+        }
+        final float[] aspectRatio = new float[1];
+        Bitmap bitmap = ImageDecoder.decodeBitmap(createSource(context, key),
+                (decoder, info, source) -> {
+                    Size size = info.getSize();
+                    aspectRatio[0] = (float) size.getWidth() / size.getHeight();
+                    Size target = applyCrop(decoder, size.getWidth(), size.getHeight(),
+                            screenWidth, screenHeight);
+                    // Hardware bitmaps can't be tiled, everything else is uploaded
+                    // with texImage2D, which needs a software bitmap
+                    boolean hardware = target.getWidth() <= maxHardwareSize
+                            && target.getHeight() <= maxHardwareSize;
+                    decoder.setAllocator(hardware
+                            ? ImageDecoder.ALLOCATOR_HARDWARE : ImageDecoder.ALLOCATOR_SOFTWARE);
+                });
+        return new Decoded(bitmap, aspectRatio[0]);
+    }
+
+    private static ImageDecoder.Source createSource(Context context, String key) {
+        if (KEY_BACKGROUND.equals(key)) {
+            return ImageDecoder.createSource(context.getResources(), R.drawable.parallax_background);
+        } else if (KEY_DEFAULT.equals(key)) {
+            return ImageDecoder.createSource(context.getAssets(), Constant.DEFAULT_WALLPAPER_NAME);
+        }
+        return ImageDecoder.createSource(new File(key));
+    }
+
+    /**
+     * Wallpapers narrower than the screen are cropped to the screen aspect ratio,
+     * wider ones keep their width for scrolling. Either way the result is at most
+     * 1.1 times the screen height.
+     * @return the size of the decoded bitmap
+     */
+    private static Size applyCrop(ImageDecoder decoder, int width, int height,
+                                  int screenWidth, int screenHeight) {
+        final float screenAspectRatio = (float) screenWidth / screenHeight;
+        final float wallpaperAspectRatio = (float) width / height;
+        final int maxHeight = (int) (1.1 * screenHeight);
+
+        // Height of the part of the source image that ends up on screen
+        final float visibleHeight = wallpaperAspectRatio < screenAspectRatio
+                ? width / screenAspectRatio : height;
+        final float scale = Math.min(1f, maxHeight / visibleHeight);
+
+        final int targetWidth = Math.max(1, Math.round(width * scale));
+        final int targetHeight = Math.max(1, Math.round(height * scale));
+        decoder.setTargetSize(targetWidth, targetHeight);
+
+        if (wallpaperAspectRatio < screenAspectRatio) {
+            // Crop rect is in target size coordinates
+            int cropHeight = Math.min(targetHeight, Math.max(1, Math.round(visibleHeight * scale)));
+            int top = (targetHeight - cropHeight) / 2;
+            decoder.setCrop(new Rect(0, top, targetWidth, top + cropHeight));
+            return new Size(targetWidth, cropHeight);
+        }
+        return new Size(targetWidth, targetHeight);
+    }
+}
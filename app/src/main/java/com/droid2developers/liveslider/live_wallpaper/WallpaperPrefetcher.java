@@ -0,0 +1,274 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes wallpapers on a background thread ahead of time and keeps the results
+ * in a memory bounded LRU cache, so the GL thread only has to upload textures.
+ * Requested wallpapers are pinned until the renderer takes them, only
+ * prefetched ones are subject to eviction.
+ */
+class WallpaperPrefetcher {
+    private static final String TAG = WallpaperPrefetcher.class.getSimpleName();
+    // Fraction of the heap decoded wallpapers are allowed to use
+    private static final int MEMORY_BUDGET_DIVISOR = 8;
+
+    interface Callback {
+        void onWallpaperDecoded(String key);
+        void onWallpaperFailed(String key);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final LruCache<String, WallpaperDecoder.Decoded> cache;
+
+    // Guarded by this
+    private final Map<String, DecodeJob> pendingJobs = new HashMap<>();
+    private final Map<String, WallpaperDecoder.Decoded> pinned = new HashMap<>();
+    private String requestedKey;
+    private int targetWidth;
+    private int targetHeight;
+    private int maxTextureSize;
+    private boolean compressedSupported;
+    private boolean hardwareBitmaps;
+    // Wallpapers of fixed layers, with the fraction of the screen size they're decoded at
+    private final Map<String, Float> fixedLayerScales = new HashMap<>();
+    private float foregroundScale = 1f;
+
+    WallpaperPrefetcher(Context context, Callback callback) {
+        mContext = context;
+        mCallback = callback;
+        int budget = (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / MEMORY_BUDGET_DIVISOR);
+        cache = new LruCache<String, WallpaperDecoder.Decoded>(budget) {
+            @Override
+            protected int sizeOf(String key, WallpaperDecoder.Decoded value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                                        WallpaperDecoder.Decoded oldValue,
+                                        WallpaperDecoder.Decoded newValue) {
+                // Taken entries are owned by the renderer now, only recycle dropped ones
+                if (evicted || newValue != null) {
+                    oldValue.recycle();
+                }
+            }
+        };
+    }
+
+    /**
+     * Set the screen size wallpapers are cropped for. Drops everything decoded
+     * for a different size.
+     */
+    synchronized void setTargetSize(int width, int height) {
+        if (width == targetWidth && height == targetHeight) return;
+        targetWidth = width;
+        targetHeight = height;
+        for (DecodeJob job : pendingJobs.values()) {
+            job.cancel();
+        }
+        pendingJobs.clear();
+        clearLocked();
+    }
+
+    /**
+     * Tell decodes which cached textures the GPU can take.
+     * Only affects decodes submitted afterwards.
+     */
+    synchronized void setTextureLimits(int maxTextureSize, boolean compressedSupported) {
+        this.maxTextureSize = maxTextureSize;
+        this.compressedSupported = compressedSupported;
+    }
+
+    /**
+     * Decode into hardware bitmaps where possible.
+     * Only affects decodes submitted afterwards.
+     */
+    synchronized void setHardwareBitmaps(boolean enabled) {
+        hardwareBitmaps = enabled;
+    }
+
+    /**
+     * Set the layers of the parallax stack. Wallpapers of fixed layers are pinned
+     * once decoded and never cancelled, all other keys are foreground wallpapers.
+     * Only affects decodes submitted afterwards.
+     */
+    synchronized void setLayers(Map<String, Float> fixedLayerScales, float foregroundScale) {
+        this.fixedLayerScales.clear();
+        this.fixedLayerScales.putAll(fixedLayerScales);
+        this.foregroundScale = foregroundScale;
+    }
+
+    /**
+     * Ask for a wallpaper that is about to be shown. A previously requested
+     * wallpaper that is still being decoded gets cancelled, so rapid changes
+     * don't queue up a decode for every step.
+     */
+    void request(String key) {
+        synchronized (this) {
+            if (!fixedLayerScales.containsKey(key)) {
+                if (requestedKey != null && !requestedKey.equals(key)) {
+                    cancelLocked(requestedKey);
+                    // Never taken, keep it around as an ordinary cache entry
+                    WallpaperDecoder.Decoded stale = pinned.remove(requestedKey);
+                    if (stale != null) cache.put(requestedKey, stale);
+                }
+                requestedKey = key;
+            }
+            if (!pinned.containsKey(key)) {
+                WallpaperDecoder.Decoded decoded = cache.remove(key);
+                if (decoded == null) {
+                    submitLocked(key);
+                    return;
+                }
+                pinned.put(key, decoded);
+            }
+        }
+        mCallback.onWallpaperDecoded(key);
+    }
+
+    /**
+     * Decode the given wallpapers in the background. Pending prefetches that are
+     * no longer in the list are cancelled.
+     */
+    synchronized void prefetch(List<String> keys) {
+        Iterator<Map.Entry<String, DecodeJob>> iterator = pendingJobs.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, DecodeJob> entry = iterator.next();
+            String key = entry.getKey();
+            if (!keys.contains(key) && !key.equals(requestedKey)
+                    && !fixedLayerScales.containsKey(key)) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+        for (String key : keys) {
+            if (key != null && !pinned.containsKey(key) && cache.get(key) == null) {
+                submitLocked(key);
+            }
+        }
+    }
+
+    /**
+     * Remove a decoded wallpaper from the cache. The caller owns its bitmap afterwards.
+     * @return the decoded wallpaper, or null if it isn't ready yet
+     */
+    synchronized WallpaperDecoder.Decoded take(String key) {
+        WallpaperDecoder.Decoded decoded = pinned.remove(key);
+        return decoded != null ? decoded : cache.remove(key);
+    }
+
+    void release() {
+        synchronized (this) {
+            for (DecodeJob job : pendingJobs.values()) {
+                job.cancel();
+            }
+            pendingJobs.clear();
+            clearLocked();
+        }
+        executor.shutdownNow();
+    }
+
+    private void clearLocked() {
+        for (WallpaperDecoder.Decoded decoded : pinned.values()) {
+            decoded.recycle();
+        }
+        pinned.clear();
+        cache.evictAll();
+    }
+
+    private void submitLocked(String key) {
+        // Nothing to crop for until the surface size is known
+        if (targetWidth == 0 || targetHeight == 0) return;
+        if (pendingJobs.containsKey(key) || executor.isShutdown()) return;
+        Float fixedScale = fixedLayerScales.get(key);
+        float scale = fixedScale != null ? fixedScale : foregroundScale;
+        DecodeJob job = new DecodeJob(key, LayerSpec.scaleSize(targetWidth, scale),
+                LayerSpec.scaleSize(targetHeight, scale), maxTextureSize, compressedSupported,
+                hardwareBitmaps);
+        pendingJobs.put(key, job);
+        job.future = executor.submit(job);
+    }
+
+    private void cancelLocked(String key) {
+        DecodeJob job = pendingJobs.remove(key);
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    private class DecodeJob implements Runnable {
+        private final String key;
+        private final int width;
+        private final int height;
+        private final int maxTextureSize;
+        private final boolean compressedSupported;
+        private final boolean hardwareBitmaps;
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        DecodeJob(String key, int width, int height, int maxTextureSize,
+                  boolean compressedSupported, boolean hardwareBitmaps) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+            this.maxTextureSize = maxTextureSize;
+            this.compressedSupported = compressedSupported;
+            this.hardwareBitmaps = hardwareBitmaps;
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) future.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            WallpaperDecoder.Decoded decoded = null;
+            try {
+                decoded = WallpaperDecoder.decode(mContext, key, width, height,
+                        maxTextureSize, compressedSupported, hardwareBitmaps);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error decoding wallpaper: " + key, e);
+            }
+
+            synchronized (WallpaperPrefetcher.this) {
+                if (pendingJobs.get(key) == this) {
+                    pendingJobs.remove(key);
+                }
+                if (cancelled) {
+                    if (decoded != null) decoded.recycle();
+                    return;
+                }
+                if (decoded != null) {
+                    if (key.equals(requestedKey) || fixedLayerScales.containsKey(key)) {
+                        pinned.put(key, decoded);
+                    } else {
+                        cache.put(key, decoded);
+                    }
+                }
+            }
+
+            if (decoded != null) {
+                mCallback.onWallpaperDecoded(key);
+            } else {
+                mCallback.onWallpaperFailed(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import android.opengl.Matrix;
+
+import static com.droid2developers.liveslider.utils.Constant.TRANSITION_SLIDE;
+import static com.droid2developers.liveslider.utils.Constant.TRANSITION_ZOOM;
+
+/**
+ * Time based transition between the outgoing and incoming foreground layer.
+ * Both layers stay resident as textures and are blended on the GPU, the
+ * animation only changes their matrices and alpha. Used on the GL thread only.
+ */
+class WallpaperTransition {
+    private static final long DURATION_NANOS = 600_000_000L;
+    // Extra scale the incoming layer starts with in the zoom transition
+    private static final float ZOOM_AMOUNT = 0.15f;
+
+    private final float[] mModelMatrix = new float[16];
+    private int type;
+    private long startNanos;
+    private boolean running;
+
+    void start(int type, long nowNanos) {
+        this.type = type;
+        this.startNanos = nowNanos;
+        this.running = true;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return eased progress between 0 and 1, the transition is over once it reaches 1
+     */
+    float update(long nowNanos) {
+        if (!running) return 1f;
+        float t = Math.min(1f, (float) (nowNanos - startNanos) / DURATION_NANOS);
+        if (t >= 1f) running = false;
+        // Smoothstep
+        return t * t * (3f - 2f * t);
+    }
+
+    /**
+     * Compute the MVP matrix of a layer taking part in the transition
+     * @param visibility 0 when the layer is fully out, 1 when fully in
+     * @param incoming whether this is the new wallpaper
+     * @param slideDistance view space width the slide transition moves the layers by
+     * @return alpha multiplier for the layer
+     */
+    float apply(float[] vpMatrix, float[] mvpMatrix, float visibility, boolean incoming,
+                float slideDistance) {
+        Matrix.setIdentityM(mModelMatrix, 0);
+        float alpha = visibility;
+        if (type == TRANSITION_SLIDE) {
+            float offset = (1f - visibility) * slideDistance;
+            Matrix.translateM(mModelMatrix, 0, incoming ? offset : -offset, 0f, 0f);
+            alpha = 1f;
+        } else if (type == TRANSITION_ZOOM && incoming) {
+            float scale = 1f + ZOOM_AMOUNT * (1f - visibility);
+            Matrix.scaleM(mModelMatrix, 0, scale, scale, 1f);
+        }
+        Matrix.multiplyMM(mvpMatrix, 0, vpMatrix, 0, mModelMatrix, 0);
+        return alpha;
+    }
+}
@@ -0,0 +1,36 @@
+package com.droid2developers.liveslider.utils;
+
+/**
+ * Two floats handed from one thread to another as a single volatile long, so
+ * readers always see a matching pair and neither side allocates or locks.
+ * Read both values from one {@link #get()} snapshot:
+ * <pre>
+ *     long snapshot = pair.get();
+ *     float x = AtomicFloatPair.first(snapshot);
+ *     float y = AtomicFloatPair.second(snapshot);
+ * </pre>
+ */
+public final class AtomicFloatPair {
+    private volatile long packed;
+
+    public AtomicFloatPair() {
+        set(0f, 0f);
+    }
+
+    public void set(float first, float second) {
+        packed = ((long) Float.floatToRawIntBits(first) << 32)
+                | (Float.floatToRawIntBits(second) & 0xffffffffL);
+    }
+
+    public long get() {
+        return packed;
+    }
+
+    public static float first(long snapshot) {
+        return Float.intBitsToFloat((int) (snapshot >>> 32));
+    }
+
+    public static float second(long snapshot) {
+        return Float.intBitsToFloat((int) snapshot);
+    }
+}
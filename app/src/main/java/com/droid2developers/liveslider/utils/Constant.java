@@ -40,6 +40,15 @@ public class Constant {
     public static final int CALIBRATION_VERTICAL = 1;
     public static final int CALIBRATION_DYNAMIC = 2;
 
+    // Wallpaper change transitions
+    public static final int TRANSITION_CROSSFADE = 0;
+    public static final int TRANSITION_SLIDE = 1;
+    public static final int TRANSITION_ZOOM = 2;
+
+    // Motion filters smoothing the sensor angles
+    public static final int MOTION_FILTER_ONE_EURO = 0;
+    public static final int MOTION_FILTER_KALMAN = 1;
+
     public static final String PLAYLIST_NONE = "none";
     public static final String WALLPAPER_NONE = "none";
 
@@ -0,0 +1,302 @@
+package com.droid2developers.liveslider.utils;
+
+/**
+ * Encoder for ETC2 RGB8 textures, 4x4 pixel blocks of 8 bytes each.
+ * <p>
+ * Only the individual and differential modes are emitted, and differential blocks
+ * never overflow their base colors. That subset is plain ETC1, so the output can
+ * be uploaded both as GL_COMPRESSED_RGB8_ETC2 on ES 3.0 and as GL_ETC1_RGB8_OES on
+ * ES 2.0 devices with the ETC1 extension. Plain Java without Android dependencies,
+ * so it can be tested and benchmarked on a desktop JVM.
+ */
+public final class Etc2Encoder {
+    public static final int BLOCK_SIZE = 4;
+    public static final int BYTES_PER_BLOCK = 8;
+
+    // Intensity modifiers per table codeword, in pixel index order
+    private static final int[][] MODIFIERS = {
+            {2, 8, -2, -8},
+            {5, 17, -5, -17},
+            {9, 29, -9, -29},
+            {13, 42, -13, -42},
+            {18, 60, -18, -60},
+            {24, 80, -24, -80},
+            {33, 106, -33, -106},
+            {47, 183, -47, -183},
+    };
+
+    private Etc2Encoder() {
+    }
+
+    /**
+     * @return the size in bytes of an encoded image of the given size
+     */
+    public static int getEncodedSize(int width, int height) {
+        return blocks(width) * blocks(height) * BYTES_PER_BLOCK;
+    }
+
+    /**
+     * Encode opaque pixels. Partial blocks at the right and bottom edge are
+     * padded by repeating the last column and row.
+     * @param argb pixels in {@code Bitmap.getPixels} layout, alpha is ignored
+     * @return the blocks in row major order, big endian as GL expects them
+     */
+    public static byte[] encode(int[] argb, int width, int height) {
+        if (width <= 0 || height <= 0 || argb.length < width * height) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+        byte[] out = new byte[getEncodedSize(width, height)];
+        BlockEncoder encoder = new BlockEncoder();
+        int offset = 0;
+        for (int by = 0; by < blocks(height); by++) {
+            for (int bx = 0; bx < blocks(width); bx++) {
+                encoder.load(argb, width, height, bx * BLOCK_SIZE, by * BLOCK_SIZE);
+                long block = encoder.encode();
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out[offset++] = (byte) (block >>> shift);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Decode blocks produced by {@link #encode(int[], int, int)} back to opaque pixels.
+     * Only understands the modes the encoder writes, used to measure encoding error.
+     */
+    public static int[] decode(byte[] data, int width, int height) {
+        int[] argb = new int[width * height];
+        int[] colors = new int[6];
+        int offset = 0;
+        for (int by = 0; by < blocks(height); by++) {
+            for (int bx = 0; bx < blocks(width); bx++) {
+                long block = 0;
+                for (int i = 0; i < BYTES_PER_BLOCK; i++) {
+                    block = (block << 8) | (data[offset++] & 0xff);
+                }
+                boolean flip = (block >>> 32 & 1) != 0;
+                boolean differential = (block >>> 33 & 1) != 0;
+                for (int c = 0; c < 3; c++) {
+                    int shift = 59 - c * 8;
+                    if (differential) {
+                        int base = (int) (block >>> shift) & 0x1f;
+                        int delta = ((int) (block >>> (shift - 3)) & 0x7) << 29 >> 29;
+                        colors[c] = extend5(base);
+                        colors[3 + c] = extend5(base + delta);
+                    } else {
+                        colors[c] = extend4((int) (block >>> (shift + 1)) & 0xf);
+                        colors[3 + c] = extend4((int) (block >>> (shift - 3)) & 0xf);
+                    }
+                }
+                int[] table1 = MODIFIERS[(int) (block >>> 37) & 0x7];
+                int[] table2 = MODIFIERS[(int) (block >>> 34) & 0x7];
+                for (int x = 0; x < BLOCK_SIZE; x++) {
+                    for (int y = 0; y < BLOCK_SIZE; y++) {
+                        int px = bx * BLOCK_SIZE + x;
+                        int py = by * BLOCK_SIZE + y;
+                        if (px >= width || py >= height) continue;
+                        int bit = x * BLOCK_SIZE + y;
+                        int index = (int) (block >>> (16 + bit) & 1) << 1 | (int) (block >>> bit & 1);
+                        boolean second = flip ? y >= 2 : x >= 2;
+                        int modifier = (second ? table2 : table1)[index];
+                        int base = second ? 3 : 0;
+                        argb[py * width + px] = 0xff000000
+                                | clamp(colors[base] + modifier) << 16
+                                | clamp(colors[base + 1] + modifier) << 8
+                                | clamp(colors[base + 2] + modifier);
+                    }
+                }
+            }
+        }
+        return argb;
+    }
+
+    private static int blocks(int size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private static int extend4(int value) {
+        return value << 4 | value;
+    }
+
+    private static int extend5(int value) {
+        return value << 3 | value >> 2;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+
+    /**
+     * Encodes one block at a time, reusing its buffers between blocks
+     */
+    private static final class BlockEncoder {
+        // Pixels of the current block, indexed x * 4 + y like the pixel index bits
+        private final int[] red = new int[16];
+        private final int[] green = new int[16];
+        private final int[] blue = new int[16];
+        private final int[] subBlock = new int[8];
+        private final int[] average1 = new int[3];
+        private final int[] average2 = new int[3];
+
+        // Best encoding of the sub block passed to fitSubBlock
+        private int fitTable;
+        private int fitIndices;
+        private long fitError;
+
+        // Result of the last fitHalves call
+        private int fittedTable1, fittedTable2, fittedIndices;
+
+        void load(int[] argb, int width, int height, int left, int top) {
+            for (int x = 0; x < BLOCK_SIZE; x++) {
+                int px = Math.min(left + x, width - 1);
+                for (int y = 0; y < BLOCK_SIZE; y++) {
+                    int py = Math.min(top + y, height - 1);
+                    int color = argb[py * width + px];
+                    int i = x * BLOCK_SIZE + y;
+                    red[i] = color >> 16 & 0xff;
+                    green[i] = color >> 8 & 0xff;
+                    blue[i] = color & 0xff;
+                }
+            }
+        }
+
+        long encode() {
+            long best = 0;
+            long bestError = Long.MAX_VALUE;
+            for (int flip = 0; flip < 2; flip++) {
+                int[] avg1 = averageOf(flip, 0, average1);
+                int[] avg2 = averageOf(flip, 1, average2);
+
+                // Differential mode gives both halves 5 bit colors, if they are close enough
+                int r1 = quantize5(avg1[0]), g1 = quantize5(avg1[1]), b1 = quantize5(avg1[2]);
+                int dr = quantize5(avg2[0]) - r1, dg = quantize5(avg2[1]) - g1, db = quantize5(avg2[2]) - b1;
+                if (inDeltaRange(dr) && inDeltaRange(dg) && inDeltaRange(db)) {
+                    long block = (long) r1 << 59 | (long) (dr & 7) << 56
+                            | (long) g1 << 51 | (long) (dg & 7) << 48
+                            | (long) b1 << 43 | (long) (db & 7) << 40
+                            | 1L << 33 | (long) flip << 32;
+                    long error = fitHalves(flip, extend5(r1), extend5(g1), extend5(b1),
+                            extend5(r1 + dr), extend5(g1 + dg), extend5(b1 + db));
+                    if (error < bestError) {
+                        bestError = error;
+                        best = block | fittedBits();
+                    }
+                }
+
+                // Individual mode, 4 bit colors that can be far apart
+                int ir1 = quantize4(avg1[0]), ig1 = quantize4(avg1[1]), ib1 = quantize4(avg1[2]);
+                int ir2 = quantize4(avg2[0]), ig2 = quantize4(avg2[1]), ib2 = quantize4(avg2[2]);
+                long block = (long) ir1 << 60 | (long) ir2 << 56
+                        | (long) ig1 << 52 | (long) ig2 << 48
+                        | (long) ib1 << 44 | (long) ib2 << 40
+                        | (long) flip << 32;
+                long error = fitHalves(flip, extend4(ir1), extend4(ig1), extend4(ib1),
+                        extend4(ir2), extend4(ig2), extend4(ib2));
+                if (error < bestError) {
+                    bestError = error;
+                    best = block | fittedBits();
+                }
+            }
+            return best;
+        }
+
+        private long fittedBits() {
+            return (long) fittedTable1 << 37 | (long) fittedTable2 << 34 | (fittedIndices & 0xffffffffL);
+        }
+
+        private long fitHalves(int flip, int r1, int g1, int b1, int r2, int g2, int b2) {
+            fitSubBlock(flip, 0, r1, g1, b1);
+            long error = fitError;
+            fittedTable1 = fitTable;
+            int indices = fitIndices;
+            fitSubBlock(flip, 1, r2, g2, b2);
+            fittedTable2 = fitTable;
+            fittedIndices = indices | fitIndices;
+            return error + fitError;
+        }
+
+        /**
+         * Find the modifier table and per pixel modifiers with the smallest error
+         * for one half of the block around the given base color
+         */
+        private void fitSubBlock(int flip, int half, int r, int g, int b) {
+            selectSubBlock(flip, half);
+            fitError = Long.MAX_VALUE;
+            for (int table = 0; table < MODIFIERS.length; table++) {
+                int[] modifiers = MODIFIERS[table];
+                long error = 0;
+                int indices = 0;
+                for (int p = 0; p < subBlock.length && error < fitError; p++) {
+                    int i = subBlock[p];
+                    long pixelError = Long.MAX_VALUE;
+                    int pixelIndex = 0;
+                    for (int m = 0; m < modifiers.length; m++) {
+                        int modifier = modifiers[m];
+                        long e = distance(red[i], clamp(r + modifier), green[i], clamp(g + modifier),
+                                blue[i], clamp(b + modifier));
+                        if (e < pixelError) {
+                            pixelError = e;
+                            pixelIndex = m;
+                        }
+                    }
+                    error += pixelError;
+                    indices |= (pixelIndex >> 1) << (16 + i) | (pixelIndex & 1) << i;
+                }
+                if (error < fitError) {
+                    fitError = error;
+                    fitTable = table;
+                    fitIndices = indices;
+                }
+            }
+        }
+
+        private int[] averageOf(int flip, int half, int[] result) {
+            selectSubBlock(flip, half);
+            int r = 0, g = 0, b = 0;
+            for (int i : subBlock) {
+                r += red[i];
+                g += green[i];
+                b += blue[i];
+            }
+            result[0] = (r + 4) / 8;
+            result[1] = (g + 4) / 8;
+            result[2] = (b + 4) / 8;
+            return result;
+        }
+
+        /**
+         * Fill {@link #subBlock} with the pixel indices of one half: left and right
+         * columns without flip, top and bottom rows with flip
+         */
+        private void selectSubBlock(int flip, int half) {
+            int p = 0;
+            for (int x = 0; x < BLOCK_SIZE; x++) {
+                for (int y = 0; y < BLOCK_SIZE; y++) {
+                    int position = flip == 0 ? x : y;
+                    if (position / 2 == half) {
+                        subBlock[p++] = x * BLOCK_SIZE + y;
+                    }
+                }
+            }
+        }
+
+        private static long distance(int r1, int r2, int g1, int g2, int b1, int b2) {
+            // Perceptual weights, green matters most
+            int dr = r1 - r2, dg = g1 - g2, db = b1 - b2;
+            return 3L * dr * dr + 6L * dg * dg + 1L * db * db;
+        }
+
+        private static boolean inDeltaRange(int delta) {
+            return delta >= -4 && delta <= 3;
+        }
+
+        private static int quantize4(int value) {
+            return (value * 15 + 127) / 255;
+        }
+
+        private static int quantize5(int value) {
+            return (value * 31 + 127) / 255;
+        }
+    }
+}
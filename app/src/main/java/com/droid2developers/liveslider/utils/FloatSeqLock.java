@@ -0,0 +1,52 @@
+package com.droid2developers.liveslider.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A timestamp and a few floats handed between threads as one consistent snapshot,
+ * for when {@link AtomicFloatPair} is too small. Readers never block and retry if
+ * a write overlapped, writers are serialized. Neither side allocates.
+ */
+public final class FloatSeqLock {
+    private final AtomicInteger sequence = new AtomicInteger();
+    // Float bits, followed by the high and low half of the timestamp
+    private final AtomicIntegerArray slots;
+    private final int size;
+
+    public FloatSeqLock(int size) {
+        this.size = size;
+        slots = new AtomicIntegerArray(size + 2);
+    }
+
+    public synchronized void write(long timestamp, float[] values) {
+        // Odd while writing
+        sequence.incrementAndGet();
+        for (int i = 0; i < size; i++) {
+            slots.set(i, Float.floatToRawIntBits(values[i]));
+        }
+        slots.set(size, (int) (timestamp >>> 32));
+        slots.set(size + 1, (int) timestamp);
+        sequence.incrementAndGet();
+    }
+
+    /**
+     * Copy the latest values into the given array
+     * @return the timestamp written with them
+     */
+    public long read(float[] values) {
+        while (true) {
+            int before = sequence.get();
+            if ((before & 1) != 0) {
+                continue;
+            }
+            for (int i = 0; i < size; i++) {
+                values[i] = Float.intBitsToFloat(slots.get(i));
+            }
+            long timestamp = ((long) slots.get(size) << 32) | (slots.get(size + 1) & 0xffffffffL);
+            if (sequence.get() == before) {
+                return timestamp;
+            }
+        }
+    }
+}
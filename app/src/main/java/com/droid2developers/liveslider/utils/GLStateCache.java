@@ -0,0 +1,129 @@
+package com.droid2developers.liveslider.utils;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+
+/**
+ * Mirrors the GL state touched by the wallpaper renderer and skips calls that
+ * wouldn't change anything. GL contexts are bound to a thread, so every GL thread
+ * gets its own instance. Call {@link #reset()} whenever a new context becomes current.
+ */
+public class GLStateCache {
+    private static final int MAX_TEXTURE_UNITS = 8;
+    private static final int MAX_VERTEX_ATTRIBS = 16;
+    private static final int UNKNOWN = -1;
+
+    private static final ThreadLocal<GLStateCache> sCurrent =
+            ThreadLocal.withInitial(GLStateCache::new);
+
+    private int mProgram;
+    private int mActiveTextureUnit;
+    private int mArrayBuffer;
+    private final int[] mBoundTextures = new int[MAX_TEXTURE_UNITS];
+    private final boolean[] mEnabledAttribs = new boolean[MAX_VERTEX_ATTRIBS];
+    private final boolean[] mKnownAttribs = new boolean[MAX_VERTEX_ATTRIBS];
+
+    private GLStateCache() {
+        reset();
+    }
+
+    /**
+     * @return the state cache of the calling GL thread
+     */
+    public static GLStateCache get() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Forget everything, the next call of each kind goes through to GL
+     */
+    public void reset() {
+        mProgram = UNKNOWN;
+        mActiveTextureUnit = UNKNOWN;
+        mArrayBuffer = UNKNOWN;
+        Arrays.fill(mBoundTextures, UNKNOWN);
+        Arrays.fill(mKnownAttribs, false);
+    }
+
+    /**
+     * Forget texture and buffer bindings, but keep the rest. Needed when another
+     * context of the share group may have deleted objects and reused their names.
+     */
+    public void forgetSharedBindings() {
+        mArrayBuffer = UNKNOWN;
+        Arrays.fill(mBoundTextures, UNKNOWN);
+    }
+
+    public void useProgram(int program) {
+        if (mProgram == program) return;
+        GLES20.glUseProgram(program);
+        mProgram = program;
+    }
+
+    /**
+     * @param unit texture unit index, 0 for GL_TEXTURE0
+     */
+    public void activeTexture(int unit) {
+        if (mActiveTextureUnit == unit) return;
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        mActiveTextureUnit = unit;
+    }
+
+    /**
+     * Bind a GL_TEXTURE_2D to the active texture unit
+     */
+    public void bindTexture(int texture) {
+        if (mActiveTextureUnit == UNKNOWN) activeTexture(0);
+        int unit = mActiveTextureUnit;
+        if (unit < MAX_TEXTURE_UNITS && mBoundTextures[unit] == texture) return;
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        if (unit < MAX_TEXTURE_UNITS) mBoundTextures[unit] = texture;
+    }
+
+    public void deleteTextures(int[] textures) {
+        GLES20.glDeleteTextures(textures.length, textures, 0);
+        // GL unbinds deleted textures from every unit
+        for (int texture : textures) {
+            for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+                if (mBoundTextures[i] == texture) mBoundTextures[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Bind a GL_ARRAY_BUFFER
+     * @return true if the binding changed, attribute pointers need to be set again
+     */
+    public boolean bindArrayBuffer(int buffer) {
+        if (mArrayBuffer == buffer) return false;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        mArrayBuffer = buffer;
+        return true;
+    }
+
+    public void deleteBuffer(int buffer) {
+        GLES20.glDeleteBuffers(1, new int[]{buffer}, 0);
+        if (mArrayBuffer == buffer) mArrayBuffer = 0;
+    }
+
+    public void enableVertexAttribArray(int index) {
+        if (index < 0) return;
+        if (index < MAX_VERTEX_ATTRIBS && mKnownAttribs[index] && mEnabledAttribs[index]) return;
+        GLES20.glEnableVertexAttribArray(index);
+        setAttribState(index, true);
+    }
+
+    public void disableVertexAttribArray(int index) {
+        if (index < 0) return;
+        if (index < MAX_VERTEX_ATTRIBS && mKnownAttribs[index] && !mEnabledAttribs[index]) return;
+        GLES20.glDisableVertexAttribArray(index);
+        setAttribState(index, false);
+    }
+
+    private void setAttribState(int index, boolean enabled) {
+        if (index >= MAX_VERTEX_ATTRIBS) return;
+        mKnownAttribs[index] = true;
+        mEnabledAttribs[index] = enabled;
+    }
+}
@@ -17,10 +17,15 @@
 package com.droid2developers.liveslider.utils;
 
 import android.graphics.Bitmap;
+import android.opengl.ETC1;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLUtils;
 import android.util.Log;
 
+import com.droid2developers.liveslider.BuildConfig;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -28,6 +33,8 @@ import java.nio.FloatBuffer;
 public class GLUtil {
     public static final int BYTES_PER_FLOAT = 4;
     private static final String TAG = "GLUtil";
+    // glGetError stalls the pipeline, so per-frame checks only run in debug builds
+    private static final boolean CHECK_FRAME_ERRORS = BuildConfig.DEBUG;
 
     public static int loadShader(int type, String shaderCode) {
         // create a vertex shader type (GLES20.GL_VERTEX_SHADER)
@@ -38,11 +45,29 @@ public class GLUtil {
         GLES20.glShaderSource(shaderHandle, shaderCode);
         GLES20.glCompileShader(shaderHandle);
         checkGlError("glCompileShader");
+
+        final int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shaderHandle, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shaderHandle);
+            GLES20.glDeleteShader(shaderHandle);
+            Log.e(TAG, "glCompileShader: " + log);
+
+            throw new RuntimeException("glCompileShader: " + log);
+        }
         return shaderHandle;
     }
 
     public static int createAndLinkProgram(int vertexShaderHandle,
                                            int fragShaderHandle, String[] attributes) {
+        return createAndLinkProgram(vertexShaderHandle, fragShaderHandle, attributes, false);
+    }
+
+    /**
+     * @param retrievable ask the driver to keep the binary for glGetProgramBinary, needs ES 3
+     */
+    public static int createAndLinkProgram(int vertexShaderHandle, int fragShaderHandle,
+                                           String[] attributes, boolean retrievable) {
         int programHandle = GLES20.glCreateProgram();
         GLUtil.checkGlError("glCreateProgram");
         GLES20.glAttachShader(programHandle, vertexShaderHandle);
@@ -53,37 +78,209 @@ public class GLUtil {
                 GLES20.glBindAttribLocation(programHandle, i, attributes[i]);
             }
         }
+        if (retrievable) {
+            GLES30.glProgramParameteri(programHandle,
+                    GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
         GLES20.glLinkProgram(programHandle);
         GLUtil.checkGlError("glLinkProgram");
         GLES20.glDeleteShader(vertexShaderHandle);
         GLES20.glDeleteShader(fragShaderHandle);
+
+        if (!isLinked(programHandle)) {
+            String log = GLES20.glGetProgramInfoLog(programHandle);
+            GLES20.glDeleteProgram(programHandle);
+            Log.e(TAG, "glLinkProgram: " + log);
+
+            throw new RuntimeException("glLinkProgram: " + log);
+        }
         return programHandle;
     }
 
+    public static boolean isLinked(int programHandle) {
+        final int[] linked = new int[1];
+        GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linked, 0);
+        return linked[0] != 0;
+    }
+
     public static int loadTexture(Bitmap bitmap) {
+        final int textureHandle = createTexture();
+
+        // Load the bitmap into the bound texture.
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        GLUtil.checkGlError("texImage2D");
+
+        return textureHandle;
+    }
+
+    /**
+     * Upload tightly packed pixels straight from a buffer
+     * @param format GL_RGBA or GL_RGB
+     * @param type GL_UNSIGNED_BYTE or a matching packed type
+     */
+    public static int loadTexture(int width, int height, int format, int type, ByteBuffer pixels) {
+        final int textureHandle = createTexture();
+
+        // Rows aren't padded, e.g. odd widths of 16 bit pixels
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, type, pixels);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLUtil.checkGlError("glTexImage2D");
+
+        return textureHandle;
+    }
+
+    /**
+     * Same as {@link #loadTexture(int, int, int, int, ByteBuffer)}, but the pixels go
+     * through a pixel unpack buffer, so the driver can copy them to the GPU without
+     * holding up the caller. Needs ES 3, see {@link #isGles3()}.
+     */
+    public static int loadTextureStreamed(int width, int height, int format, int type,
+                                          ByteBuffer pixels) {
+        final int size = pixels.remaining();
+        final int[] bufferHandle = new int[1];
+        GLES30.glGenBuffers(1, bufferHandle, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, bufferHandle[0]);
+        GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null, GLES30.GL_STREAM_DRAW);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER,
+                0, size, GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+        boolean streamed = false;
+        if (mapped != null) {
+            mapped.put(pixels.duplicate());
+            // False if the buffer got corrupted while mapped, e.g. by a mode switch
+            streamed = GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+        }
+
+        int textureHandle = 0;
+        if (streamed) {
+            textureHandle = createTexture();
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+            GLES30.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                    format, type, 0);
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        // Deleting is deferred by GL until the copy to the texture is done
+        GLES30.glDeleteBuffers(1, bufferHandle, 0);
+        GLUtil.checkGlError("glTexImage2D");
+
+        if (!streamed) {
+            Log.w(TAG, "loadTextureStreamed: mapping the unpack buffer failed");
+            return loadTexture(width, height, format, type, pixels);
+        }
+        return textureHandle;
+    }
+
+    /**
+     * Upload one rectangle of a larger image without copying it out first.
+     * Needs ES 3, see {@link #isGles3()}.
+     * @param rowLength width of the whole image in pixels, including any row padding
+     * @param pixels the whole image, tightly packed rows starting at position 0
+     */
+    public static int loadSubTexture(int rowLength, int left, int top, int width, int height,
+                                     int format, int type, ByteBuffer pixels) {
+        final int textureHandle = createTexture();
+
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, rowLength);
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_SKIP_PIXELS, left);
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_SKIP_ROWS, top);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, type, pixels);
+        // Other uploads expect the defaults
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_SKIP_PIXELS, 0);
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_SKIP_ROWS, 0);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLUtil.checkGlError("glTexImage2D");
+
+        return textureHandle;
+    }
+
+    /**
+     * Needs a current context.
+     * @return true if the context is ES 3 or newer
+     */
+    public static boolean isGles3() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES 3");
+    }
+
+    /**
+     * Upload ETC compressed pixels, see {@link #getEtcTextureFormat()}
+     */
+    public static int loadCompressedTexture(int internalFormat, int width, int height,
+                                            ByteBuffer data) {
+        final int textureHandle = createTexture();
+
+        GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, 0, internalFormat, width, height,
+                0, data.remaining(), data);
+        GLUtil.checkGlError("glCompressedTexImage2D");
+
+        return textureHandle;
+    }
+
+    /**
+     * Needs a current context.
+     * @return the internal format to upload {@link Etc2Encoder} output with,
+     * or 0 if the GPU can't sample it
+     */
+    public static int getEtcTextureFormat() {
+        if (isGles3()) {
+            // ETC2 is mandatory since ES 3.0
+            return GLES30.GL_COMPRESSED_RGB8_ETC2;
+        }
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        if (extensions != null && extensions.contains("GL_OES_compressed_ETC1_RGB8_texture")) {
+            // The encoder output is valid ETC1 as well
+            return ETC1.ETC1_RGB8_OES;
+        }
+        return 0;
+    }
+
+    /**
+     * Needs a current context.
+     * @return true if external textures, e.g. of a SurfaceTexture, can be sampled
+     */
+    public static boolean isExternalTextureSupported() {
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return extensions != null && extensions.contains("GL_OES_EGL_image_external");
+    }
+
+    /**
+     * Create a GL_TEXTURE_EXTERNAL_OES texture with the wallpaper sampling parameters.
+     * It is left bound to its own target, which {@link GLStateCache} doesn't track.
+     */
+    public static int createExternalTexture() {
         final int[] textureHandle = new int[1];
 
         GLES20.glGenTextures(1, textureHandle, 0);
         GLUtil.checkGlError("glGenTextures");
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureHandle[0]);
 
-        if (textureHandle[0] != 0) {
-            // Bind to the texture in OpenGL
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
-
-            // Set filtering
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-
-            // Load the bitmap into the bound texture.
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-            GLUtil.checkGlError("texImage2D");
-        }
+        // External textures only take these anyway
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLUtil.checkGlError("glTexParameteri");
+
+        return textureHandle[0];
+    }
+
+    /**
+     * Create a texture with the wallpaper sampling parameters and leave it bound
+     */
+    private static int createTexture() {
+        final int[] textureHandle = new int[1];
+
+        GLES20.glGenTextures(1, textureHandle, 0);
+        GLUtil.checkGlError("glGenTextures");
 
         if (textureHandle[0] == 0) {
             Log.e(TAG, "Error loading texture (empty texture handle)");
@@ -93,6 +290,19 @@ public class GLUtil {
 
         }
 
+        // Bind to the texture in OpenGL
+        GLStateCache.get().bindTexture(textureHandle[0]);
+
+        // Set filtering
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+
         return textureHandle[0];
     }
 
@@ -106,6 +316,16 @@ public class GLUtil {
         }
     }
 
+    /**
+     * Same as {@link #checkGlError(String)}, but a no-op in release builds.
+     * Use this for calls made on every frame.
+     */
+    public static void checkFrameGlError(String glOperation) {
+        if (CHECK_FRAME_ERRORS) {
+            checkGlError(glOperation);
+        }
+    }
+
     public static FloatBuffer asFloatBuffer(float[] array) {
         FloatBuffer buffer = newFloatBuffer(array.length);
         buffer.put(array);
@@ -0,0 +1,239 @@
+package com.droid2developers.liveslider.utils;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps linked shader programs on disk, so later surfaces skip compiling and linking.
+ * Binaries are keyed by the driver and the shader sources. A binary the driver
+ * rejects anyway is deleted and the program compiled from source again.
+ * glGetProgramBinary needs ES 3, on ES 2 programs are always compiled.
+ * <p>
+ * GL thread only.
+ */
+public class ProgramBinaryCache {
+    private static final String TAG = ProgramBinaryCache.class.getSimpleName();
+    private static final int MAGIC = 0x4C535042;  // "LSPB"
+    private static final int MAX_BINARY_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * A program binary as read from disk
+     */
+    static class Binary {
+        final int format;
+        final ByteBuffer data;
+
+        Binary(int format, ByteBuffer data) {
+            this.format = format;
+            this.data = data;
+        }
+    }
+
+    private final File dir;
+    private int cached;
+    private int compiled;
+    private int rejected;
+
+    /**
+     * Binaries go to the code cache, which is cleared on app and system updates
+     */
+    public ProgramBinaryCache(Context context) {
+        this(new File(context.getCodeCacheDir(), "programs"));
+    }
+
+    ProgramBinaryCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Needs a current context.
+     * @return the linked program, from a stored binary if there is a valid one
+     * @throws RuntimeException if the sources don't compile or link
+     */
+    public int loadProgram(String vertexShaderCode, String fragmentShaderCode,
+                           String[] attributes) {
+        final boolean binariesSupported = isBinarySupported();
+        File file = null;
+        if (binariesSupported) {
+            file = new File(dir, getKey(getDriverId(), vertexShaderCode, fragmentShaderCode,
+                    attributes) + ".bin");
+            Binary binary = read(file);
+            if (binary != null) {
+                int program = GLES20.glCreateProgram();
+                GLES30.glProgramBinary(program, binary.format, binary.data, binary.data.capacity());
+                if (GLUtil.isLinked(program)) {
+                    cached++;
+                    return program;
+                }
+                // E.g. a driver update that kept the version string
+                GLES20.glDeleteProgram(program);
+                while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+                    // A rejected binary may leave GL_INVALID_ENUM behind
+                }
+                rejected++;
+                if (!file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+            }
+        }
+        compiled++;
+        int program = compile(vertexShaderCode, fragmentShaderCode, attributes, binariesSupported);
+        if (binariesSupported) {
+            save(program, file);
+        }
+        return program;
+    }
+
+    /**
+     * Compile and link from source, without the cache
+     */
+    public static int compile(String vertexShaderCode, String fragmentShaderCode,
+                              String[] attributes, boolean retrievable) {
+        int vertexShaderHandle = GLUtil.loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragShaderHandle = GLUtil.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        return GLUtil.createAndLinkProgram(vertexShaderHandle, fragShaderHandle, attributes,
+                retrievable);
+    }
+
+    /**
+     * @return e.g. "2 cached, 0 compiled, 0 rejected"
+     */
+    public String getSummary() {
+        return cached + " cached, " + compiled + " compiled, " + rejected + " rejected";
+    }
+
+    private static boolean isBinarySupported() {
+        if (!GLUtil.isGles3()) return false;
+        final int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        return formats[0] > 0;
+    }
+
+    /**
+     * Binaries only load into the driver build that wrote them
+     */
+    private static String getDriverId() {
+        return GLES20.glGetString(GLES20.GL_VENDOR) + '\n'
+                + GLES20.glGetString(GLES20.GL_RENDERER) + '\n'
+                + GLES20.glGetString(GLES20.GL_VERSION) + '\n'
+                + Build.FINGERPRINT;
+    }
+
+    private void save(int program, File file) {
+        final int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0 || length[0] > MAX_BINARY_BYTES) return;
+        final int[] format = new int[1];
+        ByteBuffer data = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, data);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "glGetProgramBinary failed");
+            return;
+        }
+        data.limit(length[0]);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return;
+        }
+        try {
+            write(file, format[0], data);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + file, e);
+        }
+    }
+
+    /**
+     * Hex SHA-256 of the driver and the parts of the program
+     */
+    static String getKey(String driverId, String vertexShaderCode, String fragmentShaderCode,
+                         String[] attributes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, driverId);
+            update(digest, vertexShaderCode);
+            update(digest, fragmentShaderCode);
+            if (attributes != null) {
+                for (String attribute : attributes) {
+                    update(digest, attribute);
+                }
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Length prefixed, so moving text from one part to the next changes the key
+    private static void update(MessageDigest digest, String part) {
+        byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    /**
+     * Write through a temporary file, so a crash never leaves half a binary behind
+     */
+    static void write(File file, int format, ByteBuffer data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(format);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp);
+        }
+    }
+
+    /**
+     * @return the binary, or null if the file is missing or not a complete binary
+     */
+    static Binary read(File file) {
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) return invalid(file);
+            int format = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_BINARY_BYTES || file.length() != 12L + length) {
+                return invalid(file);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            ByteBuffer data = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            data.put(bytes);
+            data.position(0);
+            return new Binary(format, data);
+        } catch (IOException e) {
+            return invalid(file);
+        }
+    }
+
+    // E.g. cut short by a full disk, it's compiled and written again
+    private static Binary invalid(File file) {
+        file.delete();
+        return null;
+    }
+}
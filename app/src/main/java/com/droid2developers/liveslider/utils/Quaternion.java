@@ -0,0 +1,133 @@
+package com.droid2developers.liveslider.utils;
+
+/**
+ * Mutable unit quaternion for orientation math on the sensor path. Every operation
+ * writes into an existing instance, so nothing is allocated per event. Pure Java,
+ * so it runs and can be benchmarked on the JVM.
+ * <p>
+ * The angle methods match {@code SensorManager.getOrientation} and
+ * {@code SensorManager.getAngleChange}, but only evaluate the five rotation matrix
+ * elements they need instead of building full matrices.
+ */
+public final class Quaternion {
+    // Below this angle between two rotations slerp falls back to a linear blend
+    private static final float SLERP_LINEAR_THRESHOLD = 0.9995f;
+
+    public float w = 1f;
+    public float x;
+    public float y;
+    public float z;
+
+    public Quaternion set(float w, float x, float y, float z) {
+        this.w = w;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
+    public Quaternion set(Quaternion q) {
+        return set(q.w, q.x, q.y, q.z);
+    }
+
+    public Quaternion setIdentity() {
+        return set(1f, 0f, 0f, 0f);
+    }
+
+    /**
+     * Set from the values of a rotation vector sensor event, like
+     * {@code SensorManager.getQuaternionFromVector}. The scalar part is
+     * computed when the event doesn't carry it.
+     */
+    public Quaternion setFromRotationVector(float[] values) {
+        x = values[0];
+        y = values[1];
+        z = values[2];
+        if (values.length >= 4) {
+            w = values[3];
+        } else {
+            float ww = 1f - x * x - y * y - z * z;
+            w = ww > 0f ? (float) Math.sqrt(ww) : 0f;
+        }
+        return normalize();
+    }
+
+    public Quaternion normalize() {
+        float length = (float) Math.sqrt(w * w + x * x + y * y + z * z);
+        if (length > 0f) {
+            float inverse = 1f / length;
+            w *= inverse;
+            x *= inverse;
+            y *= inverse;
+            z *= inverse;
+        }
+        return this;
+    }
+
+    /**
+     * Set to the rotation from {@code from} to {@code to}, the quaternion form of
+     * the matrix {@code getAngleChange} works on. Safe if this is one of the arguments.
+     */
+    public Quaternion setRelative(Quaternion from, Quaternion to) {
+        // conjugate(from) * to
+        float rw = from.w * to.w + from.x * to.x + from.y * to.y + from.z * to.z;
+        float rx = from.w * to.x - from.x * to.w - from.y * to.z + from.z * to.y;
+        float ry = from.w * to.y + from.x * to.z - from.y * to.w - from.z * to.x;
+        float rz = from.w * to.z - from.x * to.y + from.y * to.x - from.z * to.w;
+        return set(rw, rx, ry, rz);
+    }
+
+    /**
+     * Spherical interpolation along the shorter arc, with constant angular speed.
+     * Safe if this is one of the arguments.
+     */
+    public Quaternion slerp(Quaternion from, Quaternion to, float t) {
+        float tw = to.w, tx = to.x, ty = to.y, tz = to.z;
+        float cos = from.w * tw + from.x * tx + from.y * ty + from.z * tz;
+        // q and -q are the same rotation, take the closer one
+        if (cos < 0f) {
+            cos = -cos;
+            tw = -tw;
+            tx = -tx;
+            ty = -ty;
+            tz = -tz;
+        }
+        float fromScale;
+        float toScale;
+        if (cos > SLERP_LINEAR_THRESHOLD) {
+            fromScale = 1f - t;
+            toScale = t;
+        } else {
+            float angle = (float) Math.acos(cos);
+            float sin = (float) Math.sin(angle);
+            fromScale = (float) Math.sin((1f - t) * angle) / sin;
+            toScale = (float) Math.sin(t * angle) / sin;
+        }
+        set(fromScale * from.w + toScale * tw,
+                fromScale * from.x + toScale * tx,
+                fromScale * from.y + toScale * ty,
+                fromScale * from.z + toScale * tz);
+        return normalize();
+    }
+
+    /**
+     * Azimuth, pitch and roll in radians, as {@code SensorManager.getOrientation}
+     * returns them for this rotation. For a relative quaternion these are the
+     * values of {@code SensorManager.getAngleChange}.
+     */
+    public void getEulerAngles(float[] angles) {
+        float r1 = 2f * (x * y - z * w);
+        float r4 = 1f - 2f * (x * x + z * z);
+        float r6 = 2f * (x * z - y * w);
+        float r7 = 2f * (y * z + x * w);
+        float r8 = 1f - 2f * (x * x + y * y);
+        angles[0] = (float) Math.atan2(r1, r4);
+        // Rounding can push the sine just past 1
+        angles[1] = (float) Math.asin(Math.max(-1f, Math.min(1f, -r7)));
+        angles[2] = (float) Math.atan2(-r6, r8);
+    }
+
+    public boolean isValid() {
+        return !Float.isNaN(w + x + y + z) && !Float.isInfinite(w + x + y + z);
+    }
+}
@@ -23,17 +23,13 @@ import androidx.core.view.updatePadding
 import androidx.preference.PreferenceManager
 import com.droid2developers.liveslider.R
 import com.droid2developers.liveslider.live_wallpaper.Cube
-import com.droid2developers.liveslider.models.BiasChangeEvent
-import com.droid2developers.liveslider.models.FaceRotationEvent
+import com.droid2developers.liveslider.live_wallpaper.OrientationChannel
 import com.droid2developers.liveslider.utils.Constant
 import com.droid2developers.liveslider.views.components.SettingsCardView
 import com.droid2developers.liveslider.views.components.SettingsCardView.OnCardClickListener
 import com.droid2developers.liveslider.views.components.SettingsCardView.OnSwitchChangeListener
 import com.google.android.material.button.MaterialButtonToggleGroup
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
-import org.greenrobot.eventbus.EventBus
-import org.greenrobot.eventbus.Subscribe
-import org.greenrobot.eventbus.ThreadMode
 import xyz.aprildown.hmspickerview.HmsPickerView
 
 class SettingsActivity : AppCompatActivity(), OnCardClickListener, OnSwitchChangeListener {
@@ -58,6 +54,12 @@ class SettingsActivity : AppCompatActivity(), OnCardClickListener, OnSwitchChang
     private var verticalCalibrationButton: Button? = null
     private var dynamicCalibrationButton: Button? = null
 
+    // Sensor smoothing
+    private var motionFilterGroup: MaterialButtonToggleGroup? = null
+
+    // Wallpaper change transition
+    private var transitionGroup: MaterialButtonToggleGroup? = null
+
     @SuppressLint("CommitPrefEdits")
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -122,6 +124,9 @@ class SettingsActivity : AppCompatActivity(), OnCardClickListener, OnSwitchChang
         verticalCalibrationButton = findViewById(R.id.button2)
         dynamicCalibrationButton = findViewById(R.id.dynamicCalibration)
 
+        motionFilterGroup = findViewById(R.id.motionFilterGroup)
+        transitionGroup = findViewById(R.id.transitionGroup)
+
         // Help button
         val helpButton = findViewById<CardView>(R.id.helpButtonId)
         helpButton?.setOnClickListener { showHelpDialog() }
@@ -147,6 +152,17 @@ class SettingsActivity : AppCompatActivity(), OnCardClickListener, OnSwitchChang
 
         // Setup initial calibration mode
         setupInitialCalibrationMode()
+
+        when (prefs?.getInt("motion_filter", Constant.MOTION_FILTER_ONE_EURO)) {
+            Constant.MOTION_FILTER_KALMAN -> motionFilterGroup?.check(R.id.kalmanFilter)
+            else -> motionFilterGroup?.check(R.id.oneEuroFilter)
+        }
+
+        when (prefs?.getInt("transition", Constant.TRANSITION_CROSSFADE)) {
+            Constant.TRANSITION_SLIDE -> transitionGroup?.check(R.id.slideTransition)
+            Constant.TRANSITION_ZOOM -> transitionGroup?.check(R.id.zoomTransition)
+            else -> transitionGroup?.check(R.id.crossfadeTransition)
+        }
     }
 
     private fun setupInitialCalibrationMode() {
@@ -205,6 +221,28 @@ class SettingsActivity : AppCompatActivity(), OnCardClickListener, OnSwitchChang
                 }
             }
         }
+
+        motionFilterGroup?.addOnButtonCheckedListener { group, checkedId, isChecked ->
+            if (isChecked) {
+                val filter = if (checkedId == R.id.kalmanFilter) {
+                    Constant.MOTION_FILTER_KALMAN
+                } else {
+                    Constant.MOTION_FILTER_ONE_EURO
+                }
+                editor?.putInt("motion_filter", filter)?.apply()
+            }
+        }
+
+        transitionGroup?.addOnButtonCheckedListener { group, checkedId, isChecked ->
+            if (isChecked) {
+                val transition = when (checkedId) {
+                    R.id.slideTransition -> Constant.TRANSITION_SLIDE
+                    R.id.zoomTransition -> Constant.TRANSITION_ZOOM
+                    else -> Constant.TRANSITION_CROSSFADE
+                }
+                editor?.putInt("transition", transition)?.apply()
+            }
+        }
     }
 
     private fun setupSeekBarListener(seekBar: SeekBar, key: String?) {
@@ -328,12 +366,16 @@ class SettingsActivity : AppCompatActivity(), OnCardClickListener, OnSwitchChang
             append("\n\n")
             append(getString(R.string.help_speed_info))
             append("\n\n")
+            append(getString(R.string.help_motion_filter_info))
+            append("\n\n")
             append(getString(R.string.help_power_saver_info))
             append("\n\n")
             append(getString(R.string.help_slideshow_info))
             append("\n\n")
             append(getString(R.string.help_double_tap_info))
             append("\n\n")
+            append(getString(R.string.help_transition_info))
+            append("\n\n")
 
             // Calibration Modes
             append(getString(R.string.help_calibration_modes_title))
@@ -356,23 +398,23 @@ class SettingsActivity : AppCompatActivity(), OnCardClickListener, OnSwitchChang
             .show()
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    fun onMessageEvent(event: BiasChangeEvent) {
-        cube?.setRotation(event.getY(), event.getX())
-    }
+    private val orientationListener = object : OrientationChannel.Listener {
+        override fun onBiasChanged(x: Float, y: Float) {
+            cube?.setRotation(y, x)
+        }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    fun onFaceRotationEvent(event: FaceRotationEvent) {
-        faceText?.text = event.readableFaceName
+        override fun onFaceChanged(face: Int) {
+            faceText?.text = Constant.getFaceNameReadable(face)
+        }
     }
 
     public override fun onStart() {
         super.onStart()
-        EventBus.getDefault().register(this)
+        OrientationChannel.get().subscribe(orientationListener)
     }
 
     public override fun onStop() {
         super.onStop()
-        EventBus.getDefault().unregister(this)
+        OrientationChannel.get().unsubscribe(orientationListener)
     }
 }
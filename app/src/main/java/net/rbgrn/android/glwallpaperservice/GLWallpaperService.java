@@ -17,6 +17,7 @@
 package net.rbgrn.android.glwallpaperservice;
 
 import android.opengl.GLSurfaceView;
+import android.os.Process;
 import android.service.wallpaper.WallpaperService;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -25,7 +26,8 @@ import net.rbgrn.android.glwallpaperservice.BaseConfigChooser.ComponentSizeChoos
 import net.rbgrn.android.glwallpaperservice.BaseConfigChooser.SimpleEGLConfigChooser;
 
 import java.io.Writer;
-import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
@@ -84,6 +86,30 @@ public class GLWallpaperService extends WallpaperService {
         return new GLEngine();
     }
 
+    /**
+     * Identifies the objects a context can use. Contexts with equal share groups can
+     * draw each other's textures and buffers.
+     *
+     * @return the share group of the given context, the context itself if it isn't shared
+     */
+    public static Object getShareGroup(EGLContext context) {
+        return SharedContextFactory.getShareGroup(context);
+    }
+
+    /**
+     * Optional for renderers that keep state the GL thread works on. Engines are
+     * destroyed on the main thread, while the GL thread may still be drawing.
+     */
+    public interface GLThreadExitListener {
+        /**
+         * Called on the GL thread right before it exits, after the last frame
+         *
+         * @param hasContext true if the context is still current, so GL objects can
+         *                   be deleted. False once the surface is gone or the context lost.
+         */
+        void onGLThreadExit(boolean hasContext);
+    }
+
     /**
      * Empty wrapper for {@link GLSurfaceView.Renderer}.
      *
@@ -104,6 +130,8 @@ public class GLWallpaperService extends WallpaperService {
         private GLSurfaceView.GLWrapper mGLWrapper;
         private int mDebugFlags;
         private int mEGLContextClientVersion;
+        private boolean mPreserveEGLContextOnPause;
+        private boolean mShareEGLContext;
 
         public GLEngine() {
             super();
@@ -174,12 +202,15 @@ public class GLWallpaperService extends WallpaperService {
                 mEGLConfigChooser = new SimpleEGLConfigChooser(true, mEGLContextClientVersion);
             }
             if (mEGLContextFactory == null) {
-                mEGLContextFactory = new DefaultContextFactory(mEGLContextClientVersion);
+                mEGLContextFactory = mShareEGLContext
+                        ? new SharedContextFactory(mEGLContextClientVersion)
+                        : new DefaultContextFactory(mEGLContextClientVersion);
             }
             if (mEGLWindowSurfaceFactory == null) {
                 mEGLWindowSurfaceFactory = new DefaultWindowSurfaceFactory();
             }
             mGLThread = new GLThread(renderer, mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory, mGLWrapper);
+            mGLThread.setPreserveEGLContextOnPause(mPreserveEGLContextOnPause);
             mGLThread.start();
         }
 
@@ -210,11 +241,38 @@ public class GLWallpaperService extends WallpaperService {
                             stencilSize, mEGLContextClientVersion));
         }
 
+        /**
+         * Put the context of this engine into the share group of all engines that ask
+         * for it, see {@link #getShareGroup(EGLContext)}. Must be called before
+         * {@link #setRenderer(GLSurfaceView.Renderer)}.
+         */
+        public void setShareEGLContext(boolean share) {
+            checkRenderThreadState();
+            mShareEGLContext = share;
+        }
+
         public void setEGLContextClientVersion(int version) {
             checkRenderThreadState();
             mEGLContextClientVersion = version;
         }
 
+        /**
+         * Keep the EGL context and window surface while the engine is paused, so becoming
+         * visible again doesn't recreate them. The renderer is only told about a new
+         * surface if one was actually created, and about a new context only after the
+         * old one was lost.
+         */
+        public void setPreserveEGLContextOnPause(boolean preserveOnPause) {
+            mPreserveEGLContextOnPause = preserveOnPause;
+            if (mGLThread != null) {
+                mGLThread.setPreserveEGLContextOnPause(preserveOnPause);
+            }
+        }
+
+        public boolean getPreserveEGLContextOnPause() {
+            return mPreserveEGLContextOnPause;
+        }
+
         public int getRenderMode() {
             return mGLThread.getRenderMode();
         }
@@ -300,6 +358,66 @@ class DefaultContextFactory implements GLSurfaceView.EGLContextFactory {
     }
 }
 
+/**
+ * Creates every context in one share group. The group is anchored by a root context
+ * that is never made current and lives as long as any context created here, so
+ * engines can come and go in any order.
+ */
+class SharedContextFactory implements GLSurfaceView.EGLContextFactory {
+    private static final String TAG = "SharedContextFactory";
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    // Guarded by SharedContextFactory.class
+    private static final Set<EGLContext> sSharedContexts = new HashSet<>();
+    private static EGLContext sRootContext;
+    private static EGLDisplay sRootDisplay;
+    private final int eglContextClientVersion;
+
+    SharedContextFactory(int eglContextClientVersion) {
+        this.eglContextClientVersion = eglContextClientVersion;
+    }
+
+    public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+        int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, eglContextClientVersion,
+                EGL10.EGL_NONE};
+        int[] attribs = eglContextClientVersion != 0 ? attrib_list : null;
+        synchronized (SharedContextFactory.class) {
+            if (sRootContext == null) {
+                EGLContext root = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attribs);
+                if (root != null && root != EGL10.EGL_NO_CONTEXT) {
+                    sRootContext = root;
+                    sRootDisplay = display;
+                }
+            }
+            if (sRootContext != null) {
+                EGLContext context = egl.eglCreateContext(display, config, sRootContext, attribs);
+                if (context != null && context != EGL10.EGL_NO_CONTEXT) {
+                    sSharedContexts.add(context);
+                    return context;
+                }
+                Log.w(TAG, "Could not join the share group, error " + egl.eglGetError());
+            }
+        }
+        return egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attribs);
+    }
+
+    public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+        egl.eglDestroyContext(display, context);
+        synchronized (SharedContextFactory.class) {
+            if (sSharedContexts.remove(context) && sSharedContexts.isEmpty() && sRootContext != null) {
+                egl.eglDestroyContext(sRootDisplay, sRootContext);
+                sRootContext = null;
+                sRootDisplay = null;
+            }
+        }
+    }
+
+    static Object getShareGroup(EGLContext context) {
+        synchronized (SharedContextFactory.class) {
+            return sSharedContexts.contains(context) ? sRootContext : context;
+        }
+    }
+}
+
 class DefaultWindowSurfaceFactory implements GLSurfaceView.EGLWindowSurfaceFactory {
 
     public EGLSurface createWindowSurface(EGL10 egl, EGLDisplay
@@ -351,9 +469,9 @@ class EglHelper {
     /**
      * Initialize EGL for a given configuration spec.
      *
-     * @param configSpec
+     * @return true if a new context was created, false if the previous one is reused
      */
-    public void start() {
+    public boolean start() {
         // Log.d("EglHelper" + instanceId, "start()");
         if (mEgl == null) {
             // Log.d("EglHelper" + instanceId, "getting new EGL");
@@ -387,6 +505,7 @@ class EglHelper {
             // Log.d("EglHelper" + instanceId, "reusing config");
         }
 
+        boolean createdContext = false;
         if (mEglContext == null) {
             // Log.d("EglHelper" + instanceId, "creating new context");
                         /*
@@ -396,11 +515,13 @@ class EglHelper {
             if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
                 throw new RuntimeException("createContext failed");
             }
+            createdContext = true;
         } else {
             // Log.d("EglHelper" + instanceId, "reusing context");
         }
 
         mEglSurface = null;
+        return createdContext;
     }
 
     /*
@@ -473,11 +594,27 @@ class EglHelper {
         }
     }
 
-    public void finish() {
+    /**
+     * @return true if the context is current on the calling thread
+     */
+    public boolean isCurrent() {
+        return mEgl != null && mEglContext != null
+                && mEglContext.equals(mEgl.eglGetCurrentContext());
+    }
+
+    /**
+     * Destroy a lost context, the next {@link #start()} creates a new one.
+     */
+    public void destroyContext() {
+        destroySurface();
         if (mEglContext != null) {
             mEGLContextFactory.destroyContext(mEgl, mEglDisplay, mEglContext);
             mEglContext = null;
         }
+    }
+
+    public void finish() {
+        destroyContext();
         if (mEglDisplay != null) {
             mEgl.eglTerminate(mEglDisplay);
             mEglDisplay = null;
@@ -491,9 +628,12 @@ class GLThread extends Thread {
     private final static boolean LOG_THREADS = false;
     private final GLThreadManager sGLThreadManager = new GLThreadManager();
     public SurfaceHolder mHolder;
+    public volatile boolean mDone;
+    // Render requests and events, kept out of the monitor since they come from
+    // the sensor, the frame clock and the loaders many times a second
+    private final RenderSignal mSignal = new RenderSignal();
     // Once the thread is started, all accesses to the following member
     // variables are protected by the sGLThreadManager monitor
-    public boolean mDone;
     private GLThread mEglOwner;
     private GLSurfaceView.EGLConfigChooser mEGLConfigChooser;
     private GLSurfaceView.EGLContextFactory mEGLContextFactory;
@@ -507,12 +647,10 @@ class GLThread extends Thread {
     private int mWidth;
     private int mHeight;
     private int mRenderMode;
-    private boolean mRequestRender;
-    private boolean mEventsWaiting;
+    private boolean mPreserveEGLContextOnPause;
     // End of member variables protected by the sGLThreadManager monitor.
 
     private GLSurfaceView.Renderer mRenderer;
-    private ArrayList<Runnable> mEventQueue = new ArrayList<>();
     private EglHelper mEglHelper;
 
     GLThread(GLSurfaceView.Renderer renderer, GLSurfaceView.EGLConfigChooser chooser, GLSurfaceView.EGLContextFactory contextFactory,
@@ -521,7 +659,8 @@ class GLThread extends Thread {
         mDone = false;
         mWidth = 0;
         mHeight = 0;
-        mRequestRender = true;
+        mSignal.bindConsumer(this);
+        mSignal.requestRender();
         mRenderMode = GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY;
         mRenderer = renderer;
         this.mEGLConfigChooser = chooser;
@@ -533,6 +672,8 @@ class GLThread extends Thread {
     @Override
     public void run() {
         setName("GLThread " + getId());
+        // Frames are due every vsync, like the UI thread's, don't queue behind background work
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
         if (LOG_THREADS) {
             Log.i("GLThread", "starting tid=" + getId());
         }
@@ -575,13 +716,15 @@ class GLThread extends Thread {
                 int h = 0;
                 boolean changed = false;
                 boolean needStart = false;
+                boolean createdContext = false;
                 boolean eventsWaiting = false;
+                boolean waitForWork = false;
 
                 synchronized (sGLThreadManager) {
                     while (true) {
                         // Manage acquiring and releasing the SurfaceView
                         // surface and the EGL surface.
-                        if (mPaused) {
+                        if (mPaused && !mPreserveEGLContextOnPause) {
                             stopEglLocked();
                         }
                         if (!mHasSurface) {
@@ -594,8 +737,8 @@ class GLThread extends Thread {
                             if (!mHaveEgl) {
                                 if (sGLThreadManager.tryAcquireEglSurface(this)) {
                                     mHaveEgl = true;
-                                    mEglHelper.start();
-                                    mRequestRender = true;
+                                    createdContext = mEglHelper.start();
+                                    mSignal.requestRender();
                                     needStart = true;
                                 }
                             }
@@ -610,19 +753,19 @@ class GLThread extends Thread {
                             return;
                         }
 
-                        if (mEventsWaiting) {
+                        if (mSignal.hasEvents()) {
                             eventsWaiting = true;
-                            mEventsWaiting = false;
                             break;
                         }
 
                         if ((!mPaused) && mHasSurface && mHaveEgl && (mWidth > 0) && (mHeight > 0)
-                                && (mRequestRender || (mRenderMode == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY))) {
+                                && (mSignal.isRenderRequested() || (mRenderMode == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY))) {
                             changed = mSizeChanged;
                             w = mWidth;
                             h = mHeight;
                             mSizeChanged = false;
-                            mRequestRender = false;
+                            // Requests from here on ask for the next frame
+                            mSignal.takeRenderRequest();
                             if (mHasSurface && mWaitingForSurface) {
                                 changed = true;
                                 mWaitingForSurface = false;
@@ -631,21 +774,27 @@ class GLThread extends Thread {
                             break;
                         }
 
-                        // By design, this is the only place where we wait().
-
+                        // By design, this is the only place where we wait. The
+                        // monitor is let go, so requests never contend with it.
                         if (LOG_THREADS) {
                             Log.i("GLThread", "waiting tid=" + getId());
                         }
-                        sGLThreadManager.wait();
+                        waitForWork = true;
+                        break;
                     }
                 } // end of synchronized(sGLThreadManager)
 
+                if (waitForWork) {
+                    mSignal.await();
+                    continue;
+                }
+
                                 /*
                                  * Handle queued events
                                  */
                 if (eventsWaiting) {
                     Runnable r;
-                    while ((r = getEvent()) != null) {
+                    while ((r = mSignal.pollEvent()) != null) {
                         r.run();
                         if (isDone()) {
                             return;
@@ -656,7 +805,8 @@ class GLThread extends Thread {
                 }
 
                 if (needStart) {
-                    tellRendererSurfaceCreated = true;
+                    // A reused context still holds the renderer's programs and textures
+                    tellRendererSurfaceCreated |= createdContext;
                     changed = true;
                 }
                 if (changed) {
@@ -677,13 +827,23 @@ class GLThread extends Thread {
 
                                         /*
                                          * Once we're done with GL, we need to call swapBuffers() to instruct the system to display the
-                                         * rendered frame
+                                         * rendered frame. Frames are paced by the renderer's vsync requests and
+                                         * the swap itself, so there is no need to sleep here.
                                          */
-                    mEglHelper.swap();
-                    Thread.sleep(10);
+                    if (!mEglHelper.swap()) {
+                        // Everything uploaded is gone, start over with a new context
+                        Log.w("GLThread", "EGL context lost tid=" + getId());
+                        synchronized (sGLThreadManager) {
+                            stopEglLocked();
+                            mEglHelper.destroyContext();
+                        }
+                    }
                 }
             }
         } finally {
+            if (mRenderer instanceof GLWallpaperService.GLThreadExitListener) {
+                ((GLWallpaperService.GLThreadExitListener) mRenderer).onGLThreadExit(mEglHelper.isCurrent());
+            }
                         /*
                          * clean-up everything...
                          */
@@ -695,9 +855,7 @@ class GLThread extends Thread {
     }
 
     private boolean isDone() {
-        synchronized (sGLThreadManager) {
-            return mDone;
-        }
+        return mDone;
     }
 
     public int getRenderMode() {
@@ -712,17 +870,21 @@ class GLThread extends Thread {
         }
         synchronized (sGLThreadManager) {
             mRenderMode = renderMode;
-            if (renderMode == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY) {
-                sGLThreadManager.notifyAll();
-            }
+        }
+        if (renderMode == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY) {
+            mSignal.wake();
         }
     }
 
-    public void requestRender() {
+    public void setPreserveEGLContextOnPause(boolean preserveOnPause) {
         synchronized (sGLThreadManager) {
-            mRequestRender = true;
-            sGLThreadManager.notifyAll();
+            mPreserveEGLContextOnPause = preserveOnPause;
         }
+        mSignal.wake();
+    }
+
+    public void requestRender() {
+        mSignal.requestRender();
     }
 
     public void surfaceCreated(SurfaceHolder holder) {
@@ -732,8 +894,8 @@ class GLThread extends Thread {
                 Log.i("GLThread", "surfaceCreated tid=" + getId());
             }
             mHasSurface = true;
-            sGLThreadManager.notifyAll();
         }
+        mSignal.wake();
     }
 
     public void surfaceDestroyed() {
@@ -742,7 +904,7 @@ class GLThread extends Thread {
                 Log.i("GLThread", "surfaceDestroyed tid=" + getId());
             }
             mHasSurface = false;
-            sGLThreadManager.notifyAll();
+            mSignal.wake();
             while (!mWaitingForSurface && isAlive() && !mDone) {
                 try {
                     sGLThreadManager.wait();
@@ -756,16 +918,16 @@ class GLThread extends Thread {
     public void onPause() {
         synchronized (sGLThreadManager) {
             mPaused = true;
-            sGLThreadManager.notifyAll();
         }
+        mSignal.wake();
     }
 
     public void onResume() {
         synchronized (sGLThreadManager) {
             mPaused = false;
-            mRequestRender = true;
-            sGLThreadManager.notifyAll();
         }
+        mSignal.requestRender();
+        mSignal.wake();
     }
 
     public void onWindowResize(int w, int h) {
@@ -773,17 +935,15 @@ class GLThread extends Thread {
             mWidth = w;
             mHeight = h;
             mSizeChanged = true;
-            sGLThreadManager.notifyAll();
         }
+        mSignal.wake();
     }
 
     public void requestExitAndWait() {
         // don't call this from GLThread thread or it is a guaranteed
         // deadlock!
-        synchronized (sGLThreadManager) {
-            mDone = true;
-            sGLThreadManager.notifyAll();
-        }
+        mDone = true;
+        mSignal.wake();
         try {
             join();
         } catch (InterruptedException ex) {
@@ -798,23 +958,7 @@ class GLThread extends Thread {
      * the runnable to be run on the GL rendering thread.
      */
     public void queueEvent(Runnable r) {
-        synchronized (this) {
-            mEventQueue.add(r);
-            synchronized (sGLThreadManager) {
-                mEventsWaiting = true;
-                sGLThreadManager.notifyAll();
-            }
-        }
-    }
-
-    private Runnable getEvent() {
-        synchronized (this) {
-            if (mEventQueue.size() > 0) {
-                return mEventQueue.remove(0);
-            }
-
-        }
-        return null;
+        mSignal.queueEvent(r);
     }
 
     private class GLThreadManager {
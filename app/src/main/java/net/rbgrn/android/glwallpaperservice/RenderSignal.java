@@ -0,0 +1,80 @@
+package net.rbgrn.android.glwallpaperservice;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Render requests and queued events for one GL thread, without a monitor.
+ * Any number of threads may request renders and queue events, only the GL thread
+ * takes them and waits. Redundant render requests collapse into the pending one
+ * and don't wake the GL thread again.
+ */
+final class RenderSignal {
+    private final AtomicBoolean renderRequested = new AtomicBoolean(false);
+    private final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<>();
+    private volatile Thread consumer;
+
+    /**
+     * Called on the GL thread before it first waits
+     */
+    void bindConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * @return false if a render was already pending
+     */
+    boolean requestRender() {
+        if (renderRequested.get() || renderRequested.getAndSet(true)) {
+            return false;
+        }
+        wake();
+        return true;
+    }
+
+    boolean isRenderRequested() {
+        return renderRequested.get();
+    }
+
+    /**
+     * Consume the pending render request, requests made from now on ask for another frame
+     */
+    boolean takeRenderRequest() {
+        return renderRequested.getAndSet(false);
+    }
+
+    void queueEvent(Runnable event) {
+        events.offer(event);
+        wake();
+    }
+
+    boolean hasEvents() {
+        return !events.isEmpty();
+    }
+
+    Runnable pollEvent() {
+        return events.poll();
+    }
+
+    /**
+     * Wake the GL thread to look at its state again. A wake before the GL thread
+     * waits is not lost, the next wait returns right away.
+     */
+    void wake() {
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Wait on the GL thread until woken. May return spuriously, callers check their state again.
+     */
+    void await() throws InterruptedException {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import com.droid2developers.liveslider.utils.ThreadTestUtil;
+
+import org.junit.Test;
+
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DEFAULT;
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DYNAMIC;
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_VERTICAL;
+import static com.droid2developers.liveslider.utils.Constant.MOTION_FILTER_KALMAN;
+import static com.droid2developers.liveslider.utils.Constant.MOTION_FILTER_ONE_EURO;
+import static com.droid2developers.liveslider.utils.ThreadTestUtil.MAX_ALLOCATED_BYTES;
+import static org.junit.Assert.*;
+
+/**
+ * The work done for every rotation event, from {@link OrientationProcessor} through
+ * {@link MotionPredictor}, and for every frame must not allocate. The phone turns
+ * back and forth between portrait and landscape, so face switches run as well.
+ */
+public class SensorEventPathTest {
+    private static final long SAMPLE_NANOS = 5_000_000L;
+    private static final long FRAME_NANOS = 1_000_000_000L / 60;
+    private static final int SAMPLES = 200_000;
+    private static final int TURN_SAMPLES = 2_000;
+
+    @Test
+    public void eventsAndFrames_doNotAllocate() {
+        int[] calibrationModes = {CALIBRATION_DEFAULT, CALIBRATION_VERTICAL, CALIBRATION_DYNAMIC};
+        int[] filterTypes = {MOTION_FILTER_ONE_EURO, MOTION_FILTER_KALMAN};
+        for (int calibrationMode : calibrationModes) {
+            for (int filterType : filterTypes) {
+                Path path = new Path(calibrationMode, filterType);
+                long allocated = ThreadTestUtil.allocatedBytes(path::run);
+                assertTrue("Calibration " + calibrationMode + ", filter " + filterType
+                                + " allocated " + allocated + " bytes",
+                        allocated < MAX_ALLOCATED_BYTES);
+                assertTrue(path.faceSwitches > 0 || calibrationMode == CALIBRATION_DEFAULT);
+            }
+        }
+    }
+
+    /**
+     * Sensor events into the processor, frames out of the predictor, like
+     * {@link SensorTraceReplayer} but without reading a trace
+     */
+    private static class Path implements RotationSensor.Callback {
+        private final MotionPredictor predictor = new MotionPredictor();
+        private final OrientationProcessor processor = new OrientationProcessor(this);
+        private final float[] vector = new float[4];
+        private final float[] angles = new float[2];
+        private long timestampNanos = 1_000_000_000L;
+        float angleSum;
+        int faceSwitches;
+
+        Path(int calibrationMode, int filterType) {
+            processor.setCalibrationMode(calibrationMode);
+            predictor.setFilterType(filterType);
+        }
+
+        void run() {
+            long nextFrameNanos = timestampNanos;
+            for (int i = 0; i < SAMPLES; i++) {
+                // Portrait, turn to landscape, hold, turn back, hold
+                int phase = i / TURN_SAMPLES % 4;
+                float turn = phase == 0 ? (i % TURN_SAMPLES) / (float) TURN_SAMPLES
+                        : phase == 1 ? 1f
+                        : phase == 2 ? 1f - (i % TURN_SAMPLES) / (float) TURN_SAMPLES : 0f;
+                float roll = turn * (float) Math.PI / 2 + 0.01f * (float) Math.sin(i * 0.05);
+                vector[0] = 0f;
+                vector[1] = (float) Math.sin(roll / 2);
+                vector[2] = 0f;
+                vector[3] = (float) Math.cos(roll / 2);
+                processor.process(timestampNanos, vector);
+                while (nextFrameNanos <= timestampNanos) {
+                    predictor.predict(nextFrameNanos + FRAME_NANOS, angles);
+                    angleSum += angles[0] + angles[1];
+                    nextFrameNanos += FRAME_NANOS;
+                }
+                timestampNanos += SAMPLE_NANOS;
+            }
+        }
+
+        @Override
+        public void onSensorChanged(long timestampNanos, float[] angle) {
+            predictor.onAngles(timestampNanos, -angle[2], angle[1]);
+        }
+
+        @Override
+        public void onFaceChanged(int face) {
+            faceSwitches++;
+        }
+    }
+}
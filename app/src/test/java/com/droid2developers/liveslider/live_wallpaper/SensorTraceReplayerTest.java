@@ -0,0 +1,119 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DEFAULT;
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_DYNAMIC;
+import static com.droid2developers.liveslider.utils.Constant.CALIBRATION_VERTICAL;
+import static com.droid2developers.liveslider.utils.Constant.MOTION_FILTER_KALMAN;
+import static com.droid2developers.liveslider.utils.Constant.MOTION_FILTER_ONE_EURO;
+import static org.junit.Assert.*;
+
+/**
+ * Replays a synthetic trace of a phone held upright with a slight hand tremor,
+ * turned to landscape and held there.
+ */
+public class SensorTraceReplayerTest {
+    private static final long SAMPLE_NANOS = 5_000_000L;
+    private static final int PORTRAIT_SAMPLES = 600;
+    private static final int TURN_SAMPLES = 100;
+    private static final int LANDSCAPE_SAMPLES = 600;
+    private static final int SAMPLES = PORTRAIT_SAMPLES + TURN_SAMPLES + LANDSCAPE_SAMPLES;
+    private static final long BURST_NANOS = 250_000_000L;
+
+    @Test
+    public void replay_readsEveryRecordedEvent() throws IOException {
+        SensorTraceReplayer.Report report = new SensorTraceReplayer().replay(trace(true));
+        assertEquals(SAMPLES, report.events);
+        assertEquals(0, report.invalidEvents);
+        // One frame per 60 Hz vsync over the trace
+        long durationNanos = (SAMPLES - 1) * SAMPLE_NANOS;
+        assertEquals(durationNanos * 60 / 1_000_000_000L + 1, report.frames, 1);
+    }
+
+    @Test
+    public void replay_countsFaceSwitchesPerCalibrationMode() throws IOException {
+        // The first face found sets the reference, it counts as a switch
+        assertEquals(0, replay(CALIBRATION_DEFAULT).faceSwitches);
+        assertEquals(1, replay(CALIBRATION_VERTICAL).faceSwitches);
+        assertEquals(2, replay(CALIBRATION_DYNAMIC).faceSwitches);
+    }
+
+    @Test
+    public void replay_isDeterministic() throws IOException {
+        SensorTraceReplayer replayer = new SensorTraceReplayer()
+                .setCalibrationMode(CALIBRATION_DYNAMIC)
+                .setMotionFilter(MOTION_FILTER_KALMAN);
+        SensorTraceReplayer.Report first = replayer.replay(trace(true));
+        SensorTraceReplayer.Report second = replayer.replay(trace(true));
+        assertEquals(first.faceSwitches, second.faceSwitches);
+        assertEquals(first.frames, second.frames);
+        assertEquals(first.rmsJerk, second.rmsJerk, 0f);
+        assertEquals(first.maxStep, second.maxStep, 0f);
+    }
+
+    @Test
+    public void replay_completesVectorsWithoutScalar() throws IOException {
+        SensorTraceReplayer replayer = new SensorTraceReplayer().setCalibrationMode(CALIBRATION_DYNAMIC);
+        SensorTraceReplayer.Report withScalar = replayer.replay(trace(true));
+        SensorTraceReplayer.Report withoutScalar = replayer.replay(trace(false));
+        assertEquals(withScalar.faceSwitches, withoutScalar.faceSwitches);
+        assertEquals(withScalar.maxStep, withoutScalar.maxStep, 1e-5f);
+    }
+
+    @Test
+    public void replay_filtersBurstsLikeStream() throws IOException {
+        // 50 events per burst, the turn arrives in two of them
+        for (int filterType : new int[]{MOTION_FILTER_ONE_EURO, MOTION_FILTER_KALMAN}) {
+            SensorTraceReplayer replayer = new SensorTraceReplayer().setMotionFilter(filterType);
+            SensorTraceReplayer.Report stream = replayer.replay(trace(true));
+            SensorTraceReplayer.Report bursts = replayer.setBatchLatency(BURST_NANOS).replay(trace(true));
+            assertEquals(stream.events, bursts.events);
+            // The filters step through each burst at the event timestamps
+            assertEquals(stream.finalRoll, bursts.finalRoll, 0f);
+            assertEquals(stream.finalPitch, bursts.finalPitch, 0f);
+            assertEquals(Math.PI / 2, Math.abs(bursts.finalRoll), 0.1);
+            // Frames between bursts only extrapolate, the turn shows in larger steps
+            assertTrue(bursts.maxStep > stream.maxStep);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void replay_rejectsOtherFiles() throws IOException {
+        new SensorTraceReplayer().replay(new ByteArrayInputStream(new byte[]{'P', 'K', 3, 4, 0, 0}));
+    }
+
+    private static SensorTraceReplayer.Report replay(int calibrationMode) throws IOException {
+        return new SensorTraceReplayer().setCalibrationMode(calibrationMode).replay(trace(true));
+    }
+
+    private static ByteArrayInputStream trace(boolean withScalar) throws IOException {
+        Random random = new Random(4);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SensorTraceRecorder recorder = new SensorTraceRecorder(bytes);
+        float[] values = new float[withScalar ? 4 : 3];
+        long timestampNanos = 1_000_000_000L;
+        for (int i = 0; i < SAMPLES; i++) {
+            float turn = Math.max(0f, Math.min(1f, (i - PORTRAIT_SAMPLES) / (float) TURN_SAMPLES));
+            float tremor = 0.02f * (float) Math.sin(2 * Math.PI * 1.5 * i * SAMPLE_NANOS / 1e9)
+                    + 0.002f * (float) random.nextGaussian();
+            // A rotation around the y axis is a roll of the same angle
+            float roll = turn * (float) Math.PI / 2 + tremor;
+            values[0] = 0f;
+            values[1] = (float) Math.sin(roll / 2);
+            values[2] = 0f;
+            if (withScalar) {
+                values[3] = (float) Math.cos(roll / 2);
+            }
+            recorder.record(timestampNanos, values, 3);
+            timestampNanos += SAMPLE_NANOS;
+        }
+        recorder.close();
+        return new ByteArrayInputStream(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,45 @@
+package com.droid2developers.liveslider.live_wallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorWakeupCounterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void streamingEvents_eachWake() {
+        SensorWakeupCounter counter = new SensorWakeupCounter("Streaming");
+        counter.start(0);
+        // 60 Hz for a minute
+        for (long t = 0; t < 60 * SECOND; t += SECOND / 60) {
+            counter.onEvent(t);
+        }
+        assertEquals(3600f, counter.getWakeupsPerMinute(60 * SECOND), 1f);
+    }
+
+    @Test
+    public void batchedEvents_shareAWakeup() {
+        SensorWakeupCounter counter = new SensorWakeupCounter("Batched");
+        counter.start(0);
+        // Four events delivered back to back every 250 ms
+        for (long t = 0; t < 60 * SECOND; t += SECOND / 4) {
+            for (int i = 0; i < 4; i++) {
+                counter.onEvent(t + i * 50_000L);
+            }
+        }
+        assertEquals(240f, counter.getWakeupsPerMinute(60 * SECOND), 1f);
+    }
+
+    @Test
+    public void stoppedTime_isNotCounted() {
+        SensorWakeupCounter counter = new SensorWakeupCounter("Streaming");
+        counter.start(0);
+        counter.onEvent(SECOND);
+        counter.stop(30 * SECOND);
+        counter.onEvent(40 * SECOND);
+        counter.start(90 * SECOND);
+        counter.onEvent(100 * SECOND);
+        assertEquals(2f, counter.getWakeupsPerMinute(120 * SECOND), 0.01f);
+    }
+}
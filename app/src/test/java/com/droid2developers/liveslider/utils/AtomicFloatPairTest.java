@@ -0,0 +1,57 @@
+package com.droid2developers.liveslider.utils;
+
+import org.junit.Test;
+
+import static com.droid2developers.liveslider.utils.ThreadTestUtil.MAX_ALLOCATED_BYTES;
+import static org.junit.Assert.*;
+
+/**
+ * The sensor to renderer hand-off runs for every sensor event and every frame,
+ * it must neither allocate nor tear.
+ */
+public class AtomicFloatPairTest {
+    private static final int ITERATIONS = 1_000_000;
+
+    @Test
+    public void roundTrip_keepsBothValues() {
+        AtomicFloatPair pair = new AtomicFloatPair();
+        pair.set(-1.5f, Float.MIN_VALUE);
+        long snapshot = pair.get();
+        assertEquals(-1.5f, AtomicFloatPair.first(snapshot), 0f);
+        assertEquals(Float.MIN_VALUE, AtomicFloatPair.second(snapshot), 0f);
+
+        pair.set(Float.NaN, -0f);
+        snapshot = pair.get();
+        assertTrue(Float.isNaN(AtomicFloatPair.first(snapshot)));
+        assertEquals(Float.floatToRawIntBits(-0f),
+                Float.floatToRawIntBits(AtomicFloatPair.second(snapshot)));
+    }
+
+    @Test
+    public void handOff_doesNotAllocate() {
+        AtomicFloatPair pair = new AtomicFloatPair();
+        float[] sum = new float[1];
+        long allocated = ThreadTestUtil.allocatedBytes(() -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                pair.set(i, i * 0.5f);
+                long snapshot = pair.get();
+                sum[0] += AtomicFloatPair.first(snapshot) - AtomicFloatPair.second(snapshot);
+            }
+        });
+        assertFalse(Float.isNaN(sum[0]));
+        assertTrue("Allocated " + allocated + " bytes", allocated < MAX_ALLOCATED_BYTES);
+    }
+
+    @Test
+    public void concurrentReader_neverSeesTornPair() throws InterruptedException {
+        AtomicFloatPair pair = new AtomicFloatPair();
+        ThreadTestUtil.readWhileWriting(() -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                pair.set(i, -i);
+            }
+        }, () -> {
+            long snapshot = pair.get();
+            assertEquals(-AtomicFloatPair.first(snapshot), AtomicFloatPair.second(snapshot), 0f);
+        });
+    }
+}
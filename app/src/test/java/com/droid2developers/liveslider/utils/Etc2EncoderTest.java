@@ -0,0 +1,191 @@
+package com.droid2developers.liveslider.utils;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes images and decodes them again to bound the error, the decoder follows
+ * the ETC1 block layout GL reads.
+ */
+public class Etc2EncoderTest {
+    private static final int BENCHMARK_SIZE = 1024;
+    private static final int BENCHMARK_RUNS = 5;
+    // Two colors no single base color and modifier table can reach both of
+    private static final int TOP_LEFT = 0xffc08040;
+    private static final int BOTTOM_RIGHT = 0xff4080c0;
+
+    @Test
+    public void solidBlack_blockLayout() {
+        byte[] encoded = Etc2Encoder.encode(solid(4, 4, 0xff000000), 4, 4);
+        // Differential mode, no flip, base colors 0 and table 0 in both halves.
+        // Every pixel takes modifier -2: most significant index bits set, least clear.
+        assertArrayEquals(new byte[]{0, 0, 0, 0x02, (byte) 0xff, (byte) 0xff, 0, 0}, encoded);
+    }
+
+    @Test
+    public void horizontalSplit_flipsBlock() {
+        int[] pixels = new int[16];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i < 8 ? TOP_LEFT : BOTTOM_RIGHT;
+        }
+        byte[] encoded = Etc2Encoder.encode(pixels, 4, 4);
+        assertEquals(1, encoded[3] & 1);
+        assertTrue(maxError(pixels, Etc2Encoder.decode(encoded, 4, 4)) <= 12);
+    }
+
+    @Test
+    public void verticalSplit_doesNotFlipBlock() {
+        int[] pixels = new int[16];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i % 4 < 2 ? TOP_LEFT : BOTTOM_RIGHT;
+        }
+        byte[] encoded = Etc2Encoder.encode(pixels, 4, 4);
+        assertEquals(0, encoded[3] & 1);
+        assertTrue(maxError(pixels, Etc2Encoder.decode(encoded, 4, 4)) <= 12);
+    }
+
+    @Test
+    public void solidColors_roundTrip() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            int[] pixels = solid(4, 4, 0xff000000 | random.nextInt(0x1000000));
+            int[] decoded = Etc2Encoder.decode(Etc2Encoder.encode(pixels, 4, 4), 4, 4);
+            // Base colors are 4 or 5 bits, the modifiers fill in only part of the gaps
+            assertTrue("Max error " + maxError(pixels, decoded), maxError(pixels, decoded) <= 10);
+        }
+    }
+
+    @Test
+    public void gradient_roundTrip() {
+        int[] pixels = gradient(256, 256);
+        int[] decoded = Etc2Encoder.decode(Etc2Encoder.encode(pixels, 256, 256), 256, 256);
+        double psnr = psnr(pixels, decoded);
+        assertTrue("PSNR " + psnr, psnr > 38);
+        assertTrue("Max error " + maxError(pixels, decoded), maxError(pixels, decoded) <= 12);
+    }
+
+    @Test
+    public void noise_roundTrip() {
+        int[] pixels = noise(256, 256, new Random(2));
+        int[] decoded = Etc2Encoder.decode(Etc2Encoder.encode(pixels, 256, 256), 256, 256);
+        double psnr = psnr(pixels, decoded);
+        // Worst case for the format, one color and table per half block
+        assertTrue("PSNR " + psnr, psnr > 11);
+    }
+
+    @Test
+    public void partialBlocks_padWithEdgePixels() {
+        int[][] sizes = {{1, 1}, {3, 5}, {5, 3}, {7, 9}, {17, 2}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            int[] pixels = ramp(width, height);
+            byte[] encoded = Etc2Encoder.encode(pixels, width, height);
+            assertEquals((width + 3) / 4 * ((height + 3) / 4) * Etc2Encoder.BYTES_PER_BLOCK,
+                    encoded.length);
+            assertEquals(encoded.length, Etc2Encoder.getEncodedSize(width, height));
+            int[] decoded = Etc2Encoder.decode(encoded, width, height);
+            assertEquals(width * height, decoded.length);
+            assertTrue(width + "x" + height + " max error " + maxError(pixels, decoded),
+                    maxError(pixels, decoded) <= 12);
+        }
+    }
+
+    @Test
+    public void partialBlock_matchesPaddedImage() {
+        // A 3x3 image encodes like the 4x4 image that repeats its last row and column
+        int[] small = noise(3, 3, new Random(3));
+        int[] padded = new int[16];
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                padded[y * 4 + x] = small[Math.min(y, 2) * 3 + Math.min(x, 2)];
+            }
+        }
+        assertArrayEquals(Etc2Encoder.encode(padded, 4, 4), Etc2Encoder.encode(small, 3, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_rejectsShortInput() {
+        Etc2Encoder.encode(new int[15], 4, 4);
+    }
+
+    @Test
+    @Ignore("Benchmark, run on demand")
+    public void encode_benchmark() {
+        int[] pixels = noise(BENCHMARK_SIZE, BENCHMARK_SIZE, new Random(4));
+        Etc2Encoder.encode(pixels, BENCHMARK_SIZE, BENCHMARK_SIZE);
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            Etc2Encoder.encode(pixels, BENCHMARK_SIZE, BENCHMARK_SIZE);
+        }
+        long nanos = (System.nanoTime() - start) / BENCHMARK_RUNS;
+        System.out.printf("Encoding %dx%d: %d ms, %.1f megapixels/s%n", BENCHMARK_SIZE,
+                BENCHMARK_SIZE, nanos / 1_000_000, BENCHMARK_SIZE * BENCHMARK_SIZE * 1e3 / nanos);
+    }
+
+    private static int[] solid(int width, int height, int color) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+
+    private static int[] gradient(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / Math.max(1, width - 1);
+                int g = y * 255 / Math.max(1, height - 1);
+                int b = (r + g) / 2;
+                pixels[y * width + x] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    // A slope gentle enough for the blocks to follow it
+    private static int[] ramp(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = 0xff000000 | (64 + 4 * x) << 16 | (96 + 4 * y) << 8 | 128;
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] noise(int width, int height, Random random) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+
+    private static int maxError(int[] expected, int[] actual) {
+        int max = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int e = (expected[i] >> shift & 0xff) - (actual[i] >> shift & 0xff);
+                max = Math.max(max, Math.abs(e));
+            }
+        }
+        return max;
+    }
+
+    private static double psnr(int[] expected, int[] actual) {
+        double sum = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int e = (expected[i] >> shift & 0xff) - (actual[i] >> shift & 0xff);
+                sum += e * e;
+            }
+        }
+        double mse = sum / (expected.length * 3);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+}
@@ -0,0 +1,58 @@
+package com.droid2developers.liveslider.utils;
+
+import org.junit.Test;
+
+import static com.droid2developers.liveslider.utils.ThreadTestUtil.MAX_ALLOCATED_BYTES;
+import static org.junit.Assert.*;
+
+public class FloatSeqLockTest {
+    private static final int ITERATIONS = 1_000_000;
+
+    @Test
+    public void read_returnsLastWrite() {
+        FloatSeqLock lock = new FloatSeqLock(3);
+        lock.write(-5_000_000_000L, new float[]{1f, -2f, Float.NaN});
+        float[] values = new float[3];
+        assertEquals(-5_000_000_000L, lock.read(values));
+        assertEquals(1f, values[0], 0f);
+        assertEquals(-2f, values[1], 0f);
+        assertTrue(Float.isNaN(values[2]));
+    }
+
+    @Test
+    public void handOff_doesNotAllocate() {
+        FloatSeqLock lock = new FloatSeqLock(4);
+        float[] written = new float[4];
+        float[] read = new float[4];
+        long[] sum = new long[1];
+        long allocated = ThreadTestUtil.allocatedBytes(() -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                written[i & 3] = i;
+                lock.write(i, written);
+                sum[0] += lock.read(read);
+            }
+        });
+        assertTrue(sum[0] > 0);
+        assertTrue("Allocated " + allocated + " bytes", allocated < MAX_ALLOCATED_BYTES);
+    }
+
+    @Test
+    public void concurrentReader_seesWholeSnapshots() throws InterruptedException {
+        FloatSeqLock lock = new FloatSeqLock(4);
+        float[] values = new float[4];
+        ThreadTestUtil.readWhileWriting(() -> {
+            float[] written = new float[4];
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (int j = 0; j < written.length; j++) {
+                    written[j] = i;
+                }
+                lock.write(i, written);
+            }
+        }, () -> {
+            long timestamp = lock.read(values);
+            for (float value : values) {
+                assertEquals(timestamp, value, 0f);
+            }
+        });
+    }
+}
@@ -0,0 +1,103 @@
+package com.droid2developers.liveslider.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the cache keys and the file format, the GL side needs a device.
+ */
+public class ProgramBinaryCacheTest {
+    private static final String DRIVER = "vendor\nrenderer\nOpenGL ES 3.2\nfingerprint";
+    private static final String VERTEX = "void main() { gl_Position = vec4(0.0); }";
+    private static final String FRAGMENT = "void main() { gl_FragColor = vec4(1.0); }";
+    private static final String[] ATTRIBUTES = {"aPosition", "aTexCoords"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void key_isStable() {
+        String key = ProgramBinaryCache.getKey(DRIVER, VERTEX, FRAGMENT, ATTRIBUTES);
+        assertEquals(64, key.length());
+        assertEquals(key, ProgramBinaryCache.getKey(DRIVER, VERTEX, FRAGMENT,
+                ATTRIBUTES.clone()));
+    }
+
+    @Test
+    public void key_changesWithEveryPart() {
+        String key = ProgramBinaryCache.getKey(DRIVER, VERTEX, FRAGMENT, ATTRIBUTES);
+        assertNotEquals(key, ProgramBinaryCache.getKey(DRIVER + "2", VERTEX, FRAGMENT,
+                ATTRIBUTES));
+        assertNotEquals(key, ProgramBinaryCache.getKey(DRIVER, VERTEX + " ", FRAGMENT,
+                ATTRIBUTES));
+        assertNotEquals(key, ProgramBinaryCache.getKey(DRIVER, VERTEX, FRAGMENT + " ",
+                ATTRIBUTES));
+        assertNotEquals(key, ProgramBinaryCache.getKey(DRIVER, VERTEX, FRAGMENT,
+                new String[]{"aTexCoords", "aPosition"}));
+        assertNotEquals(key, ProgramBinaryCache.getKey(DRIVER, VERTEX, FRAGMENT, null));
+    }
+
+    @Test
+    public void key_separatesParts() {
+        assertNotEquals(ProgramBinaryCache.getKey(DRIVER, "ab", "c", null),
+                ProgramBinaryCache.getKey(DRIVER, "a", "bc", null));
+    }
+
+    @Test
+    public void write_roundTrips() throws IOException {
+        File file = new File(folder.getRoot(), "program.bin");
+        ProgramBinaryCache.write(file, 0x8740, ByteBuffer.wrap(binary(1000)));
+
+        ProgramBinaryCache.Binary read = ProgramBinaryCache.read(file);
+        assertNotNull(read);
+        assertEquals(0x8740, read.format);
+        byte[] bytes = new byte[read.data.remaining()];
+        read.data.get(bytes);
+        assertArrayEquals(binary(1000), bytes);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void read_missingFile() {
+        assertNull(ProgramBinaryCache.read(new File(folder.getRoot(), "missing.bin")));
+    }
+
+    @Test
+    public void read_deletesTruncatedFile() throws IOException {
+        File file = new File(folder.getRoot(), "program.bin");
+        ProgramBinaryCache.write(file, 1, ByteBuffer.wrap(binary(1000)));
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(500);
+        }
+
+        assertNull(ProgramBinaryCache.read(file));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void read_deletesForeignFile() throws IOException {
+        File file = folder.newFile("program.bin");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(binary(100));
+        }
+
+        assertNull(ProgramBinaryCache.read(file));
+        assertFalse(file.exists());
+    }
+
+    private static byte[] binary(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,217 @@
+package com.droid2developers.liveslider.utils;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the quaternion path against the rotation matrix math of SensorManager
+ * it replaces, ported here since android.jar only has stubs.
+ */
+public class QuaternionTest {
+    private static final float ANGLE_TOLERANCE = 1e-4f;
+    private static final int BENCHMARK_EVENTS = 200_000;
+    private static final int BENCHMARK_RUNS = 5;
+
+    @Test
+    public void eulerAngles_matchGetOrientation() {
+        Random random = new Random(1);
+        float[] matrix = new float[9];
+        float[] expected = new float[3];
+        float[] actual = new float[3];
+        Quaternion rotation = new Quaternion();
+        for (int i = 0; i < 10_000; i++) {
+            float[] vector = randomRotationVector(random);
+            getRotationMatrixFromVector(matrix, vector);
+            getOrientation(matrix, expected);
+            rotation.setFromRotationVector(vector).getEulerAngles(actual);
+            assertAnglesEqual(expected, actual);
+        }
+    }
+
+    @Test
+    public void relativeEulerAngles_matchGetAngleChange() {
+        Random random = new Random(2);
+        float[] matrix = new float[9];
+        float[] referenceMatrix = new float[9];
+        float[] expected = new float[3];
+        float[] actual = new float[3];
+        Quaternion rotation = new Quaternion();
+        Quaternion reference = new Quaternion();
+        Quaternion relative = new Quaternion();
+        for (int i = 0; i < 10_000; i++) {
+            float[] vector = randomRotationVector(random);
+            float[] referenceVector = randomRotationVector(random);
+            getRotationMatrixFromVector(matrix, vector);
+            getRotationMatrixFromVector(referenceMatrix, referenceVector);
+            getAngleChange(expected, matrix, referenceMatrix);
+            rotation.setFromRotationVector(vector);
+            reference.setFromRotationVector(referenceVector);
+            relative.setRelative(reference, rotation).getEulerAngles(actual);
+            assertAnglesEqual(expected, actual);
+        }
+    }
+
+    @Test
+    public void rotationVectorWithoutScalar_isCompleted() {
+        Quaternion full = new Quaternion().setFromRotationVector(new float[]{0.1f, 0.2f, 0.3f, 0.927362f});
+        Quaternion partial = new Quaternion().setFromRotationVector(new float[]{0.1f, 0.2f, 0.3f});
+        assertEquals(full.w, partial.w, 1e-6f);
+    }
+
+    @Test
+    public void slerp_staysUnitAndHitsEndpoints() {
+        Random random = new Random(3);
+        Quaternion from = new Quaternion().setFromRotationVector(randomRotationVector(random));
+        Quaternion to = new Quaternion().setFromRotationVector(randomRotationVector(random));
+        Quaternion result = new Quaternion();
+        for (int i = 0; i <= 20; i++) {
+            result.slerp(from, to, i / 20f);
+            float norm = result.w * result.w + result.x * result.x
+                    + result.y * result.y + result.z * result.z;
+            assertEquals(1f, norm, 1e-5f);
+        }
+        assertSameRotation(from, result.slerp(from, to, 0f));
+        assertSameRotation(to, result.slerp(from, to, 1f));
+    }
+
+    @Test
+    public void slerp_takesShorterArc() {
+        Quaternion from = new Quaternion();
+        // The same rotation as identity, slerp must not spin around once
+        Quaternion to = new Quaternion().set(-1f, 0f, 0f, 0f);
+        Quaternion halfway = new Quaternion().slerp(from, to, 0.5f);
+        assertEquals(1f, Math.abs(halfway.w), 1e-6f);
+    }
+
+    @Test
+    @Ignore("Benchmark, run on demand")
+    public void angleChange_benchmark() {
+        Random random = new Random(4);
+        float[][] vectors = new float[BENCHMARK_EVENTS][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = randomRotationVector(random);
+        }
+        float[] referenceVector = randomRotationVector(random);
+        float[] referenceMatrix = new float[9];
+        getRotationMatrixFromVector(referenceMatrix, referenceVector);
+        Quaternion reference = new Quaternion().setFromRotationVector(referenceVector);
+
+        // Warm up both paths, then measure them alternately
+        float[] matrixAngles = new float[3 * BENCHMARK_EVENTS];
+        float[] quaternionAngles = new float[3 * BENCHMARK_EVENTS];
+        matrixPath(vectors, referenceMatrix, matrixAngles);
+        quaternionPath(vectors, reference, quaternionAngles);
+        long matrixNanos = 0;
+        long quaternionNanos = 0;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            matrixNanos += matrixPath(vectors, referenceMatrix, matrixAngles);
+            quaternionNanos += quaternionPath(vectors, reference, quaternionAngles);
+        }
+
+        double maxDifference = 0;
+        float[] expected = new float[3];
+        for (int i = 0; i < BENCHMARK_EVENTS; i++) {
+            System.arraycopy(matrixAngles, 3 * i, expected, 0, 3);
+            // Same gimbal lock exclusion as assertAnglesEqual
+            if (!(Math.abs(Math.cos(expected[1])) >= 0.05)) continue;
+            for (int j = 0; j < 3; j++) {
+                double difference = Math.abs(expected[j] - quaternionAngles[3 * i + j]);
+                difference = Math.min(difference, 2 * Math.PI - difference);
+                maxDifference = Math.max(maxDifference, difference);
+            }
+        }
+        System.out.printf("Angle change of %d events: matrix %.1f ns, quaternion %.1f ns per event, max difference %.2e rad%n",
+                BENCHMARK_EVENTS, (double) matrixNanos / BENCHMARK_RUNS / BENCHMARK_EVENTS,
+                (double) quaternionNanos / BENCHMARK_RUNS / BENCHMARK_EVENTS, maxDifference);
+        assertTrue("Max difference " + maxDifference, maxDifference < ANGLE_TOLERANCE);
+    }
+
+    // Per event work of the replaced code: a rotation matrix, then the angle change
+    private static long matrixPath(float[][] vectors, float[] referenceMatrix, float[] angles) {
+        float[] matrix = new float[9];
+        float[] angleChange = new float[3];
+        long start = System.nanoTime();
+        for (int i = 0; i < vectors.length; i++) {
+            getRotationMatrixFromVector(matrix, vectors[i]);
+            getAngleChange(angleChange, matrix, referenceMatrix);
+            System.arraycopy(angleChange, 0, angles, 3 * i, 3);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long quaternionPath(float[][] vectors, Quaternion reference, float[] angles) {
+        Quaternion rotation = new Quaternion();
+        Quaternion relative = new Quaternion();
+        float[] angleChange = new float[3];
+        long start = System.nanoTime();
+        for (int i = 0; i < vectors.length; i++) {
+            rotation.setFromRotationVector(vectors[i]);
+            relative.setRelative(reference, rotation).getEulerAngles(angleChange);
+            System.arraycopy(angleChange, 0, angles, 3 * i, 3);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void assertSameRotation(Quaternion expected, Quaternion actual) {
+        float dot = expected.w * actual.w + expected.x * actual.x
+                + expected.y * actual.y + expected.z * actual.z;
+        assertEquals(1f, Math.abs(dot), 1e-5f);
+    }
+
+    private static void assertAnglesEqual(float[] expected, float[] actual) {
+        // Azimuth and roll are meaningless close to gimbal lock
+        if (!(Math.abs(Math.cos(expected[1])) >= 0.05)) return;
+        for (int i = 0; i < 3; i++) {
+            double difference = Math.abs(expected[i] - actual[i]);
+            // Angles of +-PI are the same
+            difference = Math.min(difference, 2 * Math.PI - difference);
+            assertEquals(0, difference, ANGLE_TOLERANCE);
+        }
+    }
+
+    private static float[] randomRotationVector(Random random) {
+        float x = random.nextFloat() * 2 - 1;
+        float y = random.nextFloat() * 2 - 1;
+        float z = random.nextFloat() * 2 - 1;
+        float w = random.nextFloat();
+        float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+        return new float[]{x / length, y / length, z / length, w / length};
+    }
+
+    private static void getRotationMatrixFromVector(float[] r, float[] vector) {
+        float q1 = vector[0];
+        float q2 = vector[1];
+        float q3 = vector[2];
+        float q0 = vector[3];
+        r[0] = 1 - 2 * q2 * q2 - 2 * q3 * q3;
+        r[1] = 2 * q1 * q2 - 2 * q3 * q0;
+        r[2] = 2 * q1 * q3 + 2 * q2 * q0;
+        r[3] = 2 * q1 * q2 + 2 * q3 * q0;
+        r[4] = 1 - 2 * q1 * q1 - 2 * q3 * q3;
+        r[5] = 2 * q2 * q3 - 2 * q1 * q0;
+        r[6] = 2 * q1 * q3 - 2 * q2 * q0;
+        r[7] = 2 * q2 * q3 + 2 * q1 * q0;
+        r[8] = 1 - 2 * q1 * q1 - 2 * q2 * q2;
+    }
+
+    private static void getOrientation(float[] r, float[] values) {
+        values[0] = (float) Math.atan2(r[1], r[4]);
+        values[1] = (float) Math.asin(-r[7]);
+        values[2] = (float) Math.atan2(-r[6], r[8]);
+    }
+
+    private static void getAngleChange(float[] angleChange, float[] r, float[] prevR) {
+        float rd1 = prevR[0] * r[1] + prevR[3] * r[4] + prevR[6] * r[7];
+        float rd4 = prevR[1] * r[1] + prevR[4] * r[4] + prevR[7] * r[7];
+        float rd6 = prevR[2] * r[0] + prevR[5] * r[3] + prevR[8] * r[6];
+        float rd7 = prevR[2] * r[1] + prevR[5] * r[4] + prevR[8] * r[7];
+        float rd8 = prevR[2] * r[2] + prevR[5] * r[5] + prevR[8] * r[8];
+        angleChange[0] = (float) Math.atan2(rd1, rd4);
+        angleChange[1] = (float) Math.asin(-rd7);
+        angleChange[2] = (float) Math.atan2(-rd6, rd8);
+    }
+}
@@ -0,0 +1,42 @@
+package com.droid2developers.liveslider.utils;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks shared by the tests of the paths that run for every sensor event and frame
+ */
+public final class ThreadTestUtil {
+    // Leaves room for the measurement itself, not for anything per iteration
+    public static final long MAX_ALLOCATED_BYTES = 1024;
+
+    private ThreadTestUtil() {
+    }
+
+    /**
+     * Run the task once so the measured run executes compiled code, then again
+     * @return bytes the calling thread allocated during the second run
+     */
+    public static long allocatedBytes(Runnable task) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        task.run();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        task.run();
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    /**
+     * Run the writer on a new thread and the reader on this one, over and over
+     * until the writer is done. The reader asserts what it sees.
+     */
+    public static void readWhileWriting(Runnable writer, Runnable reader)
+            throws InterruptedException {
+        Thread thread = new Thread(writer);
+        thread.start();
+        while (thread.isAlive()) {
+            reader.run();
+        }
+        thread.join();
+    }
+}
@@ -0,0 +1,191 @@
+package net.rbgrn.android.glwallpaperservice;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Render requests come from the sensor, the frame clock and the loaders at once,
+ * none of them may get lost and redundant ones should cost next to nothing.
+ */
+public class RenderSignalTest {
+    private static final int PRODUCERS = 4;
+    private static final int REQUESTS_PER_PRODUCER = 20_000;
+    private static final int BENCHMARK_REQUESTS_PER_PRODUCER = 500_000;
+    private static final int EVENT_EVERY = 1000;
+
+    @Test
+    public void requestRender_collapsesWhilePending() {
+        RenderSignal signal = new RenderSignal();
+        assertTrue(signal.requestRender());
+        assertFalse(signal.requestRender());
+        assertTrue(signal.takeRenderRequest());
+        assertFalse(signal.takeRenderRequest());
+        assertTrue(signal.requestRender());
+    }
+
+    @Test
+    public void wakeBeforeAwait_isNotLost() throws InterruptedException {
+        RenderSignal signal = new RenderSignal();
+        int rounds = 10_000;
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger rendered = new AtomicInteger();
+        Thread consumer = new Thread(() -> {
+            try {
+                while (rendered.get() < rounds) {
+                    if (signal.takeRenderRequest()) {
+                        rendered.incrementAndGet();
+                    } else {
+                        signal.await();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+            done.countDown();
+        });
+        signal.bindConsumer(consumer);
+        consumer.start();
+        for (int i = 0; i < rounds; i++) {
+            // One request per frame, the next only once the last was taken
+            while (!signal.requestRender()) {
+                Thread.yield();
+            }
+            while (signal.isRenderRequested()) {
+                Thread.yield();
+            }
+        }
+        assertTrue("Consumer stuck at " + rendered.get(), done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void contention_deliversEveryEvent() throws InterruptedException {
+        runSignal(REQUESTS_PER_PRODUCER);
+    }
+
+    @Test
+    @Ignore("Benchmark, run on demand")
+    public void contention_benchmark() throws InterruptedException {
+        // Warm up both, then measure
+        runSignal(BENCHMARK_REQUESTS_PER_PRODUCER);
+        runMonitor(BENCHMARK_REQUESTS_PER_PRODUCER);
+        long signalNanos = runSignal(BENCHMARK_REQUESTS_PER_PRODUCER);
+        long monitorNanos = runMonitor(BENCHMARK_REQUESTS_PER_PRODUCER);
+        System.out.printf("%d producers x %d requests: RenderSignal %d ms, monitor %d ms%n",
+                PRODUCERS, BENCHMARK_REQUESTS_PER_PRODUCER, signalNanos / 1_000_000,
+                monitorNanos / 1_000_000);
+    }
+
+    // The GL thread loop, with render requests and events from several producers
+    private static long runSignal(int requests) throws InterruptedException {
+        RenderSignal signal = new RenderSignal();
+        AtomicInteger events = new AtomicInteger();
+        AtomicBoolean producing = new AtomicBoolean(true);
+        Thread consumer = new Thread(() -> {
+            try {
+                while (producing.get() || signal.hasEvents() || signal.isRenderRequested()) {
+                    Runnable event;
+                    boolean worked = false;
+                    while ((event = signal.pollEvent()) != null) {
+                        event.run();
+                        worked = true;
+                    }
+                    worked |= signal.takeRenderRequest();
+                    if (!worked && producing.get()) {
+                        signal.await();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        signal.bindConsumer(consumer);
+        consumer.start();
+        long nanos = produce(requests, () -> signal.requestRender(),
+                () -> signal.queueEvent(events::incrementAndGet));
+        producing.set(false);
+        signal.wake();
+        consumer.join(10_000);
+        assertFalse(consumer.isAlive());
+        assertEquals(PRODUCERS * (requests / EVENT_EVERY), events.get());
+        return nanos;
+    }
+
+    // What GLThread did before: a list and a flag guarded by one monitor, notifyAll on every request
+    private static long runMonitor(int requests) throws InterruptedException {
+        Object monitor = new Object();
+        List<Runnable> queue = new ArrayList<>();
+        boolean[] state = new boolean[2];  // render requested, producing
+        state[1] = true;
+        AtomicInteger events = new AtomicInteger();
+        Thread consumer = new Thread(() -> {
+            try {
+                while (true) {
+                    Runnable event = null;
+                    synchronized (monitor) {
+                        while (queue.isEmpty() && !state[0] && state[1]) {
+                            monitor.wait();
+                        }
+                        if (queue.isEmpty() && !state[0] && !state[1]) return;
+                        if (!queue.isEmpty()) event = queue.remove(0);
+                        else state[0] = false;
+                    }
+                    if (event != null) event.run();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        consumer.start();
+        long nanos = produce(requests, () -> {
+            synchronized (monitor) {
+                state[0] = true;
+                monitor.notifyAll();
+            }
+        }, () -> {
+            synchronized (monitor) {
+                queue.add(events::incrementAndGet);
+                monitor.notifyAll();
+            }
+        });
+        synchronized (monitor) {
+            state[1] = false;
+            monitor.notifyAll();
+        }
+        consumer.join(10_000);
+        assertFalse(consumer.isAlive());
+        assertEquals(PRODUCERS * (requests / EVENT_EVERY), events.get());
+        return nanos;
+    }
+
+    private static long produce(int requests, Runnable request, Runnable event)
+            throws InterruptedException {
+        Thread[] producers = new Thread[PRODUCERS];
+        CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < PRODUCERS; p++) {
+            producers[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 1; i <= requests; i++) {
+                    request.run();
+                    if (i % EVENT_EVERY == 0) event.run();
+                }
+            });
+            producers[p].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        return System.nanoTime() - begin;
+    }
+}